@@ -0,0 +1,43 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import org.apache.commons.lang3.StringUtils;
+
+import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.calclocation.main.Main;
+
+/**
+ * Initialises the application configuration and the lookup files for the benchmarks.
+ * The AppConfig properties file and the selector to load are passed to the benchmark JVM as
+ * -Dcalclocation.props and -Dcalclocation.selector.
+ * @author OSG
+ *
+ */
+public class BenchmarkConfig {
+
+    public static final String PROPS = "calclocation.props";
+    public static final String SELECTOR = "calclocation.selector";
+
+    private static boolean loaded;
+
+    /**
+     * Loads the configuration once per JVM.
+     * @return the selector the lookup files were loaded for
+     */
+    public static synchronized String load() {
+        String selector = required(SELECTOR);
+        if (!loaded) {
+            AppConfig.init(required(PROPS));
+            Main.loadLookups(selector);
+            loaded = true;
+        }
+        return selector;
+    }
+
+    private static String required(String property) {
+        String value = System.getProperty(property);
+        if (StringUtils.isBlank(value)) {
+            throw new IllegalStateException("System property " + property + " must be set to run the benchmarks");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,73 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Builds repeatable lists of customers for the benchmarks, shaped by a Distribution.
+ * @author OSG
+ *
+ */
+public class Customers {
+
+    /**
+     * Generates customers in input file order using the default distribution.
+     * The same count always generates the same customers.
+     * @param count number of customers
+     * @param selectorRef selector set on every customer
+     * @return the customers
+     */
+    public static ArrayList<Customer> generate(int count, String selectorRef) {
+        ArrayList<Customer> customers = new ArrayList<>(count);
+        generate(count, selectorRef, Distribution.defaults(), customers::add);
+        return customers;
+    }
+
+    /**
+     * Generates customers one at a time in input file order, so that large files can be written without
+     * holding every customer in memory.
+     * @param count number of customers
+     * @param selectorRef selector set on every customer
+     * @param distribution shape of the data
+     * @param consumer receives each customer
+     */
+    public static void generate(int count, String selectorRef, Distribution distribution, Consumer<Customer> consumer) {
+        Random random = distribution.newRandom();
+        int generated = 0;
+        int groupId = 0;
+
+        while (generated < count) {
+            BatchType batchType = distribution.batchType(random);
+            String lang = distribution.lang(random);
+            String msc = distribution.msc(random);
+            int members = distribution.groupSize(random, batchType);
+            Integer group = distribution.isGrouped(batchType) ? ++groupId : null;
+
+            for (int member = 0; member < members && generated < count; member++) {
+                Customer customer = new Customer(generated++);
+                int pages = distribution.pages(random);
+                customer.setSelectorRef(selectorRef);
+                customer.setLang(lang);
+                customer.setBatchType(batchType.name());
+                customer.setPresentationPriority(distribution.presentationPriority(batchType));
+                customer.setStationery("A4");
+                customer.setSubBatch("");
+                customer.setSortField("");
+                customer.setFleetNo(BatchType.FLEET.equals(batchType) ? "F" + group : "");
+                customer.setMsc(BatchType.UNSORTED.equals(batchType) ? "" : msc);
+                customer.setGroupId(group);
+                customer.setPaperSize("A4");
+                customer.setNoOfPages(pages);
+                customer.setWeight(distribution.weight(pages));
+                customer.setSize(distribution.size(pages));
+                customer.setEnvelope("");
+                customer.setDps("");
+                consumer.accept(customer);
+            }
+        }
+    }
+}
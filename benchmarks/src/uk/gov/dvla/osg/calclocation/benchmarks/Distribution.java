@@ -0,0 +1,199 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * The shape of generated input data. Every value has a default and can be overridden in a properties file:
+ * <pre>
+ * seed=20190301
+ * batchType.SORTED=55          percentage of customers in each batch type
+ * batchType.UNSORTED=15
+ * priority.SORTED=4            presentation priority of each batch type, default ordinal + 1
+ * groupSize.FLEET=2-31         customers per group, batch types without a range are singles
+ * welshPercent=15
+ * mscCount=1500                number of distinct MSCs
+ * mscSkew=1.0                  zipf exponent, 0 spreads customers evenly over the MSCs
+ * pages=1-4
+ * weight=5.0,4.5               base weight and weight per page
+ * size=0.3,0.1                 base size and size per page
+ * </pre>
+ * @author OSG
+ *
+ */
+public class Distribution {
+
+    private static final int FIRST_MSC = 10000;
+
+    private final long seed;
+    private final BatchType[] batchTypes;
+    private final double[] batchTypeCumulative;
+    private final Map<BatchType, Integer> priorities = new EnumMap<>(BatchType.class);
+    private final Map<BatchType, int[]> groupSizes = new EnumMap<>(BatchType.class);
+    private final int welshPercent;
+    private final double[] mscCumulative;
+    private final int[] pages;
+    private final double[] weight;
+    private final double[] size;
+
+    private Distribution(Properties prop) {
+        seed = Long.parseLong(prop.getProperty("seed", "20190301"));
+
+        Map<BatchType, Integer> defaultWeights = new EnumMap<>(BatchType.class);
+        defaultWeights.put(BatchType.SORTED, 55);
+        defaultWeights.put(BatchType.UNSORTED, 15);
+        defaultWeights.put(BatchType.MULTI, 12);
+        defaultWeights.put(BatchType.FLEET, 12);
+        defaultWeights.put(BatchType.CLERICAL, 6);
+        batchTypes = BatchType.values();
+        for (BatchType batchType : batchTypes) {
+            priorities.put(batchType, Integer.parseInt(prop.getProperty("priority." + batchType.name(), String.valueOf(batchType.ordinal() + 1))));
+        }
+
+        groupSizes.put(BatchType.MULTI, range(prop.getProperty("groupSize.MULTI", "2-4")));
+        groupSizes.put(BatchType.FLEET, range(prop.getProperty("groupSize.FLEET", "2-31")));
+        groupSizes.put(BatchType.CLERICAL, range(prop.getProperty("groupSize.CLERICAL", "2-4")));
+        for (BatchType batchType : batchTypes) {
+            String groupSize = prop.getProperty("groupSize." + batchType.name());
+            if (groupSize != null) {
+                groupSizes.put(batchType, range(groupSize));
+            }
+        }
+
+        // Groups are picked rather than customers, so each weight is divided by the mean group size
+        batchTypeCumulative = new double[batchTypes.length];
+        double total = 0;
+        for (BatchType batchType : batchTypes) {
+            String defaultWeight = String.valueOf(defaultWeights.getOrDefault(batchType, 0));
+            int[] groupSize = groupSizes.getOrDefault(batchType, new int[] { 1, 1 });
+            total += Integer.parseInt(prop.getProperty("batchType." + batchType.name(), defaultWeight)) / ((groupSize[0] + groupSize[1]) / 2.0);
+            batchTypeCumulative[batchType.ordinal()] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one batch type must have a weight above zero");
+        }
+
+        welshPercent = Integer.parseInt(prop.getProperty("welshPercent", "15"));
+
+        int mscCount = Integer.parseInt(prop.getProperty("mscCount", "1500"));
+        double mscSkew = Double.parseDouble(prop.getProperty("mscSkew", "1.0"));
+        mscCumulative = new double[mscCount];
+        double cumulative = 0;
+        for (int rank = 0; rank < mscCount; rank++) {
+            cumulative += 1 / Math.pow(rank + 1, mscSkew);
+            mscCumulative[rank] = cumulative;
+        }
+
+        pages = range(prop.getProperty("pages", "1-4"));
+        weight = pair(prop.getProperty("weight", "5.0,4.5"));
+        size = pair(prop.getProperty("size", "0.3,0.1"));
+    }
+
+    /**
+     * @return the default distribution
+     */
+    public static Distribution defaults() {
+        return new Distribution(new Properties());
+    }
+
+    /**
+     * @param file properties file overriding the defaults
+     * @return the distribution
+     * @throws IOException the file can't be read
+     */
+    public static Distribution load(String file) throws IOException {
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            prop.load(input);
+        }
+        return new Distribution(prop);
+    }
+
+    private static int[] range(String value) {
+        String[] parts = StringUtils.split(value, "-");
+        int min = Integer.parseInt(parts[0].trim());
+        int max = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : min;
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid range " + value);
+        }
+        return new int[] { min, max };
+    }
+
+    private static double[] pair(String value) {
+        String[] parts = StringUtils.split(value, ",");
+        return new double[] { Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()) };
+    }
+
+    private static int between(Random random, int[] range) {
+        return range[0] + random.nextInt(range[1] - range[0] + 1);
+    }
+
+    public Random newRandom() {
+        return new Random(seed);
+    }
+
+    public BatchType batchType(Random random) {
+        double pick = random.nextDouble() * batchTypeCumulative[batchTypeCumulative.length - 1];
+        for (int idx = 0; idx < batchTypes.length; idx++) {
+            if (pick < batchTypeCumulative[idx]) {
+                return batchTypes[idx];
+            }
+        }
+        return batchTypes[batchTypes.length - 1];
+    }
+
+    public int presentationPriority(BatchType batchType) {
+        return priorities.get(batchType);
+    }
+
+    /**
+     * @return number of customers in a group of the batch type, 1 if the batch type isn't grouped
+     */
+    public int groupSize(Random random, BatchType batchType) {
+        int[] range = groupSizes.get(batchType);
+        return range == null ? 1 : between(random, range);
+    }
+
+    public boolean isGrouped(BatchType batchType) {
+        return groupSizes.containsKey(batchType);
+    }
+
+    public String lang(Random random) {
+        return random.nextInt(100) < welshPercent ? "W" : "E";
+    }
+
+    public String msc(Random random) {
+        double pick = random.nextDouble() * mscCumulative[mscCumulative.length - 1];
+        int rank = Arrays.binarySearch(mscCumulative, pick);
+        if (rank < 0) {
+            rank = Math.min(-rank - 1, mscCumulative.length - 1);
+        }
+        return String.valueOf(FIRST_MSC + rank);
+    }
+
+    public int pages(Random random) {
+        return between(random, pages);
+    }
+
+    public double weight(int noOfPages) {
+        return round(weight[0] + noOfPages * weight[1]);
+    }
+
+    public double size(int noOfPages) {
+        return round(size[0] + noOfPages * size[1]);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,122 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.univocity.parsers.tsv.TsvWriter;
+import com.univocity.parsers.tsv.TsvWriterSettings;
+
+import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Writes a synthetic DPF file for load testing, with a column for every field named in the AppConfig.
+ * Input columns are filled from generated customers and the columns CalcLocation writes are left empty.
+ * <p>
+ * The selector must be present in the lookup file named in the AppConfig, so that Main loads the matching
+ * production, postage and presentation configuration. The generated MSCs start at 10000.
+ * <p>
+ * Args are 1. Props file, 2. Selector, 3. No of records, 4. Output file, 5. Distribution props file (optional).
+ * @author OSG
+ *
+ */
+public class DpfGenerator {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final AppConfig appConfig = AppConfig.getInstance();
+    private final String[] headers;
+
+    private DpfGenerator() {
+        headers = headers(appConfig);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4 || args.length > 5) {
+            LOGGER.fatal("Args are 1. Props file, 2. Selector, 3. No of records, 4. Output file, 5. Distribution props file (optional).");
+            System.exit(1);
+        }
+        if (!StringUtils.isNumeric(args[2])) {
+            LOGGER.fatal("Invalid character in No of records [{}]", args[2]);
+            System.exit(1);
+        }
+        AppConfig.init(args[0]);
+        Distribution distribution = args.length == 5 ? Distribution.load(args[4]) : Distribution.defaults();
+        int count = Integer.parseInt(args[2]);
+        new DpfGenerator().write(args[3], args[1], count, distribution);
+        LOGGER.info("{} records written to {}", count, args[3]);
+    }
+
+    /**
+     * Column names in the order they are written, duplicates removed.
+     */
+    private static String[] headers(AppConfig appConfig) {
+        Set<String> names = new LinkedHashSet<>(Arrays.asList(
+                appConfig.getAppNameField(), appConfig.getLookupReferenceFieldName(), appConfig.getMailingIdField(),
+                appConfig.getDocumentReference(), appConfig.getSortField(), appConfig.getLanguageFieldName(),
+                appConfig.getStationeryFieldName(), appConfig.getBatchTypeFieldName(), appConfig.getSubBatchTypeFieldName(),
+                appConfig.getFleetNoFieldName(), appConfig.getGroupIdFieldName(), appConfig.getPaperSizeFieldName(),
+                appConfig.getMscFieldName(), appConfig.getName1Field(), appConfig.getName2Field(),
+                appConfig.getAddress1Field(), appConfig.getAddress2Field(), appConfig.getAddress3Field(),
+                appConfig.getAddress4Field(), appConfig.getAddress5Field(), appConfig.getPostCodeField(),
+                appConfig.getDpsField(), appConfig.getMailMarkBarcodeCustomerContent(), appConfig.getNoOfPagesField(),
+                appConfig.getEogField(), appConfig.getWeightAndSizeField(), appConfig.getOuterEnvelope(),
+                appConfig.getMailingProduct(), appConfig.getPresentationPriorityField(),
+                appConfig.getTotalNumberOfPagesInGroupField(), appConfig.getRunDate(),
+                // Written by CalcLocation
+                appConfig.getSiteFieldName(), appConfig.getEightDigitJobIdFieldName(), appConfig.getTenDigitJobIdFieldName(),
+                appConfig.getMailMarkBarcodeContent(), appConfig.getEotField(), appConfig.getChildSequence(),
+                appConfig.getInsertField(), appConfig.getInsertHopperCodeField()));
+        names.remove(null);
+        names.remove("");
+        return names.toArray(new String[names.size()]);
+    }
+
+    private void write(String outputFile, String selectorRef, int count, Distribution distribution) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), BUFFER_SIZE)) {
+            TsvWriterSettings tsvwSettings = new TsvWriterSettings();
+            tsvwSettings.setNullValue("");
+            tsvwSettings.setHeaders(headers);
+            TsvWriter writer = new TsvWriter(bw, tsvwSettings);
+            writer.writeHeaders();
+            Customers.generate(count, selectorRef, distribution, customer -> writeRow(writer, customer));
+            writer.close();
+        }
+    }
+
+    private void writeRow(TsvWriter writer, Customer customer) {
+        int idx = customer.getOriginalIdx();
+        writer.addValue(appConfig.getAppNameField(), "CALCLOCATION");
+        writer.addValue(appConfig.getLookupReferenceFieldName(), customer.getSelectorRef());
+        writer.addValue(appConfig.getMailingIdField(), idx);
+        writer.addValue(appConfig.getDocumentReference(), String.format("DOC%09d", idx));
+        writer.addValue(appConfig.getSortField(), customer.getSortField());
+        writer.addValue(appConfig.getLanguageFieldName(), customer.getLang().name());
+        writer.addValue(appConfig.getStationeryFieldName(), customer.getStationery());
+        writer.addValue(appConfig.getBatchTypeFieldName(), customer.getBatchType().name());
+        writer.addValue(appConfig.getSubBatchTypeFieldName(), customer.getSubBatch());
+        writer.addValue(appConfig.getFleetNoFieldName(), customer.getFleetNo());
+        writer.addValue(appConfig.getGroupIdFieldName(), customer.getGroupId());
+        writer.addValue(appConfig.getPaperSizeFieldName(), customer.getPaperSize());
+        writer.addValue(appConfig.getMscFieldName(), customer.getMsc());
+        writer.addValue(appConfig.getName1Field(), "CUSTOMER " + idx);
+        writer.addValue(appConfig.getAddress1Field(), idx + " HIGH STREET");
+        writer.addValue(appConfig.getAddress2Field(), "SWANSEA");
+        writer.addValue(appConfig.getPostCodeField(), "SA6 7JL");
+        writer.addValue(appConfig.getNoOfPagesField(), customer.getNoOfPages());
+        writer.addValue(appConfig.getWeightAndSizeField(), customer.getWeight() + "|" + customer.getSize());
+        writer.addValue(appConfig.getPresentationPriorityField(), customer.getPresentationPriority());
+        writer.addValue(appConfig.getRunDate(), "01/03/2019");
+        writer.writeValuesToRow();
+    }
+}
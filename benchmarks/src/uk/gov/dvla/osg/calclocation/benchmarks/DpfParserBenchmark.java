@@ -0,0 +1,76 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import uk.gov.dvla.osg.calclocation.main.DpfParser;
+import uk.gov.dvla.osg.calclocation.main.DpfReaderMode;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Times loading and saving a DPF file with each reader. The files are passed in with -p dpf=file1,file2 so that
+ * several data sizes can be compared in one run. Files can be created with DpfGenerator.
+ * Output is written to a temp file.
+ * @author OSG
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class DpfParserBenchmark {
+
+    @Param({ "" })
+    public String dpf;
+
+    @Param({ "UNIVOCITY", "MAPPED", "PARALLEL" })
+    public DpfReaderMode reader;
+
+    private File output;
+
+    /**
+     * A loaded parser for the save benchmark. Retained rows are released by Save, so every invocation loads again.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+        private DpfParser parser;
+        private ArrayList<Customer> customers;
+
+        @Setup(Level.Invocation)
+        public void setup(DpfParserBenchmark benchmark) throws IOException {
+            parser = new DpfParser(benchmark.dpf, benchmark.output.getPath());
+            customers = benchmark.load(parser);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (StringUtils.isBlank(dpf)) {
+            throw new IllegalStateException("Set the input files to benchmark with -p dpf=<file>[,<file>]");
+        }
+        BenchmarkConfig.load();
+        output = File.createTempFile("calclocation", ".dpf");
+        output.deleteOnExit();
+    }
+
+    @Benchmark
+    public ArrayList<Customer> load() throws IOException {
+        return load(new DpfParser(dpf, output.getPath()));
+    }
+
+    private ArrayList<Customer> load(DpfParser parser) throws IOException {
+        return parser.Load(reader);
+    }
+
+    @Benchmark
+    public void save(Loaded loaded) throws IOException {
+        loaded.parser.Save(loaded.customers);
+    }
+}
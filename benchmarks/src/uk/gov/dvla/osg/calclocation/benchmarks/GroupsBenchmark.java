@@ -0,0 +1,67 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.engine.Envelopes;
+import uk.gov.dvla.osg.calclocation.location.LocationCalculator;
+import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
+import uk.gov.dvla.osg.calclocation.methods.TotalPagesInGroup;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Times the end of group and total pages in group passes, separately and as Main runs them over one store.
+ * @author OSG
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class GroupsBenchmark {
+
+    @Param({ "100000", "1000000", "5000000" })
+    public int size;
+
+    private ArrayList<Customer> customers;
+    private CustomerStore store;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        customers = Customers.generate(size, BenchmarkConfig.load());
+        new LocationCalculator().calculate(customers);
+        customers.sort(new CustomerComparatorWithLocation());
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        // EOGs are only ever set, so every invocation starts from a new store
+        store = CustomerStore.of(customers);
+    }
+
+    @Benchmark
+    public CustomerStore endOfGroups() {
+        new CalculateEndOfGroups().calculate(store);
+        return store;
+    }
+
+    @Benchmark
+    public CustomerStore totalPagesInGroup() {
+        new TotalPagesInGroup().calculate(store);
+        return store;
+    }
+
+    @Benchmark
+    public CustomerStore endOfGroupsAndTotalPages() {
+        // Shares the envelopes found with the EOGs, as Main does
+        Envelopes envelopes = new CalculateEndOfGroups().calculate(store);
+        new TotalPagesInGroup().calculate(store, envelopes);
+        return store;
+    }
+}
@@ -0,0 +1,49 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparator;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.location.LocationCalculator;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Times the site calculation from 10k to 5M customers so that the scaling of the group site lookup can be checked.
+ * The customers are in presentation order, as they are when Main runs the calculation.
+ * @author OSG
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class LocationCalculatorBenchmark {
+
+    @Param({ "10000", "100000", "1000000", "5000000" })
+    public int size;
+
+    private ArrayList<Customer> customers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        customers = Customers.generate(size, BenchmarkConfig.load());
+        customers.sort(new CustomerComparator());
+    }
+
+    @Benchmark
+    public void calculateCustomers() {
+        new LocationCalculator().calculate(customers);
+    }
+
+    @Benchmark
+    public CustomerStore calculateStore() {
+        CustomerStore store = CustomerStore.of(customers);
+        new LocationCalculator().calculate(store);
+        return store;
+    }
+}
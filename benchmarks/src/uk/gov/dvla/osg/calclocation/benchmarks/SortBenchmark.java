@@ -0,0 +1,77 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparator;
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.comparators.PackedKeySorter;
+import uk.gov.dvla.osg.calclocation.comparators.ParallelMergeSorter;
+import uk.gov.dvla.osg.calclocation.comparators.SortMode;
+import uk.gov.dvla.osg.calclocation.location.LocationCalculator;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Compares the sort modes for both sort orders used by the engine.
+ * Each invocation sorts a fresh copy of the list in input file order.
+ * The 20M list needs a large heap, so the fork is given 24GB.
+ * @author OSG
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms24g", "-Xmx24g" })
+public class SortBenchmark {
+
+    @Param({ "1000000", "5000000", "20000000" })
+    public int size;
+
+    @Param({ "COMPARATOR", "PACKED_KEY", "PARALLEL" })
+    public SortMode mode;
+
+    @Param({ "WITH_LOCATION", "PRESENTATION" })
+    public String order;
+
+    private ArrayList<Customer> input;
+    private ArrayList<Customer> list;
+    private Comparator<Customer> comparator;
+    private int threads;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        input = Customers.generate(size, BenchmarkConfig.load());
+        // The location sort needs a site on every customer
+        new LocationCalculator().calculate(input);
+        comparator = "PRESENTATION".equals(order) ? new CustomerComparator() : new CustomerComparatorWithLocation();
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        list = new ArrayList<>(input);
+    }
+
+    @Benchmark
+    public ArrayList<Customer> sort() {
+        switch (mode) {
+        case PACKED_KEY:
+            if (!PackedKeySorter.sort(list, comparator)) {
+                Collections.sort(list, comparator);
+            }
+            break;
+        case PARALLEL:
+            ParallelMergeSorter.sort(list, comparator, threads);
+            break;
+        default:
+            Collections.sort(list, comparator);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,75 @@
+package uk.gov.dvla.osg.calclocation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.engine.BatchEngine;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.engine.TrayPacking;
+import uk.gov.dvla.osg.calclocation.location.LocationCalculator;
+import uk.gov.dvla.osg.calclocation.main.RunMetrics;
+import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
+import uk.gov.dvla.osg.calclocation.methods.TotalPagesInGroup;
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Compares the tray packing strategies, timing the batch engine with each and reporting the number
+ * of UK Mail trays packed. The trays counter is the total over the invocations of an iteration,
+ * so is divided by the invocations counter to give the trays per run.
+ * @author OSG
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class TrayPackingBenchmark {
+
+    private static final int TEN_DIGIT_JID = 1000000000;
+    private static final int EIGHT_DIGIT_JID = 10000000;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    @Param({ "GREEDY", "BALANCED" })
+    public TrayPacking trayPacking;
+
+    private ArrayList<Customer> customers;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Trays {
+        public long trays;
+        public long invocations;
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        customers = Customers.generate(size, BenchmarkConfig.load());
+        new LocationCalculator().calculate(customers);
+        customers.sort(new CustomerComparatorWithLocation());
+        CustomerStore store = CustomerStore.of(customers);
+        new CalculateEndOfGroups().calculate(store);
+        new TotalPagesInGroup().calculate(store);
+        store.materialise();
+        customers.stream()
+                 .filter(customer -> BatchType.UNSORTED.equals(customer.getBatchType()))
+                 .forEach(customer -> customer.setMsc("99999"));
+        customers.sort(new CustomerComparatorWithLocation());
+    }
+
+    @Benchmark
+    public ArrayList<Customer> batch(Trays counters) {
+        BatchEngine engine = new BatchEngine(TEN_DIGIT_JID, EIGHT_DIGIT_JID, RunMetrics.disabled(), trayPacking);
+        engine.batch(customers);
+        counters.trays += engine.getTrayCount();
+        counters.invocations++;
+        return customers;
+    }
+}
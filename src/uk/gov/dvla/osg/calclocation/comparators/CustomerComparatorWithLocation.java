@@ -25,7 +25,7 @@ public class CustomerComparatorWithLocation implements Comparator<Customer> {
 		}
 
 		// Next by STATIONERY - stop if this gives a result.
-		int statResult = o1.getStationery().compareTo(o2.getStationery());
+		int statResult = compare(o1.getStationery(), o2.getStationery());
 		if (statResult != 0) {
 			return statResult;
 		}
@@ -40,7 +40,7 @@ public class CustomerComparatorWithLocation implements Comparator<Customer> {
 
 		// Next by SUB_BATCH - stop if this gives a result.
 		if (o1.getSubBatch() != null && o2.getSubBatch() != null) {
-			int subBatchResult = o1.getSubBatch().compareTo(o2.getSubBatch());
+			int subBatchResult = compare(o1.getSubBatch(), o2.getSubBatch());
 			if (subBatchResult != 0) {
 				return subBatchResult;
 			}
@@ -59,7 +59,7 @@ public class CustomerComparatorWithLocation implements Comparator<Customer> {
 		}
 
 		// Next by MSC
-		int mscResult = o1.getMsc().compareTo(o2.getMsc());
+		int mscResult = compare(o1.getMsc(), o2.getMsc());
 		if (mscResult != 0) {
 			return mscResult;
 		}
@@ -69,4 +69,12 @@ public class CustomerComparatorWithLocation implements Comparator<Customer> {
 		int j = o2.getGroupId() != null ? o2.getGroupId() : 0;
 		return i < j ? -1 : (i == j ? 0 : 1);	
 	}
+
+	/**
+	 * Values of the low cardinality columns are shared through the load dictionary, so equal values
+	 * are usually the same instance and don't need comparing character by character.
+	 */
+	private static int compare(String s1, String s2) {
+		return s1 == s2 ? 0 : s1.compareTo(s2);
+	}
 }
@@ -0,0 +1,46 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Sorts customer lists using the sort mode set in the AppConfig.
+ * Every mode is stable and gives the same order as Collections.sort with the comparator.
+ * @author OSG
+ *
+ */
+public class CustomerSorter {
+
+    public static void sort(List<Customer> list, Comparator<Customer> comparator) {
+        AppConfig appConfig = AppConfig.getInstance();
+        switch (appConfig.getSortMode()) {
+        case PACKED_KEY:
+            if (!PackedKeySorter.sort(list, comparator)) {
+                Collections.sort(list, comparator);
+            }
+            break;
+        case PARALLEL:
+            ParallelMergeSorter.sort(list, comparator, appConfig.getSortThreads());
+            break;
+        default:
+            Collections.sort(list, comparator);
+        }
+    }
+
+    /**
+     * The comparators skip presentation priority and sub batch when either value is null, so a list holding
+     * those nulls has no single stable order and has to be sorted in full, by Collections.sort, to match it.
+     */
+    static boolean hasTotalOrder(List<Customer> list) {
+        for (Customer customer : list) {
+            if (customer.getPresentationPriority() == null || customer.getSubBatch() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
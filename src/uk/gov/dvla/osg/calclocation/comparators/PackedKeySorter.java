@@ -0,0 +1,331 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Sorts customers without calling the comparators. Each field in the sort order is turned into one or more codes,
+ * the codes are packed into long keys and an index permutation is radix sorted on the keys. Radix sorting is
+ * stable, so the result is identical to Collections.sort with the matching comparator.
+ * <p>
+ * The low cardinality fields (site, language, stationery, presentation priority and sub batch) are coded by their
+ * position in a sorted dictionary of the field's distinct values. The sort field, fleet number and MSC are coded a
+ * character at a time, so no String is compared, and the group id by its distance from the lowest group id.
+ * @author OSG
+ *
+ */
+public class PackedKeySorter {
+
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private final Customer[] customers;
+    // Sort fields, most significant first
+    private final List<Field> fields = new ArrayList<>();
+
+    private PackedKeySorter(List<Customer> list) {
+        customers = list.toArray(new Customer[list.size()]);
+    }
+
+    /**
+     * Sorts the list into the order of the comparator when it is one that has a packed key.
+     * Presentation priority and sub batch are skipped by the comparators when either value is null,
+     * which can't be expressed as a key, so lists holding nulls are left for the comparator,
+     * as are lists holding the nulls that the comparator can't compare.
+     * @param list customers to sort
+     * @param comparator the required order
+     * @return false if the list was not sorted and the comparator should be used instead
+     */
+    public static boolean sort(List<Customer> list, Comparator<Customer> comparator) {
+        if (!(comparator instanceof CustomerComparatorWithLocation || comparator instanceof CustomerComparator)) {
+            return false;
+        }
+        if (list.size() < 2) {
+            return true;
+        }
+        PackedKeySorter sorter = new PackedKeySorter(list);
+        boolean packed;
+        if (comparator instanceof CustomerComparatorWithLocation) {
+            // LOCATION -> LANGUAGE -> STATIONERY -> PRESENTATION_ORDER -> SUB_BATCH -> SORT_FIELD -> FLEET_NO -> MSC -> GRP_ID
+            packed = sorter.addDictionaryField(Customer::getSite)
+                    && sorter.addDictionaryField(Customer::getLang)
+                    && sorter.addDictionaryField(Customer::getStationery)
+                    && sorter.addDictionaryField(Customer::getPresentationPriority)
+                    && sorter.addDictionaryField(Customer::getSubBatch)
+                    && sorter.addStringField(Customer::getSortField)
+                    && sorter.addStringField(Customer::getFleetNo)
+                    && sorter.addStringField(Customer::getMsc)
+                    && sorter.addIntField(customer -> customer.getGroupId() != null ? customer.getGroupId() : 0);
+        } else {
+            // PRESENTATION_ORDER -> LANGUAGE
+            packed = sorter.addDictionaryField(Customer::getPresentationPriority)
+                    && sorter.addDictionaryField(Customer::getLang);
+        }
+        if (!packed) {
+            return false;
+        }
+        int[] order = sorter.sortedOrder();
+        for (int idx = 0; idx < order.length; idx++) {
+            list.set(idx, sorter.customers[order[idx]]);
+        }
+        return true;
+    }
+
+    /**
+     * Codes a low cardinality field by the position of each value in the sorted list of distinct values.
+     * @param getter the sort field
+     * @return false if a value is null
+     */
+    private <T extends Comparable<? super T>> boolean addDictionaryField(Function<Customer, T> getter) {
+        Map<T, Integer> dictionary = new HashMap<>();
+        for (Customer customer : customers) {
+            T value = getter.apply(customer);
+            if (value == null) {
+                return false;
+            }
+            dictionary.putIfAbsent(value, 0);
+        }
+        List<T> distinct = new ArrayList<>(dictionary.keySet());
+        Collections.sort(distinct);
+        for (int pos = 0; pos < distinct.size(); pos++) {
+            dictionary.put(distinct.get(pos), pos);
+        }
+        int[] positions = new int[customers.length];
+        for (int idx = 0; idx < positions.length; idx++) {
+            positions[idx] = dictionary.get(getter.apply(customers[idx]));
+        }
+        int width = bits(distinct.size() - 1);
+        fields.add(new Field() {
+            @Override
+            public int codes() {
+                return 1;
+            }
+
+            @Override
+            public int width(int code) {
+                return width;
+            }
+
+            @Override
+            public long code(int customer, int code) {
+                return positions[customer];
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Codes a field compared with String.compareTo a character at a time. Each character position has its own range,
+     * from the lowest to the highest character found there, and code 0 for a value that has already ended,
+     * so a value sorts before every longer value that starts with it.
+     * @param getter the sort field
+     * @return false if a value is null
+     */
+    private boolean addStringField(Function<Customer, String> getter) {
+        String[] values = new String[customers.length];
+        int[] lowest = new int[16];
+        int[] highest = new int[16];
+        int longest = 0;
+        int shortest = Integer.MAX_VALUE;
+        for (int idx = 0; idx < values.length; idx++) {
+            String value = getter.apply(customers[idx]);
+            if (value == null) {
+                return false;
+            }
+            values[idx] = value;
+            int length = value.length();
+            if (length > lowest.length) {
+                int size = Math.max(length, lowest.length * 2);
+                lowest = Arrays.copyOf(lowest, size);
+                highest = Arrays.copyOf(highest, size);
+            }
+            for (int pos = 0; pos < length; pos++) {
+                char ch = value.charAt(pos);
+                if (pos >= longest || ch < lowest[pos]) {
+                    lowest[pos] = ch;
+                }
+                if (pos >= longest || ch > highest[pos]) {
+                    highest[pos] = ch;
+                }
+                if (pos >= longest) {
+                    longest = pos + 1;
+                }
+            }
+            shortest = Math.min(shortest, length);
+        }
+        int[] widths = new int[longest];
+        for (int pos = 0; pos < longest; pos++) {
+            // A position every value reaches with the same character can't affect the order
+            widths[pos] = pos < shortest && lowest[pos] == highest[pos] ? 0 : bits(highest[pos] - lowest[pos] + 1);
+        }
+        int[] offsets = lowest;
+        fields.add(new Field() {
+            @Override
+            public int codes() {
+                return widths.length;
+            }
+
+            @Override
+            public int width(int code) {
+                return widths[code];
+            }
+
+            @Override
+            public long code(int customer, int code) {
+                String value = values[customer];
+                return code < value.length() ? value.charAt(code) - offsets[code] + 1 : 0;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Codes an int field by its distance from the lowest value.
+     * @param getter the sort field
+     * @return true
+     */
+    private boolean addIntField(ToIntFunction<Customer> getter) {
+        int[] values = new int[customers.length];
+        int lowest = Integer.MAX_VALUE;
+        int highest = Integer.MIN_VALUE;
+        for (int idx = 0; idx < values.length; idx++) {
+            values[idx] = getter.applyAsInt(customers[idx]);
+            lowest = Math.min(lowest, values[idx]);
+            highest = Math.max(highest, values[idx]);
+        }
+        int offset = lowest;
+        int width = Long.SIZE - Long.numberOfLeadingZeros((long) highest - lowest);
+        fields.add(new Field() {
+            @Override
+            public int codes() {
+                return 1;
+            }
+
+            @Override
+            public int width(int code) {
+                return width;
+            }
+
+            @Override
+            public long code(int customer, int code) {
+                return (long) values[customer] - offset;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return number of bits needed to hold values from 0 to max
+     */
+    private static int bits(int max) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(max);
+    }
+
+    /**
+     * Packs the codes into as few long words as possible, most significant word first.
+     * A code is never split across two words and codes of no width are left out.
+     */
+    private long[][] packKeys() {
+        List<long[]> words = new ArrayList<>();
+        long[] word = new long[customers.length];
+        words.add(word);
+        int bitsLeft = Long.SIZE;
+        for (Field field : fields) {
+            for (int code = 0; code < field.codes(); code++) {
+                int width = field.width(code);
+                if (width == 0) {
+                    continue;
+                }
+                if (width > bitsLeft) {
+                    word = new long[customers.length];
+                    words.add(word);
+                    bitsLeft = Long.SIZE;
+                }
+                for (int idx = 0; idx < word.length; idx++) {
+                    word[idx] = (word[idx] << width) | field.code(idx, code);
+                }
+                bitsLeft -= width;
+            }
+        }
+        return words.toArray(new long[words.size()][]);
+    }
+
+    /**
+     * LSD radix sort of the customer indexes, starting with the least significant word.
+     * Only the digits holding bits that differ between keys are sorted on.
+     * @return customer indexes in sorted order
+     */
+    private int[] sortedOrder() {
+        long[][] words = packKeys();
+        fields.clear();
+        int count = customers.length;
+        int[] order = new int[count];
+        for (int idx = 0; idx < count; idx++) {
+            order[idx] = idx;
+        }
+        int[] orderTemp = new int[count];
+        long[] keys = new long[count];
+        long[] keysTemp = new long[count];
+        int[] buckets = new int[RADIX];
+
+        for (int w = words.length - 1; w >= 0; w--) {
+            long[] word = words[w];
+            words[w] = null;
+            // Bring this word into the current order
+            long differing = 0;
+            for (int idx = 0; idx < count; idx++) {
+                keys[idx] = word[order[idx]];
+                differing |= keys[idx] ^ keys[0];
+            }
+            int highest = Long.SIZE - Long.numberOfLeadingZeros(differing);
+            for (int shift = Long.numberOfTrailingZeros(differing); shift < highest; shift += RADIX_BITS) {
+                Arrays.fill(buckets, 0);
+                for (int idx = 0; idx < count; idx++) {
+                    buckets[(int) ((keys[idx] >>> shift) & (RADIX - 1))]++;
+                }
+                if (buckets[(int) ((keys[0] >>> shift) & (RADIX - 1))] == count) {
+                    // All keys share this digit
+                    continue;
+                }
+                int total = 0;
+                for (int b = 0; b < RADIX; b++) {
+                    int c = buckets[b];
+                    buckets[b] = total;
+                    total += c;
+                }
+                for (int idx = 0; idx < count; idx++) {
+                    int pos = buckets[(int) ((keys[idx] >>> shift) & (RADIX - 1))]++;
+                    keysTemp[pos] = keys[idx];
+                    orderTemp[pos] = order[idx];
+                }
+                long[] swapKeys = keys;
+                keys = keysTemp;
+                keysTemp = swapKeys;
+                int[] swapOrder = order;
+                order = orderTemp;
+                orderTemp = swapOrder;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * A sort field as a sequence of codes, each of a fixed number of bits for every customer.
+     */
+    private interface Field {
+        int codes();
+
+        int width(int code);
+
+        long code(int customer, int code);
+    }
+}
@@ -0,0 +1,110 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Stable merge sort of a list on a fork-join pool. The list is copied to an array, ranges are sorted
+ * in parallel with Arrays.sort and then merged, taking from the left range first when elements are
+ * equal so that the result is the same as Collections.sort. Lists with no single order for the comparator
+ * are left to Collections.sort, as splitting them into ranges can order equal records differently.
+ * @author OSG
+ *
+ */
+public class ParallelMergeSorter {
+
+    // Ranges smaller than this are never split
+    private static final int MIN_RANGE = 8192;
+
+    /**
+     * Sorts the list using up to the given number of threads. Each sort has its own pool,
+     * so sorts running at the same time with different thread counts don't share one.
+     * @param list the list to sort
+     * @param comparator the required order
+     * @param threads size of the fork-join pool
+     */
+    public static void sort(List<Customer> list, Comparator<Customer> comparator, int threads) {
+        if (threads < 2 || list.size() <= MIN_RANGE || !CustomerSorter.hasTotalOrder(list)) {
+            Collections.sort(list, comparator);
+            return;
+        }
+        Customer[] array = list.toArray(new Customer[list.size()]);
+        int range = Math.max(MIN_RANGE, array.length / (threads * 4));
+        Customer[] temp = Arrays.copyOf(array, array.length);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new SortTask<>(array, temp, 0, array.length, comparator, range));
+        } finally {
+            pool.shutdown();
+        }
+        ListIterator<Customer> it = list.listIterator();
+        for (Customer element : array) {
+            it.next();
+            it.set(element);
+        }
+    }
+
+    private static class SortTask<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final T[] array;
+        private final T[] temp;
+        private final int lo;
+        private final int hi;
+        private final Comparator<? super T> comparator;
+        private final int range;
+
+        SortTask(T[] array, T[] temp, int lo, int hi, Comparator<? super T> comparator, int range) {
+            this.array = array;
+            this.temp = temp;
+            this.lo = lo;
+            this.hi = hi;
+            this.comparator = comparator;
+            this.range = range;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= range) {
+                Arrays.sort(array, lo, hi, comparator);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask<>(array, temp, lo, mid, comparator, range),
+                      new SortTask<>(array, temp, mid, hi, comparator, range));
+            merge(mid);
+        }
+
+        /**
+         * Merges the sorted ranges [lo, mid) and [mid, hi), keeping the left element first when equal.
+         */
+        private void merge(int mid) {
+            if (comparator.compare(array[mid - 1], array[mid]) <= 0) {
+                // Already in order
+                return;
+            }
+            System.arraycopy(array, lo, temp, lo, mid - lo);
+            int left = lo;
+            int right = mid;
+            int out = lo;
+            while (left < mid && right < hi) {
+                if (comparator.compare(array[right], temp[left]) < 0) {
+                    array[out++] = array[right++];
+                } else {
+                    array[out++] = temp[left++];
+                }
+            }
+            while (left < mid) {
+                array[out++] = temp[left++];
+            }
+        }
+    }
+}
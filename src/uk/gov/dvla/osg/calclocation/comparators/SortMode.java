@@ -0,0 +1,13 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+/**
+ * How customer lists are sorted, set by the sortMode property in the AppConfig.
+ */
+public enum SortMode {
+    // Collections.sort with the comparator
+    COMPARATOR,
+    // Radix sort on packed keys, falling back to the comparator when a list can't be keyed
+    PACKED_KEY,
+    // Merge sort on a fork-join pool of sortThreads threads
+    PARALLEL
+}
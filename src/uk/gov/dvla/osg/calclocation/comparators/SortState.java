@@ -0,0 +1,98 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Tracks the order a customer list is in and which records have had sort fields changed since it was sorted,
+ * so that later sorts into the same order only have to place the changed records.
+ * @author OSG
+ *
+ */
+public class SortState {
+
+    private Comparator<Customer> order;
+    private boolean totalOrder;
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * Records that a customer's sort fields have changed.
+     * @param idx position of the customer in the list
+     */
+    public void markDirty(int idx) {
+        dirty.set(idx);
+    }
+
+    /**
+     * Records that the list order is no longer known, e.g. after records were added or removed.
+     */
+    public void reset() {
+        order = null;
+        dirty.clear();
+    }
+
+    /**
+     * @return true if the list is in the comparator's order, no records have changed since it was sorted
+     *         and the comparator gives the list a single order, so any sub-list taken in list order is also sorted
+     */
+    public boolean isInOrder(Comparator<Customer> comparator) {
+        return order != null && order.getClass() == comparator.getClass() && totalOrder && dirty.isEmpty();
+    }
+
+    /**
+     * Sorts the list into the comparator's order. When the list is already in that order only the
+     * changed records are sorted, and then merged back into the unchanged ones. Ties are resolved
+     * by list position, which gives the same result as a stable sort of the whole list.
+     * @param list customers to sort
+     * @param comparator the required order
+     */
+    public void sort(List<Customer> list, Comparator<Customer> comparator) {
+        totalOrder = CustomerSorter.hasTotalOrder(list);
+        if (order == null || order.getClass() != comparator.getClass() || !totalOrder) {
+            CustomerSorter.sort(list, comparator);
+        } else if (!dirty.isEmpty()) {
+            if (dirty.cardinality() > list.size() / 2) {
+                CustomerSorter.sort(list, comparator);
+            } else {
+                merge(list, comparator);
+            }
+        }
+        order = comparator;
+        dirty.clear();
+    }
+
+    private void merge(List<Customer> list, Comparator<Customer> comparator) {
+        // Positions of the changed records, sorted stably by the comparator
+        Integer[] changed = dirty.stream().boxed().toArray(Integer[]::new);
+        Arrays.sort(changed, (a, b) -> comparator.compare(list.get(a), list.get(b)));
+
+        Customer[] merged = new Customer[list.size()];
+        int out = 0;
+        int clean = dirty.nextClearBit(0);
+        int next = 0;
+        while (out < merged.length) {
+            boolean takeClean;
+            if (next == changed.length) {
+                takeClean = true;
+            } else if (clean >= list.size()) {
+                takeClean = false;
+            } else {
+                int result = comparator.compare(list.get(clean), list.get(changed[next]));
+                takeClean = result < 0 || (result == 0 && clean < changed[next]);
+            }
+            if (takeClean) {
+                merged[out++] = list.get(clean);
+                clean = dirty.nextClearBit(clean + 1);
+            } else {
+                merged[out++] = list.get(changed[next++]);
+            }
+        }
+        for (int idx = 0; idx < merged.length; idx++) {
+            list.set(idx, merged[idx]);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Packs the envelopes of an MSC into the fewest trays that are all within the tray size and weight limits
+ * and hold at least the UK Mail minimum number of items, without splitting an envelope across trays.
+ * <p>
+ * Trays hold runs of consecutive envelopes, so the fewest trays for the first i envelopes is one more than
+ * the fewest for some earlier j, where envelopes j to i fit in one tray. The j that fit form a window that only
+ * moves forward as i grows: the limits set its start and the minimum volume its end. The smallest count in the
+ * window is kept in a queue, so the whole MSC is solved in a single pass.
+ * <p>
+ * The greedy packing is used instead when no packing meets every limit, e.g. when an MSC holds fewer items
+ * than the minimum volume, or when the time budget for the MSC runs out.
+ * @author OSG
+ *
+ */
+public class BalancedTrayPacker implements TrayPackingStrategy {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // Envelopes between checks of the time budget
+    private static final int BUDGET_CHECK_INTERVAL = 1 << 12;
+
+    private final double maxTraySize;
+    private final double maxTrayWeight;
+    private final int minimumTrayVolume;
+    private final long budgetNanos;
+
+    /**
+     * @param maxTraySize limit on the total size of a tray
+     * @param maxTrayWeight limit on the total weight of a tray
+     * @param minimumTrayVolume fewest items accepted in a tray
+     * @param budgetMillis time allowed to pack one MSC
+     */
+    public BalancedTrayPacker(double maxTraySize, double maxTrayWeight, int minimumTrayVolume, long budgetMillis) {
+        this.maxTraySize = maxTraySize;
+        this.maxTrayWeight = maxTrayWeight;
+        this.minimumTrayVolume = minimumTrayVolume;
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    @Override
+    public int[] pack(Envelopes envelopes) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int count = envelopes.size();
+        if (count == 0) {
+            return null;
+        }
+        // Running totals before each envelope
+        double[] size = new double[count + 1];
+        double[] weight = new double[count + 1];
+        int[] items = new int[count + 1];
+        for (int idx = 0; idx < count; idx++) {
+            size[idx + 1] = size[idx] + envelopes.getSize(idx);
+            weight[idx + 1] = weight[idx] + envelopes.getWeight(idx);
+            items[idx + 1] = items[idx] + envelopes.getNoItems(idx);
+        }
+
+        // Fewest trays for the first i envelopes, -1 when they can't be packed, and where the last tray starts
+        int[] trays = new int[count + 1];
+        int[] lastTrayStart = new int[count + 1];
+        // Candidate tray starts in the window, in order of position with increasing tray counts
+        int[] queue = new int[count + 1];
+        int head = 0;
+        int tail = 0;
+        // Next tray start to offer to the queue, and the first start that keeps the tray within the limits
+        int next = 0;
+        int first = 0;
+        for (int end = 1; end <= count; end++) {
+            if (end % BUDGET_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                LOGGER.debug("Time budget ran out packing {} envelopes, packing greedily", count);
+                return null;
+            }
+            // Starts that leave at least the minimum volume in the tray
+            while (next < end && items[end] - items[next] >= minimumTrayVolume) {
+                if (next == 0 || trays[next] > 0) {
+                    while (tail > head && trays[queue[tail - 1]] >= trays[next]) {
+                        tail--;
+                    }
+                    queue[tail++] = next;
+                }
+                next++;
+            }
+            // Starts that keep the tray within the size and weight limits
+            while (first < end && (size[end] - size[first] > maxTraySize || weight[end] - weight[first] > maxTrayWeight)) {
+                first++;
+            }
+            while (tail > head && queue[head] < first) {
+                head++;
+            }
+            if (tail > head) {
+                trays[end] = trays[queue[head]] + 1;
+                lastTrayStart[end] = queue[head];
+            } else {
+                trays[end] = -1;
+            }
+        }
+        if (trays[count] < 0) {
+            return null;
+        }
+
+        int[] starts = new int[trays[count]];
+        for (int end = count, tray = starts.length - 1; end > 0; end = lastTrayStart[end], tray--) {
+            starts[tray] = lastTrayStart[end];
+        }
+        return withinLimits(envelopes, starts) ? starts : null;
+    }
+
+    /**
+     * The running totals can round differently to adding up each tray, so the trays are checked the way
+     * the greedy packing adds them up before they are used.
+     */
+    private boolean withinLimits(Envelopes envelopes, int[] starts) {
+        for (int tray = 0; tray < starts.length; tray++) {
+            int end = tray + 1 < starts.length ? starts[tray + 1] : envelopes.size();
+            double traySize = 0;
+            double trayWeight = 0;
+            for (int idx = starts[tray]; idx < end; idx++) {
+                traySize += envelopes.getSize(idx);
+                trayWeight += envelopes.getWeight(idx);
+            }
+            if (traySize > maxTraySize || trayWeight > maxTrayWeight) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
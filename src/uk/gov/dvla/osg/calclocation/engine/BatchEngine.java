@@ -3,13 +3,21 @@ package uk.gov.dvla.osg.calclocation.engine;
 import static uk.gov.dvla.osg.common.enums.BatchType.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.comparators.CustomerSorter;
+import uk.gov.dvla.osg.calclocation.comparators.SortState;
 import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.calclocation.main.JobFailedException;
+import uk.gov.dvla.osg.calclocation.main.RunMetrics;
 import uk.gov.dvla.osg.common.classes.Customer;
 import uk.gov.dvla.osg.common.config.*;
 import uk.gov.dvla.osg.common.enums.*;
@@ -24,6 +32,13 @@ import uk.gov.dvla.osg.common.enums.*;
 public class BatchEngine {
 
 	private static final Logger LOGGER = LogManager.getLogger();
+	// UK Mail customers below this are packed on the calling thread
+	private static final int MIN_PARALLEL_CUSTOMERS = 1 << 15;
+	// Tray packing tasks with fewer customers than this are not split further
+	private static final int MIN_TASK_CUSTOMERS = 1 << 12;
+	// Job id chunks per thread. The work per customer is even, the spare chunks let the other threads finish the pass
+	// when one starts late or is descheduled
+	private static final int CHUNKS_PER_THREAD = 4;
 
 	private int eightDigitJid;
 	private int tenDigitJid;
@@ -44,6 +59,13 @@ public class BatchEngine {
 	private EnvelopeLookup envelopeLookup;
 	private PresentationConfiguration presConfig;
 	private ProductionConfiguration prodConfig;
+	private RunMetrics metrics;
+	private int threads;
+	// Packs the trays of each MSC, or null to pack them greedily
+	private TrayPackingStrategy trayPacker;
+	// Envelopes of the UK Mail customers, shared by the MSCs
+	private Envelopes ukMailEnvelopes;
+	private int trayCount;
 	
 	/**
 	 * Instantiates a new batch engine.
@@ -51,7 +73,29 @@ public class BatchEngine {
 	 * @param eightDigitJid the IPW jid
 	 */
 	public BatchEngine(int tenDigitJid, int eightDigitJid) {
+		this(tenDigitJid, eightDigitJid, RunMetrics.disabled());
+	}
+
+	/**
+	 * Instantiates a new batch engine that records the time taken by each phase of batching.
+	 * @param tenDigitJid the RPD jid
+	 * @param eightDigitJid the IPW jid
+	 * @param metrics records the batching phases
+	 */
+	public BatchEngine(int tenDigitJid, int eightDigitJid, RunMetrics metrics) {
+		this(tenDigitJid, eightDigitJid, metrics, AppConfig.getInstance().getTrayPacking());
+	}
+
+	/**
+	 * Instantiates a new batch engine that packs trays with the given strategy.
+	 * @param tenDigitJid the RPD jid
+	 * @param eightDigitJid the IPW jid
+	 * @param metrics records the batching phases
+	 * @param trayPacking how the envelopes of each MSC are packed into trays
+	 */
+	public BatchEngine(int tenDigitJid, int eightDigitJid, RunMetrics metrics, TrayPacking trayPacking) {
 		LOGGER.trace("Starting Batch Engine");
+		this.metrics = metrics;
 		this.eightDigitJid = eightDigitJid;
 		this.tenDigitJid = tenDigitJid;
 
@@ -67,76 +111,165 @@ public class BatchEngine {
 		maxTrayWeight = PostageConfiguration.getInstance().getMaxTrayWeight();
 		ukmBatchTypes = PostageConfiguration.getInstance().getUkmBatchTypes();
 		jidInc = AppConfig.getInstance().getTenDigitJobIdIncrementValue();
+		threads = AppConfig.getInstance().getBatchThreads();
+		if (trayPacking == TrayPacking.BALANCED) {
+			trayPacker = new BalancedTrayPacker(maxTraySize, maxTrayWeight, minimumTrayVolume, 
+					AppConfig.getInstance().getTrayPackingBudgetMs());
+		}
 	}
 
 	public void batch(ArrayList<Customer> customers) {
+		batch(customers, new SortState());
+	}
+
+	/**
+	 * Batches the customers, re-sorting only the customers that change when the list is already in location order.
+	 * @param customers all customers
+	 * @param sortState order of the customer list
+	 */
+	public void batch(ArrayList<Customer> customers, SortState sortState) {
 	    
+		RunMetrics.Stage stage = metrics.start("batch.adjustMultis", customers.size());
 		countMscs(customers);
-		adjustMultis(customers);
-		Collections.sort(customers, new CustomerComparatorWithLocation());
+		adjustMultis(customers, sortState);
+		sortState.sort(customers, new CustomerComparatorWithLocation());
+		stage.close();
 		
+		stage = metrics.start("batch.filter", customers.size());
 		countMscs(customers);
-        filterCustomers(customers);
-        Collections.sort(customers, new CustomerComparatorWithLocation());
+        filterCustomers(customers, sortState);
+        sortState.sort(customers, new CustomerComparatorWithLocation());
+        stage.close();
+
+        stage = metrics.start("batch.ukMailCustomers", customers.size());
+        // UK Mail customers keep the location order of the full list
+        for (Customer customer : customers) {
+            if (ukmBatchTypes.contains(customer.getBatchType())) {
+                ukMailCustomers.add(customer);
+            }
+        }
 
         // Throws indexOutOfBounds if empty - PB 04/06
         if (ukMailCustomers.size() > 0) {
-            Collections.sort(ukMailCustomers, new CustomerComparatorWithLocation());
+            if (!sortState.isInOrder(new CustomerComparatorWithLocation())) {
+                CustomerSorter.sort(ukMailCustomers, new CustomerComparatorWithLocation());
+            }
             countMscs(ukMailCustomers);
         }
+        stage.close();
 		
 		// Process ukMailCustomers
-		int customerIndex = 0;
+		stage = metrics.start("batch.trays", ukMailCustomers.size());
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			setTrays(pool);
+			stage.close();
+			
+			// Added if block, PB - 06/04
+			stage = metrics.start("batch.nonUkMail", nonUkMailCustomers.size());
+			setNonUkMailBatches();
+			stage.close();
+	
+			// Loop through all customers and set JID's, PID & batch sequence
+			stage = metrics.start("batch.jobIds", customers.size());
+			setJobIds(customers, pool);
+			stage.close();
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+		
+	      //ukMailCustomers.stream().filter(c -> c.isEog()).forEach(c -> LOGGER.debug(c.toString()));
+	}
+
+	/**
+	 * Splits the UK Mail customers into trays and batches, one MSC of one transaction type at a time.
+	 * Trays are packed for every MSC first, in parallel when there is a pool, then the batches are set in order
+	 * as the page count of a batch carries over from one MSC to the next.
+	 * @param pool packs the trays, or null to pack them on this thread
+	 */
+	private void setTrays(ForkJoinPool pool) {
+		List<TrayPlan> plans = planTrays();
+		ukMailEnvelopes = Envelopes.of(ukMailCustomers, 0, ukMailCustomers.size());
+		boolean parallel = pool != null && ukMailCustomers.size() >= MIN_PARALLEL_CUSTOMERS && isPartition(plans);
+		if (parallel) {
+			pool.invoke(new PackTask(plans, 0, plans.size()));
+		}
 		pageCount = 0;
+		trayCount = 0;
+		for (TrayPlan plan : plans) {
+			if (!parallel) {
+				plan.pack();
+			}
+			plan.apply();
+		}
+		LOGGER.debug("{} UK Mail customers packed into {} trays", ukMailCustomers.size(), trayCount);
+		ukMailEnvelopes = null;
+	}
+
+	/**
+	 * @return the number of UK Mail trays packed by the last call to batch
+	 */
+	public int getTrayCount() {
+		return trayCount;
+	}
+
+	/**
+	 * Finds the first customer of each MSC of each transaction type.
+	 * @return the MSCs in order
+	 */
+	private List<TrayPlan> planTrays() {
+		List<TrayPlan> plans = new ArrayList<>();
+		int customerIndex = 0;
 		boolean firstCustomer = true;
 		Customer prev = ukMailCustomers.isEmpty() ? null : ukMailCustomers.get(0);
 
 		for (Customer customer : ukMailCustomers) {
-			batchMax = getBatchMax(customer.getFullBatchType(), customer.getPaperSize());
 			boolean changeOfMsc = !customer.getMsc().equals(prev.getMsc());
-			int endIndex = 0;
-			try {
-			endIndex = mscLookup.get(customer.getTransactionID()).getItemCount() + customerIndex;
-			} catch (Exception ex) {
-			  LOGGER.debug(customer.toString());
-			  System.exit(1);
-			}
-			if (firstCustomer) {
-				customer.setSob();
-				ArrayList<Tray> trays = setTraysForMsc(customerIndex, endIndex);
-				adjustTrays(trays);
+			if (firstCustomer || changeOfMsc || !prev.equals(customer)) {
+				int endIndex = 0;
+				try {
+				endIndex = mscLookup.get(customer.getTransactionID()).getItemCount() + customerIndex;
+				} catch (Exception ex) {
+				  LOGGER.debug(customer.toString());
+				  throw new JobFailedException("No MSC counts for transaction " + customer.getTransactionID(), ex);
+				}
+				int batchMax = getBatchMax(customer.getFullBatchType(), customer.getPaperSize());
+				// NEW BATCH on the first customer and when the Stationery or Transaction Type changes,
+				// otherwise the next MSC carries on the batch of the previous one
+				boolean newBatch = firstCustomer || !prev.equals(customer);
+				plans.add(new TrayPlan(customerIndex, endIndex, batchMax, newBatch));
 				firstCustomer = false;
-			} else if (changeOfMsc && prev.equals(customer)) {
-				// Next MSC, Same Transaction Type
-				ArrayList<Tray> trays = setTraysForMsc(customerIndex, endIndex);
-				adjustTrays(trays);
-			} else if (changeOfMsc && !prev.equals(customer)) {
-				// NEW BATCH
-				pageCount = 0;
-				customer.setSob();
-				// Next MSC, different Transaction Type
-				ArrayList<Tray> trays = setTraysForMsc(customerIndex, endIndex);
-				adjustTrays(trays);
-			} else if (!changeOfMsc && !prev.equals(customer)) {
-			    // Same MSC, different Stationery or Transaction Type
-                pageCount = 0;
-                customer.setSob();
-                ArrayList<Tray> trays = setTraysForMsc(customerIndex, endIndex);
-                adjustTrays(trays);
-			} else {
-				// Same MSC, Same Batch Type -> do nothing
 			}
 
 			// End of Loop - next customer
 			prev = customer;
 			customerIndex++;
 		}
-		
-		// Added if block, PB - 06/04
+		return plans;
+	}
+
+	/**
+	 * MSCs can only be packed in parallel when each customer belongs to exactly one of them.
+	 */
+	private boolean isPartition(List<TrayPlan> plans) {
+		int next = 0;
+		for (TrayPlan plan : plans) {
+			if (plan.startIndex != next || plan.endIndex <= plan.startIndex) {
+				LOGGER.debug("MSC counts don't partition the UK Mail customers at {}, packing trays sequentially", plan.startIndex);
+				return false;
+			}
+			next = plan.endIndex;
+		}
+		return next == ukMailCustomers.size();
+	}
+
+	private void setNonUkMailBatches() {
 		// Loop through nonUkMailCustomers if not empty
 		if (!nonUkMailCustomers.isEmpty()) {
-			firstCustomer = true;
-			prev = nonUkMailCustomers.get(0);
+			boolean firstCustomer = true;
+			Customer prev = nonUkMailCustomers.get(0);
 			pageCount = 0;
 			
 			for (Customer customer : nonUkMailCustomers) {
@@ -156,12 +289,74 @@ public class BatchEngine {
 				prev = customer;
 			}
 		}
+	}
 
-		// Loop through all customers and set JID's, PID & batch sequence
+	/**
+	 * Sets the JID, PID and batch sequence of every customer, starting a new batch at each SOB.
+	 * With a pool, the list is split into chunks and the SOBs in each chunk counted in parallel.
+	 * A prefix sum of the counts gives the values at the start of each chunk, and the chunks are then set in parallel.
+	 * @param customers all customers
+	 * @param pool sets the chunks, or null to set every customer on this thread
+	 */
+	private void setJobIds(ArrayList<Customer> customers, ForkJoinPool pool) {
+		if (pool == null || customers.size() < MIN_PARALLEL_CUSTOMERS) {
+			tenDigitJid = setJobIds(customers, 0, customers.size(), 1, 0, tenDigitJid);
+			return;
+		}
+		int chunks = threads * CHUNKS_PER_THREAD;
+		int[] bounds = new int[chunks + 1];
+		for (int chunk = 0; chunk <= chunks; chunk++) {
+			bounds[chunk] = (int) ((long) customers.size() * chunk / chunks);
+		}
+		// Number of SOBs and the position of the last SOB in each chunk
+		int[] sobCount = new int[chunks];
+		int[] lastSob = new int[chunks];
+		forEachChunk(pool, chunks, chunk -> {
+			lastSob[chunk] = -1;
+			for (int idx = bounds[chunk]; idx < bounds[chunk + 1]; idx++) {
+				if (customers.get(idx).isSob()) {
+					sobCount[chunk]++;
+					lastSob[chunk] = idx;
+				}
+			}
+		});
+		// Values at the start of each chunk
+		int[] pids = new int[chunks];
+		int[] batchSequences = new int[chunks];
+		int[] jids = new int[chunks];
 		int pid = 1;
 		int batchSequence = 0;
-		
-		for (Customer customer : customers) {
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			pids[chunk] = pid;
+			batchSequences[chunk] = batchSequence;
+			jids[chunk] = tenDigitJid;
+			pid = lastSob[chunk] < 0 ? pid + bounds[chunk + 1] - bounds[chunk] : bounds[chunk + 1] - lastSob[chunk] + 1;
+			batchSequence += sobCount[chunk];
+			tenDigitJid += sobCount[chunk] * jidInc;
+		}
+		forEachChunk(pool, chunks, chunk -> 
+			setJobIds(customers, bounds[chunk], bounds[chunk + 1], pids[chunk], batchSequences[chunk], jids[chunk]));
+	}
+
+	/**
+	 * Runs the action for each chunk on the pool and waits for them all, rethrowing anything an action threw.
+	 */
+	private static void forEachChunk(ForkJoinPool pool, int chunks, IntConsumer action) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int current = chunk;
+			tasks.add(pool.submit(() -> action.accept(current)));
+		}
+		tasks.forEach(ForkJoinTask::join);
+	}
+
+	/**
+	 * Sets the JID, PID and batch sequence of a range of customers.
+	 * @return the ten digit JID after the last customer
+	 */
+	private int setJobIds(ArrayList<Customer> customers, int from, int to, int pid, int batchSequence, int tenDigitJid) {
+		for (int idx = from; idx < to; idx++) {
+			Customer customer = customers.get(idx);
 			if (customer.isSob()) {
 				pid = 1;
 				batchSequence++;
@@ -175,162 +370,321 @@ public class BatchEngine {
 			
 			pid++;
 		}
-		
-	      //ukMailCustomers.stream().filter(c -> c.isEog()).forEach(c -> LOGGER.debug(c.toString()));
+		return tenDigitJid;
 	}
 
 	/**
-	 * Loop throuh all customers in the given range, ensuring that they are within the limits of trayWeight and traySize. 
+	 * Loop throuh all envelopes of an MSC, ensuring that they are within the limits of trayWeight and traySize. 
 	 * When limits are reached a new tray is started. 
-	 * When the batchMax is reached a new batch and new tray is started. 
 	 * Note - changing trays when a limit is reached could lead to a tray being under the minimum volume required by UK Mail. 
-	 * This scenario is handled in the adjustTrays method.
-	 * @param startIndex - first customer with MSC
-	 * @param endIndex - final customer with MSC
-	 * @return - all customers for the range divided into trays
+	 * This scenario is handled in the balanceTrays method.
+	 * Trays only depend on the envelopes of the MSC, batches are set afterwards by setBatchesForMsc.
+	 * @param envelopes - envelopes with the MSC
+	 * @return - position of the first envelope in each tray, the first tray is left empty when the first envelope is over the limits
 	 */
-	private ArrayList<Tray> setTraysForMsc(int startIndex, int endIndex) {
+	private int[] setTraysForMsc(Envelopes envelopes) {
 
-	    
-		ArrayList<Tray> trays = new ArrayList<>();
+		int[] trayStarts = new int[envelopes.size() + 1];
+		int numberOfTrays = 1;
 		// NEW MSC start fresh tray
-		Tray tray = new Tray();
-		
-		List<Group> envelopes = new ArrayList<>();
-		Group group = new Group();
+		double traySize = 0;
+		double trayWeight = 0;
 		
-		for (Customer customer : ukMailCustomers.subList(startIndex, endIndex)) {
-		    group.add(customer);
-		    if (customer.isEog()) {
-		        envelopes.add(group);
-		        group = new Group();
-		    }
+		for (int idx = 0; idx < envelopes.size(); idx++) {
+			if (envelopes.getSize(idx) + traySize > maxTraySize
+					|| envelopes.getWeight(idx) + trayWeight > maxTrayWeight) {
+				// Tray limits exceeded - start a new tray
+				trayStarts[numberOfTrays++] = idx;
+				traySize = 0;
+				trayWeight = 0;
+			}
+			if (trayStarts[numberOfTrays - 1] == idx) {
+				ukMailCustomers.get(envelopes.getStart(idx)).setSot();
+			}
+			traySize += envelopes.getSize(idx);
+			trayWeight += envelopes.getWeight(idx);
 		}
-		
-		for (Group customer : envelopes) {
-			if (customer.getNoOfPages() + pageCount <= batchMax) {
-				// Same Batch - check if weight and size would put tray over limits
-				if (customer.getSize() + tray.getSize() > maxTraySize
-						|| customer.getWeight() + tray.getWeight() > maxTrayWeight) {
-					// Tray limits exceeded - start a new tray
-					trays.add(tray);
-					tray = new Tray(customer);
-				} else {
-					// Within limits so add to current tray
-					tray.addItem(customer);
-				}
-				pageCount += customer.getNoOfPages();
+		return Arrays.copyOf(trayStarts, numberOfTrays);
+	}
+
+	/**
+	 * Sets the SOT markers for the trays chosen by the tray packing strategy.
+	 * @param envelopes - envelopes with the MSC
+	 * @param trayStarts - position of the first envelope in each tray
+	 */
+	private void setTraysForMsc(Envelopes envelopes, int[] trayStarts) {
+		for (int trayStart : trayStarts) {
+			ukMailCustomers.get(envelopes.getStart(trayStart)).setSot();
+		}
+	}
+
+	/**
+	 * Loop through all envelopes of an MSC, adding their pages to the page count.
+	 * When the batchMax is reached a new batch is started. 
+	 * @param envelopes - envelopes with the MSC
+	 * @param batchMax - batch max of the first customer with the MSC
+	 */
+	private void setBatchesForMsc(Envelopes envelopes, int batchMax) {
+		for (int idx = 0; idx < envelopes.size(); idx++) {
+			int envelopePages = envelopes.getNoOfPages(idx);
+			if (envelopePages + pageCount <= batchMax) {
+				// Same Batch
+				pageCount += envelopePages;
 			} else {
-				// New Batch = set customer as SOB and start next tray
-				pageCount = customer.getNoOfPages();
-				customer.setSob();
-				if (customer.getSize() + tray.getSize() > maxTraySize
-						|| customer.getWeight() + tray.getWeight() > maxTrayWeight) {
-					// Tray limits exceeded - start a new tray
-					trays.add(tray);
-					tray = new Tray(customer);
-				} else {
-					// Within limits so add to current tray
-					tray.addItem(customer);
-				}
+				// New Batch = set customer as SOB
+				pageCount = envelopePages;
+				ukMailCustomers.get(envelopes.getStart(idx)).setSob();
 			}
 		}
-		// Add final tray to list
-		trays.add(tray);
-		return trays;
 	}
 
 	/**
 	 * If any trays are below the minimum volume accepted by UK Mail, 
-	 * then all envelopes are put into a temporary list which is divided up according to the number of trays that were passed into the method. 
+	 * then all envelopes are treated as one run of customers which is divided up according to the number of trays that were passed into the method. 
 	 * The result is that all items are evenly spread across all trays without going over the tray limits. 
 	 * A side-effect of this way of splitting documents is that SOT and SOB markers may move out of position, 
-	 * so extra checks are utilised that move markers to the start of the relevant tray and page-counts are re-started to keep batches synchronised.
-	 * @param trays Trays for same mailsort code.
+	 * SOT markers are moved here and SOB markers by adjustTrays once the batches have been set.
+	 * @param envelopes - envelopes with the MSC
+	 * @param trayStarts - position of the first envelope in each tray
+	 * @return the number of items in each balanced tray, or 0 if the trays didn't need balancing
 	 */
-	private void adjustTrays(ArrayList<Tray> trays) {
+	private int balanceTrays(Envelopes envelopes, int[] trayStarts) {
 
-	    int numberOfTrays = trays.size();
+	    int numberOfTrays = trayStarts.length;
 		boolean adjust = false;
 
 		// check if any Tray is below minimum size
-		for (Tray tray : trays) {
-			if (tray.getNoItems() < minimumTrayVolume) {
+		for (int trayIdx = 0; trayIdx < trayStarts.length; trayIdx++) {
+			if (envelopes.getNoItems(trayStarts[trayIdx], trayEnd(envelopes, trayStarts, trayIdx)) < minimumTrayVolume) {
 				adjust = true;
 			}
 		}
 
-		if (adjust) {
-			double totalWeight = 0;
-			double totalSize = 0;
-			double totalItems = 0;
+		if (!adjust) {
+			return 0;
+		}
+		double totalWeight = 0;
+		double totalSize = 0;
+		double totalItems = 0;
+
+		for (int trayIdx = 0; trayIdx < trayStarts.length; trayIdx++) {
+			int trayEnd = trayEnd(envelopes, trayStarts, trayIdx);
+			// Tray totals are added up envelope by envelope, as they were packed
+			double trayWeight = 0;
+			double traySize = 0;
+			for (int idx = trayStarts[trayIdx]; idx < trayEnd; idx++) {
+				trayWeight += envelopes.getWeight(idx);
+				traySize += envelopes.getSize(idx);
+			}
+			totalWeight += trayWeight;
+			totalSize += traySize;
+			totalItems += envelopes.getNoItems(trayStarts[trayIdx], trayEnd);
+		}
 
-			for (Tray tray : trays) {
-				totalWeight += tray.getWeight();
-				totalSize += tray.getSize();
-				totalItems += tray.getNoItems();
+		double averageWeight = totalWeight / numberOfTrays;
+		double averageSize = totalSize / numberOfTrays;
+		// If averages are above limit we need an extra tray :(
+		if (averageWeight > maxTrayWeight || averageSize > maxTraySize) numberOfTrays++;
+		// We use ceiling to avoid the possiblity of having a tray with 1 item
+		int averageItems = (int) Math.ceil(totalItems / numberOfTrays);
+
+		// Weight & Size OK, so set SOT according to the computed average and clear it on every other customer
+		int first = envelopes.getStart(0);
+		int last = envelopes.getStart(envelopes.size());
+		for (int idx = first; idx < last; idx++) {
+			if ((idx - first) % averageItems == 0) {
+				ukMailCustomers.get(idx).setSot();
+			} else {
+				ukMailCustomers.get(idx).clearSot();
 			}
+		}
+		return averageItems;
+	}
 
-			double averageWeight = totalWeight / numberOfTrays;
-			double averageSize = totalSize / numberOfTrays;
-			// If averages are above limit we need an extra tray :(
-			if (averageWeight > maxTrayWeight || averageSize > maxTraySize) numberOfTrays++;
-			// We use ceiling to avoid the possiblity of having a tray with 1 item
-			int averageItems = (int) Math.ceil(totalItems / numberOfTrays);
-
-			// Weight & Size OK, so unpack all trays into temp array
-			ArrayList<Customer> temp = new ArrayList<>();
-			trays.forEach(tray -> temp.addAll(tray.getList()));
-			// clear SOT markers for every customer
-			temp.forEach(customer -> customer.clearSot());
-			// Set SOT according to the computed average
-			int counter = 0;
-			for (Customer customer : temp) {
-				if (counter % averageItems == 0) {
-					customer.setSot();
-				}
+	/**
+	 * Moves SOB markers to the start of their tray, so that a batch never starts part way through a tray. 
+	 * When the trays were balanced the markers move to the start of the balanced tray, 
+	 * otherwise page-counts are re-started to keep batches synchronised.
+	 * @param envelopes - envelopes with the MSC
+	 * @param trayStarts - position of the first envelope in each tray
+	 * @param averageItems the number of items in each balanced tray, or 0 if the trays weren't balanced
+	 */
+	private void adjustTrays(Envelopes envelopes, int[] trayStarts, int averageItems) {
+
+		if (averageItems > 0) {
+			int first = envelopes.getStart(0);
+			int last = envelopes.getStart(envelopes.size());
+			for (int idx = first; idx < last; idx++) {
+				Customer customer = ukMailCustomers.get(idx);
 				if (customer.isSob()) {
 					// Tray has SOB mid-way through, move to start of tray
 					customer.clearSob();
-					int sot = counter - (counter % averageItems);
-					temp.get(sot).setSob();
+					int counter = idx - first;
+					ukMailCustomers.get(first + counter - (counter % averageItems)).setSob();
 				}
-				counter++;
 			}
 		} else {
 			// Trays don't need adjusting - check for SOB
 			boolean restartPageCount = false;
 
-			for (int trayIdx = 0; trayIdx < trays.size(); trayIdx++) {
-				for (Customer customer : trays.get(trayIdx).getList()) {
+			for (int trayIdx = 0; trayIdx < trayStarts.length; trayIdx++) {
+				int trayEnd = trayEnd(envelopes, trayStarts, trayIdx);
+				int first = envelopes.getStart(trayStarts[trayIdx]);
+				int last = envelopes.getStart(trayEnd);
+				for (int idx = first; idx < last; idx++) {
+					Customer customer = ukMailCustomers.get(idx);
 					if (customer.isSob()) {
 						restartPageCount = true;
 						// Move sob to start of tray
 						customer.clearSob();
-						trays.get(trayIdx).getList().get(0).setSob();
+						ukMailCustomers.get(first).setSob();
 						// Re-set Page Count
 						pageCount = 0;
 					}
 				}
 				if (restartPageCount) {
 					// New batch was started - add the customers in all trays to the page count
-					for (Customer c : trays.get(trayIdx).getList()) {
-						pageCount += c.getNoOfPages();
-					}
+					pageCount += envelopes.getNoOfPages(trayStarts[trayIdx], trayEnd);
 				}
 			}
 		}
 	}
 
+	/**
+	 * @return position of the envelope after the last envelope of the tray
+	 */
+	private static int trayEnd(Envelopes envelopes, int[] trayStarts, int trayIdx) {
+		return trayIdx + 1 < trayStarts.length ? trayStarts[trayIdx + 1] : envelopes.size();
+	}
+
+	/**
+	 * The customers of one MSC of one transaction type. 
+	 * Packing trays only reads and sets the customers of the MSC, so MSCs can be packed in any order. 
+	 * Setting batches carries the page count over from the previous MSC, so MSCs are applied in order.
+	 */
+	private class TrayPlan {
+		private final int startIndex;
+		private final int endIndex;
+		private final int batchMax;
+		private final boolean newBatch;
+		private Envelopes envelopes;
+		private int[] trayStarts;
+		private int averageItems;
+
+		TrayPlan(int startIndex, int endIndex, int batchMax, boolean newBatch) {
+			this.startIndex = startIndex;
+			this.endIndex = endIndex;
+			this.batchMax = batchMax;
+			this.newBatch = newBatch;
+		}
+
+		/**
+		 * Packs the envelopes into trays and sets the SOT markers.
+		 * Trays chosen by the tray packing strategy are already within every limit so are never balanced.
+		 */
+		void pack() {
+			envelopes = ukMailEnvelopes.range(startIndex, endIndex);
+			if (envelopes == null) {
+				// The MSC starts part way through an envelope of the previous MSC
+				envelopes = Envelopes.of(ukMailCustomers, startIndex, endIndex);
+			}
+			trayStarts = trayPacker != null ? trayPacker.pack(envelopes) : null;
+			if (trayStarts != null) {
+				setTraysForMsc(envelopes, trayStarts);
+				averageItems = 0;
+			} else {
+				trayStarts = setTraysForMsc(envelopes);
+				averageItems = balanceTrays(envelopes, trayStarts);
+			}
+		}
+
+		/**
+		 * Sets the SOB markers and carries the page count on to the next MSC.
+		 */
+		void apply() {
+			if (newBatch) {
+				pageCount = 0;
+				ukMailCustomers.get(startIndex).setSob();
+			}
+			setBatchesForMsc(envelopes, batchMax);
+			adjustTrays(envelopes, trayStarts, averageItems);
+			trayCount += countTrays();
+			// Release the trays once applied
+			envelopes = null;
+			trayStarts = null;
+		}
+
+		/**
+		 * Balanced trays hold averageItems items each, apart from the last, and greedy packing can leave the first tray empty.
+		 */
+		private int countTrays() {
+			int items = envelopes.getNoItems(0, envelopes.size());
+			if (averageItems > 0) {
+				return (items + averageItems - 1) / averageItems;
+			}
+			int count = 0;
+			for (int trayIdx = 0; trayIdx < trayStarts.length; trayIdx++) {
+				count += trayStarts[trayIdx] < trayEnd(envelopes, trayStarts, trayIdx) ? 1 : 0;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Packs a range of MSCs, splitting it in two by number of customers until each half is small enough
+	 * or holds a single MSC. A very large MSC ends up in a task of its own.
+	 */
+	private class PackTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<TrayPlan> plans;
+		private final int from;
+		private final int to;
+
+		PackTask(List<TrayPlan> plans, int from, int to) {
+			this.plans = plans;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int first = plans.get(from).startIndex;
+			int last = plans.get(to - 1).endIndex;
+			if (to - from == 1 || last - first <= MIN_TASK_CUSTOMERS) {
+				for (int idx = from; idx < to; idx++) {
+					plans.get(idx).pack();
+				}
+				return;
+			}
+			// First MSC starting in the second half of the customers, keeping at least one MSC each side
+			int middle = first + (last - first) / 2;
+			int lo = from + 1;
+			int hi = to - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (plans.get(mid).startIndex < middle) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			invokeAll(new PackTask(plans, from, lo), new PackTask(plans, lo, to));
+		}
+	}
+
 	/**
 	 * Set weight and size for multi customer when above tray minimum. 
 	 * Set multis to Sorted (unsorted if sorted is ignored for Selector), 
 	 * when there are not enough envelopes (EOG's) to meet the minimumTrayVolume for Uk Mail.
 	 * @param allCustomers
+	 * @param sortState marks the customers whose sort fields are changed
 	 */
-	private void adjustMultis(ArrayList<Customer> allCustomers) {
+	private void adjustMultis(ArrayList<Customer> allCustomers, SortState sortState) {
 		
-		for (Customer customer : allCustomers) {
+		for (int idx = 0; idx < allCustomers.size(); idx++) {
+			Customer customer = allCustomers.get(idx);
 			double weight = 0;
 			double size = 0;
 			// Multi Customer - volume OK to send via UK Mail
@@ -359,6 +713,7 @@ public class BatchEngine {
 
 				}
 			} else if (MULTI.equals(customer.getBatchType())) {
+			    sortState.markDirty(idx);
 			    // Multi Customer - volume below tray limit so send as Single instead
 				// Sorted if MailMark product & switched on in config file - PB 24/04/18
 				if (!prodConfig.getSite(FullBatchType.valueOf(SORTED + customer.getLang().name())).equals("X")) {
@@ -411,15 +766,18 @@ public class BatchEngine {
 	}
 
 	/**
-	 * Divides the original input into lists of Uk Mail customers and Non UK Mail customers. 
+	 * Collects the Non UK Mail customers, UK Mail customers are taken from the sorted list afterwards. 
 	 * If number for the MSC is below the minimum volume, the batch type is changed to UnSorted.
 	 * @param allCustomers
+	 * @param sortState marks the customers whose sort fields are changed
 	 */
-	private void filterCustomers(ArrayList<Customer> allCustomers) {
-		for (Customer customer : allCustomers) {
+	private void filterCustomers(ArrayList<Customer> allCustomers, SortState sortState) {
+		for (int idx = 0; idx < allCustomers.size(); idx++) {
+			Customer customer = allCustomers.get(idx);
 			// if (processUkMail && ukmBatchTypes.contains(customer.getBatchType())) {
 			if (ukmBatchTypes.contains(customer.getBatchType())) {
 				if (mscLookup.get(customer.getTransactionID()).getGroupCount() < minimumTrayVolume) {
+					sortState.markDirty(idx);
 					// MSCS are under minimum tray volume so move to unsorted list
 					customer.setBatchType(BatchType.UNSORTED);
 					customer.setProduct(Product.UNSORTED);
@@ -434,13 +792,9 @@ public class BatchEngine {
 					} else {
 						customer.setEnvelope(prodConfig.getEnvelopeWelshUnsorted());
 					}
-					if (ukmBatchTypes.contains(BatchType.UNSORTED)) {
-					    ukMailCustomers.add(customer);
-					} else {
+					if (!ukmBatchTypes.contains(BatchType.UNSORTED)) {
 					    nonUkMailCustomers.add(customer);
 					}
-				} else {
-					ukMailCustomers.add(customer);
 				}
 			} else {
 				nonUkMailCustomers.add(customer);
@@ -0,0 +1,302 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import java.util.Arrays;
+import java.util.List;
+
+import uk.gov.dvla.osg.calclocation.pipeline.Stage;
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+import uk.gov.dvla.osg.common.enums.FullBatchType;
+import uk.gov.dvla.osg.common.enums.Language;
+import uk.gov.dvla.osg.common.enums.Site;
+
+/**
+ * Column based copy of the properties the engine stages work on, held in primitive arrays in list order.
+ * Stages read and update the columns directly and the changes are copied back onto the customers
+ * by calling materialise once the stages have finished. A store built before a sort is put into the new order
+ * with reorder, rather than built again from the customers.
+ * @author OSG
+ *
+ */
+public class CustomerStore {
+
+    // Flag bits
+    public static final byte SOB = 1;
+    public static final byte SOT = 2;
+    public static final byte EOG = 4;
+
+    // Stored in place of a null group id
+    public static final int NO_GROUP = Integer.MIN_VALUE;
+
+    // Change bits - used to write back only the columns that were updated, flags use their own bit
+    private static final byte CHANGED_SITE = 8;
+    private static final byte CHANGED_TPIG = 16;
+
+    private static final Site[] SITES = Site.values();
+    private static final Language[] LANGUAGES = Language.values();
+    private static final BatchType[] BATCH_TYPES = BatchType.values();
+    private static final FullBatchType[] FULL_BATCH_TYPES = FullBatchType.values();
+
+    private final Customer[] customers;
+    private final int count;
+
+    private final int[] pages;
+    private final int[] groupId;
+    private final int[] totalPagesInGroup;
+    private final double[] weight;
+    private final double[] size;
+    private final byte[] flags;
+    private final byte[] lang;
+    private final byte[] batchType;
+    private final byte[] fullBatchType;
+    private final byte[] site;
+    private final byte[] changed;
+
+    private CustomerStore(int count) {
+        this.count = count;
+        customers = new Customer[count];
+        pages = new int[count];
+        groupId = new int[count];
+        totalPagesInGroup = new int[count];
+        weight = new double[count];
+        size = new double[count];
+        flags = new byte[count];
+        lang = new byte[count];
+        batchType = new byte[count];
+        fullBatchType = new byte[count];
+        site = new byte[count];
+        changed = new byte[count];
+    }
+
+    /**
+     * Copies the engine properties of the customers into a new store.
+     * SOT is only ever set by the batch engine, so the SOT flag starts clear.
+     * @param list customers in the order the stages will process them
+     * @return the store
+     */
+    public static CustomerStore of(List<Customer> list) {
+        CustomerStore store = new CustomerStore(list.size());
+        int idx = 0;
+        for (Customer customer : list) {
+            store.customers[idx] = customer;
+            store.pages[idx] = customer.getNoOfPages();
+            store.groupId[idx] = customer.getGroupId() != null ? customer.getGroupId() : NO_GROUP;
+            store.totalPagesInGroup[idx] = customer.getTotalPagesInGroup();
+            store.weight[idx] = customer.getWeight();
+            store.size[idx] = customer.getSize();
+            store.flags[idx] = (byte) ((customer.isSob() ? SOB : 0) | (customer.isEog() ? EOG : 0));
+            store.lang[idx] = ordinal(customer.getLang());
+            store.batchType[idx] = ordinal(customer.getBatchType());
+            store.fullBatchType[idx] = ordinal(customer.getFullBatchType());
+            store.site[idx] = ordinal(customer.getSite());
+            idx++;
+        }
+        return store;
+    }
+
+    /**
+     * Copies the columns into the order of the list, after the customers have been sorted. The properties are
+     * not read from the customers again and changes not yet materialised are kept.
+     * @param list the customers of this store in their new order
+     * @return a store in list order
+     * @throws IllegalArgumentException the list holds customers that are not in this store
+     */
+    public CustomerStore reorder(List<Customer> list) {
+        if (list.size() != count) {
+            throw new IllegalArgumentException("Store holds " + count + " customers, list has " + list.size());
+        }
+        // Position in this store of each customer, by original index
+        int[] positions = new int[count];
+        Arrays.fill(positions, -1);
+        for (int idx = 0; idx < count; idx++) {
+            int originalIdx = customers[idx].getOriginalIdx();
+            if (originalIdx >= 0 && originalIdx < count) {
+                positions[originalIdx] = idx;
+            }
+        }
+        CustomerStore store = new CustomerStore(count);
+        int idx = 0;
+        for (Customer customer : list) {
+            int originalIdx = customer.getOriginalIdx();
+            int from = originalIdx >= 0 && originalIdx < count ? positions[originalIdx] : -1;
+            if (from < 0 || customers[from] != customer) {
+                throw new IllegalArgumentException("Customer " + originalIdx + " is not in the store");
+            }
+            store.customers[idx] = customer;
+            store.pages[idx] = pages[from];
+            store.groupId[idx] = groupId[from];
+            store.totalPagesInGroup[idx] = totalPagesInGroup[from];
+            store.weight[idx] = weight[from];
+            store.size[idx] = size[from];
+            store.flags[idx] = flags[from];
+            store.lang[idx] = lang[from];
+            store.batchType[idx] = batchType[from];
+            store.fullBatchType[idx] = fullBatchType[from];
+            store.site[idx] = site[from];
+            store.changed[idx] = changed[from];
+            idx++;
+        }
+        return store;
+    }
+
+    private static byte ordinal(Enum<?> value) {
+        return value != null ? (byte) value.ordinal() : -1;
+    }
+
+    /**
+     * Copies the columns that have been updated back onto the customers.
+     */
+    public void materialise() {
+        for (int idx = 0; idx < count; idx++) {
+            materialise(idx);
+        }
+    }
+
+    /**
+     * Copying back as a pipeline stage, so each customer is updated in the same pass as the stages that change it.
+     * @return the stage
+     */
+    public Stage materialiseStage() {
+        return Stage.perRecord("materialise", this::materialise);
+    }
+
+    private void materialise(int idx) {
+        if (changed[idx] == 0) {
+            return;
+        }
+        Customer customer = customers[idx];
+        if ((changed[idx] & EOG) != 0 && isEog(idx)) {
+            customer.setEog();
+        }
+        if ((changed[idx] & SOB) != 0) {
+            if (isSob(idx)) {
+                customer.setSob();
+            } else {
+                customer.clearSob();
+            }
+        }
+        if ((changed[idx] & SOT) != 0) {
+            if (isSot(idx)) {
+                customer.setSot();
+            } else {
+                customer.clearSot();
+            }
+        }
+        if ((changed[idx] & CHANGED_SITE) != 0) {
+            customer.setSite(SITES[site[idx]].name());
+        }
+        if ((changed[idx] & CHANGED_TPIG) != 0) {
+            customer.setTotalPagesInGroup(totalPagesInGroup[idx]);
+        }
+        changed[idx] = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Customer getCustomer(int idx) {
+        return customers[idx];
+    }
+
+    public int getNoOfPages(int idx) {
+        return pages[idx];
+    }
+
+    public boolean hasGroupId(int idx) {
+        return groupId[idx] != NO_GROUP;
+    }
+
+    /**
+     * @return the group id, or NO_GROUP when the customer is a single
+     */
+    public int getGroupId(int idx) {
+        return groupId[idx];
+    }
+
+    public int getTotalPagesInGroup(int idx) {
+        return totalPagesInGroup[idx];
+    }
+
+    public void setTotalPagesInGroup(int idx, int tpig) {
+        totalPagesInGroup[idx] = tpig;
+        changed[idx] |= CHANGED_TPIG;
+    }
+
+    public double getWeight(int idx) {
+        return weight[idx];
+    }
+
+    public double getSize(int idx) {
+        return size[idx];
+    }
+
+    public Language getLang(int idx) {
+        return lang[idx] < 0 ? null : LANGUAGES[lang[idx]];
+    }
+
+    public BatchType getBatchType(int idx) {
+        return batchType[idx] < 0 ? null : BATCH_TYPES[batchType[idx]];
+    }
+
+    public FullBatchType getFullBatchType(int idx) {
+        return fullBatchType[idx] < 0 ? null : FULL_BATCH_TYPES[fullBatchType[idx]];
+    }
+
+    /**
+     * @return the name of the site as set on the customer, or null if not yet calculated
+     */
+    public String getSite(int idx) {
+        return site[idx] < 0 ? null : SITES[site[idx]].name();
+    }
+
+    /**
+     * @param value name of the site, in either case as Customer.setSite takes it
+     */
+    public void setSite(int idx, String value) {
+        site[idx] = ordinal(Site.valueOf(value.toUpperCase()));
+        changed[idx] |= CHANGED_SITE;
+    }
+
+    public boolean isEog(int idx) {
+        return (flags[idx] & EOG) != 0;
+    }
+
+    public void setEog(int idx) {
+        setFlag(idx, EOG);
+    }
+
+    public boolean isSob(int idx) {
+        return (flags[idx] & SOB) != 0;
+    }
+
+    public void setSob(int idx) {
+        setFlag(idx, SOB);
+    }
+
+    public void clearSob(int idx) {
+        clearFlag(idx, SOB);
+    }
+
+    public boolean isSot(int idx) {
+        return (flags[idx] & SOT) != 0;
+    }
+
+    public void setSot(int idx) {
+        setFlag(idx, SOT);
+    }
+
+    public void clearSot(int idx) {
+        clearFlag(idx, SOT);
+    }
+
+    private void setFlag(int idx, byte flag) {
+        flags[idx] |= flag;
+        changed[idx] |= flag;
+    }
+
+    private void clearFlag(int idx, byte flag) {
+        flags[idx] &= ~flag;
+        changed[idx] |= flag;
+    }
+}
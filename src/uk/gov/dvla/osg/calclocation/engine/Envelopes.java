@@ -0,0 +1,173 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Envelopes held as ranges of the sorted customer list rather than as lists of customers.
+ * An envelope runs up to and including an EOG customer, and customers after the last EOG are left out.
+ * The index is built in one pass and shared by the stages that work an envelope at a time,
+ * with range giving the envelopes of part of the list without another pass.
+ * Pages are kept as running totals so the pages of any run of envelopes are found by subtraction.
+ * Sizes and weights are kept per envelope and added up in order by the tray packing, as totals from
+ * subtracting running totals can round differently.
+ * @author OSG
+ *
+ */
+public class Envelopes {
+
+    // Position in the customer list of the first customer of each envelope, and of the customer after the last envelope
+    private final int[] starts;
+    // Pages in the envelopes before each envelope
+    private final int[] pagesBefore;
+    private final double[] size;
+    private final double[] weight;
+    // First envelope and number of envelopes of this range of the index
+    private final int offset;
+    private final int count;
+
+    private Envelopes(int count) {
+        starts = new int[count + 1];
+        pagesBefore = new int[count + 1];
+        size = new double[count];
+        weight = new double[count];
+        offset = 0;
+        this.count = count;
+    }
+
+    private Envelopes(Envelopes index, int offset, int count) {
+        starts = index.starts;
+        pagesBefore = index.pagesBefore;
+        size = index.size;
+        weight = index.weight;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    /**
+     * Finds the envelopes of the customers in the store, once the EOGs have been calculated.
+     * @param store customers in list order
+     * @return the envelopes
+     */
+    public static Envelopes of(CustomerStore store) {
+        return build(0, store.size(), store::isEog, store::getNoOfPages, store::getSize, store::getWeight);
+    }
+
+    /**
+     * Finds the envelopes of a range of the customer list.
+     * @param customers sorted customers
+     * @param startIndex first customer of the range
+     * @param endIndex after the final customer of the range
+     * @return the envelopes
+     */
+    public static Envelopes of(List<Customer> customers, int startIndex, int endIndex) {
+        return build(startIndex, endIndex, 
+                idx -> customers.get(idx).isEog(), 
+                idx -> customers.get(idx).getNoOfPages(), 
+                idx -> customers.get(idx).getSize(), 
+                idx -> customers.get(idx).getWeight());
+    }
+
+    private static Envelopes build(int startIndex, int endIndex, IntPredicate eog, IntUnaryOperator pages, 
+            IntToDoubleFunction size, IntToDoubleFunction weight) {
+        int count = 0;
+        for (int idx = startIndex; idx < endIndex; idx++) {
+            if (eog.test(idx)) {
+                count++;
+            }
+        }
+        Envelopes envelopes = new Envelopes(count);
+        envelopes.starts[0] = startIndex;
+        int envelope = 0;
+        int pageCount = 0;
+        for (int idx = startIndex; envelope < count; idx++) {
+            pageCount += pages.applyAsInt(idx);
+            if (eog.test(idx)) {
+                int start = envelopes.starts[envelope];
+                if (idx == start) {
+                    envelopes.size[envelope] = size.applyAsDouble(idx);
+                    envelopes.weight[envelope] = weight.applyAsDouble(idx);
+                } else {
+                    // Summed the same way as the envelope totals have always been, to give identical trays
+                    envelopes.size[envelope] = IntStream.rangeClosed(start, idx).mapToDouble(size).sum();
+                    envelopes.weight[envelope] = IntStream.rangeClosed(start, idx).mapToDouble(weight).sum();
+                }
+                envelope++;
+                envelopes.starts[envelope] = idx + 1;
+                envelopes.pagesBefore[envelope] = pageCount;
+            }
+        }
+        return envelopes;
+    }
+
+    /**
+     * The envelopes of part of the customer list, sharing this index.
+     * @param startIndex first customer of the range
+     * @param endIndex after the final customer of the range
+     * @return the envelopes that lie within the range, 
+     * or null when an envelope starts before the range and runs into it, so the range has to be indexed on its own
+     */
+    public Envelopes range(int startIndex, int endIndex) {
+        int first = Arrays.binarySearch(starts, offset, offset + count + 1, startIndex);
+        if (first < 0) {
+            return null;
+        }
+        int last = Arrays.binarySearch(starts, first, offset + count + 1, endIndex);
+        if (last < 0) {
+            // Leave out the envelope that runs past the end of the range
+            last = -last - 2;
+        }
+        return new Envelopes(this, first, last - first);
+    }
+
+    /**
+     * @return the number of envelopes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param envelope position of the envelope, or size() for the end of the last envelope
+     * @return position in the customer list of the first customer of the envelope
+     */
+    public int getStart(int envelope) {
+        return starts[offset + envelope];
+    }
+
+    public int getNoItems(int envelope) {
+        return getNoItems(envelope, envelope + 1);
+    }
+
+    /**
+     * @return the number of customers in envelopes from up to but not including to
+     */
+    public int getNoItems(int from, int to) {
+        return starts[offset + to] - starts[offset + from];
+    }
+
+    public int getNoOfPages(int envelope) {
+        return getNoOfPages(envelope, envelope + 1);
+    }
+
+    /**
+     * @return the number of pages in envelopes from up to but not including to
+     */
+    public int getNoOfPages(int from, int to) {
+        return pagesBefore[offset + to] - pagesBefore[offset + from];
+    }
+
+    public double getSize(int envelope) {
+        return size[offset + envelope];
+    }
+
+    public double getWeight(int envelope) {
+        return weight[offset + envelope];
+    }
+}
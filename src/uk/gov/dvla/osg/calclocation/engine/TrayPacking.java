@@ -0,0 +1,11 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+/**
+ * How BatchEngine packs the envelopes of each MSC into trays, set by the trayPacking property in the AppConfig.
+ */
+public enum TrayPacking {
+    // Fill each tray until the size or weight limit is reached, then spread the items evenly when a tray is under the minimum volume
+    GREEDY,
+    // Fewest trays that are all within the limits and at or above the minimum volume, see BalancedTrayPacker
+    BALANCED
+}
@@ -0,0 +1,17 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+/**
+ * Splits the envelopes of one MSC into trays, keeping the envelopes in order.
+ * BatchEngine packs trays greedily when no strategy is set, or when the strategy finds no packing.
+ * Strategies are called for several MSCs at once, so must be thread safe.
+ * @author OSG
+ *
+ */
+public interface TrayPackingStrategy {
+
+    /**
+     * @param envelopes the envelopes of one MSC, in order
+     * @return the position of the first envelope of each tray, or null to pack the MSC greedily
+     */
+    int[] pack(Envelopes envelopes);
+}
@@ -4,8 +4,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import uk.gov.dvla.osg.common.classes.Customer;
-
 
 public abstract class AbstractBatchType {
 	
@@ -51,7 +49,7 @@ public abstract class AbstractBatchType {
 		return tally;
 	}
 	
-	public abstract void addCustomer(Customer customer);
+	public abstract void addCustomer(int groupId);
 	public abstract void calculate();
-	public abstract String getSite(Customer customer);
+	public abstract String getSite(int groupId);
 }
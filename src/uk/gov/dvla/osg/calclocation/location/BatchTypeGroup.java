@@ -1,16 +1,21 @@
 package uk.gov.dvla.osg.calclocation.location;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-import uk.gov.dvla.osg.common.classes.Customer;
+import java.util.Arrays;
 
 
 public class BatchTypeGroup extends AbstractBatchType {
-	
-	private List<Integer> groupIDs = new ArrayList<Integer>();
-	
+
+	// Marks an empty slot, every int group ID fits in a long without reaching it
+	private static final long EMPTY = Long.MIN_VALUE;
+	// Fibonacci hashing multiplier, spreads sequential group IDs across the table
+	private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+	// Group ID of every customer added, sorted by calculate to find the groups going to FF
+	private int[] groupIDs = new int[16];
+	// Distinct group IDs going to FF, in an open addressing hash table built by calculate
+	private long[] ffGroups = { EMPTY, EMPTY };
+	private int shift = 31;
+
 	public BatchTypeGroup(String site) {
 		super(site);
 	}
@@ -18,18 +23,51 @@ public class BatchTypeGroup extends AbstractBatchType {
 	@Override
 	public void calculate() {
 		numberToFf = (int) (totalCustomers * percentToFf);
-		Collections.sort(groupIDs);
-		groupIDs = groupIDs.subList(0, numberToFf);
+		Arrays.sort(groupIDs, 0, totalCustomers);
+		// The lowest numberToFf IDs go to FF, a group's customers are counted once each but its ID is only stored once
+		int distinct = 0;
+		for (int idx = 0; idx < numberToFf; idx++) {
+			if (idx == 0 || groupIDs[idx] != groupIDs[idx - 1]) {
+				groupIDs[distinct++] = groupIDs[idx];
+			}
+		}
+		// At most half full, so a lookup finds an ID or an empty slot within a few probes
+		int size = 2;
+		while (size < distinct * 2) {
+			size <<= 1;
+		}
+		ffGroups = new long[size];
+		Arrays.fill(ffGroups, EMPTY);
+		shift = Integer.numberOfLeadingZeros(size) + 1;
+		for (int idx = 0; idx < distinct; idx++) {
+			ffGroups[slot(groupIDs[idx])] = groupIDs[idx];
+		}
+		groupIDs = null;
 	}
 
 	@Override
-	public void addCustomer(Customer customer) {
+	public void addCustomer(int groupId) {
+		if (totalCustomers == groupIDs.length) {
+			groupIDs = Arrays.copyOf(groupIDs, totalCustomers * 2);
+		}
+		groupIDs[totalCustomers] = groupId;
 		this.totalCustomers++;
-		groupIDs.add(customer.getGroupId());
 	}
 
 	@Override
-	public String getSite(Customer customer) {
-		return groupIDs.contains(customer.getGroupId()) ? "F" : "M";
+	public String getSite(int groupId) {
+		return ffGroups[slot(groupId)] == groupId ? "F" : "M";
+	}
+
+	/**
+	 * @return the slot holding the group ID, or the empty slot where it would be added
+	 */
+	private int slot(int groupId) {
+		int mask = ffGroups.length - 1;
+		int idx = (groupId * HASH_MULTIPLIER) >>> shift;
+		while (ffGroups[idx] != EMPTY && ffGroups[idx] != groupId) {
+			idx = (idx + 1) & mask;
+		}
+		return idx;
 	}
 }
@@ -1,7 +1,5 @@
 package uk.gov.dvla.osg.calclocation.location;
 
-import uk.gov.dvla.osg.common.classes.Customer;
-
 public class BatchTypeSingle extends AbstractBatchType {
 	
 	public BatchTypeSingle(String site) {
@@ -14,12 +12,12 @@ public class BatchTypeSingle extends AbstractBatchType {
 	}
 
 	@Override
-	public void addCustomer(Customer customer) {
+	public void addCustomer(int groupId) {
 		this.totalCustomers++;
 	}
 
 	@Override
-	public String getSite(Customer customer) {
+	public String getSite(int groupId) {
 		if (tally < numberToFf) {
 			increaseCount();
 			return "F";
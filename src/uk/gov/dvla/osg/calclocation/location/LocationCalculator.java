@@ -6,6 +6,7 @@ import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
 import uk.gov.dvla.osg.common.classes.Customer;
 import uk.gov.dvla.osg.common.enums.FullBatchType;
 
@@ -15,11 +16,24 @@ public class LocationCalculator {
 	
 	private final Map<FullBatchType, AbstractBatchType> batchMap = BatchMapFactory.newInstance();
 
+	/**
+	 * Calculates the sites of customers that have no store, e.g. in the benchmarks. A job calculates them on the store
+	 * it goes on to use for the groups.
+	 * @param customers customers in presentation order
+	 */
 	public void calculate(List<Customer> customers) {
+		CustomerStore store = CustomerStore.of(customers);
+		calculate(store);
+		store.materialise();
+	}
+
+	public void calculate(CustomerStore store) {
 		LOGGER.trace("Count Customers...");
 		
 		// Count how many customers there are for each batch type
-		customers.forEach(customer -> batchMap.get(customer.getFullBatchType()).addCustomer(customer));
+		for (int idx = 0; idx < store.size(); idx++) {
+			batchMap.get(store.getFullBatchType(idx)).addCustomer(store.getGroupId(idx));
+		}
 		LOGGER.trace("Calculate Number To Ff...");
 		
 		// Loop through all batch types and have them calculate the number of customers to each site
@@ -27,7 +41,9 @@ public class LocationCalculator {
 		LOGGER.trace("Set Sites...");
 		
 		// Sites are switched when the cut off is reached
-		customers.forEach(customer -> customer.setSite(batchMap.get(customer.getFullBatchType()).getSite(customer)));
+		for (int idx = 0; idx < store.size(); idx++) {
+			store.setSite(idx, batchMap.get(store.getFullBatchType(idx)).getSite(store.getGroupId(idx)));
+		}
 	}
 
 }
@@ -1,11 +1,13 @@
 package uk.gov.dvla.osg.calclocation.main;
 
 import java.io.*;
+import java.util.EnumSet;
 import java.util.Properties;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.calclocation.comparators.SortMode;
+import uk.gov.dvla.osg.calclocation.engine.TrayPacking;
 
 /**
  * Holds names of the document properties fields and
@@ -14,8 +16,6 @@ import org.apache.logging.log4j.Logger;
  */
 public class AppConfig {
 	
-	private static final Logger LOGGER = LogManager.getLogger();
-	
 	private String documentReference, lookupReferenceFieldName, languageFieldName, stationeryFieldName,
 			batchTypeFieldName, subBatchTypeFieldName, fleetNoFieldName, groupIdFieldName, paperSizeFieldName,
 			mscFieldName, sortField, noOfPagesField, name1Field, name2Field, address1Field, address2Field,
@@ -32,20 +32,39 @@ public class AppConfig {
 
 	private int tenDigitJobIdIncrementValue;
 	private String presentationPriorityField;
+	private boolean retainInputRows;
+	private SortMode sortMode;
+	private int sortThreads;
+	private int batchThreads;
+	private TrayPacking trayPacking;
+	private long trayPackingBudgetMs;
+	private boolean runMetrics;
+	private boolean fuseStages;
+	private DpfReaderMode dpfReader;
+	private int loadThreads;
+	private DpfWriterMode dpfWriter;
+	private ArchiveMode archiveMode;
+	private boolean archiveOverlapped;
+	private String configBundle;
+	private EnumSet<CheckpointStage> checkpoints;
 	  /******************************************************************************************
 	  *              SINGLETON PATTERN
 	  ******************************************************************************************/
 	 private static String filename;
-
-	 private static class SingletonHelper {
-	     private static final AppConfig INSTANCE = new AppConfig();
-	 }
+	 private static volatile AppConfig instance;
 
 	 public static AppConfig getInstance() {
 	     if (StringUtils.isBlank(filename)) {
 	         throw new RuntimeException("Application Configuration not initialised before use");
 	     }
-	     return SingletonHelper.INSTANCE;
+	     if (instance == null) {
+	         synchronized (AppConfig.class) {
+	             if (instance == null) {
+	                 instance = new AppConfig();
+	             }
+	         }
+	     }
+	     return instance;
 	 }
 
 	 public static void init(String file) throws RuntimeException {
@@ -59,6 +78,24 @@ public class AppConfig {
 	         throw new RuntimeException("Application Configuration has already been initialised");
 	     }
 	 }
+
+	 /**
+	  * Loads the configuration from a file, replacing any configuration already loaded.
+	  * Used by the daemon, which runs each job with the properties file passed to it.
+	  */
+	 public static synchronized void reload(String file) throws RuntimeException {
+	     if (!new File(file).isFile()) {
+	         throw new RuntimeException("Application Configuration File " + file + " does not exist on filepath.");
+	     }
+	     String previous = filename;
+	     filename = file;
+	     try {
+	         instance = new AppConfig();
+	     } catch (RuntimeException ex) {
+	         filename = previous;
+	         throw ex;
+	     }
+	 }
 	 /*****************************************************************************************/
 	private AppConfig() {
 
@@ -66,8 +103,7 @@ public class AppConfig {
 		try (InputStream input = new FileInputStream(filename)) {
 			prop.load(input);
 		} catch (IOException ex) {
-			LOGGER.fatal("Unable to load Application Configuration from file - [{}] {}", filename, ex.getMessage());
-			System.exit(1);
+			throw new JobFailedException("Unable to load Application Configuration from file - [" + filename + "] " + ex.getMessage(), ex);
 		}
 		
 		lookupReferenceFieldName = prop.getProperty("lookupReferenceFieldName");
@@ -122,6 +158,29 @@ public class AppConfig {
 		tenDigitJobIdIncrementValue = Integer.valueOf(prop.getProperty("tenDigitJobIdIncrementValue"));
 		presentationPriorityField = prop.getProperty("presentationPriorityField");
 		runDate = prop.getProperty("runDate");
+		retainInputRows = Boolean.parseBoolean(prop.getProperty("retainInputRows"));
+		sortMode = SortMode.valueOf(prop.getProperty("sortMode", SortMode.PACKED_KEY.name()));
+		sortThreads = Integer.parseInt(prop.getProperty("sortThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		batchThreads = Integer.parseInt(prop.getProperty("batchThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		trayPacking = TrayPacking.valueOf(prop.getProperty("trayPacking", TrayPacking.GREEDY.name()));
+		trayPackingBudgetMs = Long.parseLong(prop.getProperty("trayPackingBudgetMs", "100"));
+		runMetrics = Boolean.parseBoolean(prop.getProperty("runMetrics"));
+		fuseStages = Boolean.parseBoolean(prop.getProperty("fuseStages", "true"));
+		dpfReader = DpfReaderMode.valueOf(prop.getProperty("dpfReader", DpfReaderMode.UNIVOCITY.name()));
+		loadThreads = Integer.parseInt(prop.getProperty("loadThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		DpfWriterMode defaultWriter = dpfReader == DpfReaderMode.UNIVOCITY ? DpfWriterMode.TSV_WRITER : DpfWriterMode.SPLICE;
+		dpfWriter = DpfWriterMode.valueOf(prop.getProperty("dpfWriter", defaultWriter.name()));
+		archiveMode = ArchiveMode.valueOf(prop.getProperty("archiveMode", ArchiveMode.COPY.name()));
+		// Only overlaps writing the archive with writing the output, Save still waits for the archive
+		archiveOverlapped = Boolean.parseBoolean(prop.getProperty("archiveOverlapped"));
+		configBundle = prop.getProperty("configBundle");
+		// Comma separated stages to checkpoint after, e.g. load,location,groups
+		checkpoints = EnumSet.noneOf(CheckpointStage.class);
+		for (String stage : StringUtils.split(prop.getProperty("checkpoints", ""), ',')) {
+			if (StringUtils.isNotBlank(stage)) {
+				checkpoints.add(CheckpointStage.of(stage));
+			}
+		}
 	}
 	
 	public String getMailingIdField() {
@@ -332,4 +391,64 @@ public class AppConfig {
 		return runDate;
 	}
 
+	public boolean isRetainInputRows() {
+		return retainInputRows;
+	}
+
+	public SortMode getSortMode() {
+		return sortMode;
+	}
+
+	public int getSortThreads() {
+		return sortThreads;
+	}
+
+	public int getBatchThreads() {
+		return batchThreads;
+	}
+
+	public TrayPacking getTrayPacking() {
+		return trayPacking;
+	}
+
+	public long getTrayPackingBudgetMs() {
+		return trayPackingBudgetMs;
+	}
+
+	public boolean isRunMetrics() {
+		return runMetrics;
+	}
+
+	public boolean isFuseStages() {
+		return fuseStages;
+	}
+
+	public DpfReaderMode getDpfReader() {
+		return dpfReader;
+	}
+
+	public int getLoadThreads() {
+		return loadThreads;
+	}
+
+	public DpfWriterMode getDpfWriter() {
+		return dpfWriter;
+	}
+
+	public ArchiveMode getArchiveMode() {
+		return archiveMode;
+	}
+
+	public boolean isArchiveOverlapped() {
+		return archiveOverlapped;
+	}
+
+	public String getConfigBundle() {
+		return configBundle;
+	}
+
+	public boolean isCheckpoint(CheckpointStage stage) {
+		return checkpoints.contains(stage);
+	}
+
 }
@@ -0,0 +1,13 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * How the archive copy of the output DPF is made when Log4J is set to TRACE, set by the archiveMode property in the AppConfig.
+ */
+public enum ArchiveMode {
+    // Utils.archiveDpf copies the output file once it has been written
+    COPY,
+    // The archive is written alongside the output in the same pass
+    TEE,
+    // As TEE, with the archive gzipped as it is written
+    TEE_GZIP
+}
@@ -0,0 +1,175 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the archive copy of the output DPF, optionally gzipped and optionally overlapped with the writing of the
+ * primary output. A failure to write the archive is thrown to the writer, from write if it is still writing or from close.
+ * <p>
+ * Overlapping only moves the archive, and its compression, onto a second thread that runs alongside the writer.
+ * It doesn't shorten the run beyond that, as close waits for the thread to finish, so the archive is complete once
+ * Save returns. Leaving it to finish after the run would either keep the JVM alive just the same or cut the archive
+ * short, and in daemon mode it would still be writing when the next job opens the same archive file.
+ * @author OSG
+ *
+ */
+class ArchiveOutputStream extends OutputStream {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Chunks waiting for the archive thread, bounds the memory held when the archive falls behind
+    private static final int QUEUE_CAPACITY = 64;
+    // How often a writer blocked on a full queue checks that the archive thread is still running
+    private static final long OFFER_TIMEOUT_MS = 100;
+    // Queued by close to stop the archive thread
+    private static final byte[] END = new byte[0];
+
+    private final String file;
+    private final OutputStream out;
+    // Null unless overlapped
+    private final BlockingQueue<byte[]> queue;
+    private final Thread drainer;
+    // Set by the archive thread when it fails, it then discards the rest of the archive
+    private volatile Throwable failure;
+    private boolean closed;
+
+    /**
+     * @param file the archive file
+     * @param gzip compress the archive as it is written
+     * @param overlapped write the archive on its own thread, alongside the writer
+     * @throws IOException unable to create the archive file
+     */
+    ArchiveOutputStream(String file, boolean gzip, boolean overlapped) throws IOException {
+        this.file = file;
+        OutputStream fos = new FileOutputStream(file);
+        out = gzip ? new GZIPOutputStream(fos, BUFFER_SIZE) : new BufferedOutputStream(fos, BUFFER_SIZE);
+        if (overlapped) {
+            queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            drainer = new Thread(this::drain, "dpf-archive");
+            // Close waits for it, so it only outlives the run if the writer has already failed
+            drainer.setDaemon(true);
+            drainer.start();
+        } else {
+            queue = null;
+            drainer = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Archive " + file + " is closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        if (queue == null) {
+            out.write(b, off, len);
+        } else {
+            // The caller reuses its buffer, so the archive thread gets a copy
+            enqueue(Arrays.copyOfRange(b, off, off + len));
+        }
+    }
+
+    /**
+     * Closes the archive. When overlapped this waits for the archive thread to write the remaining chunks
+     * and close the file.
+     * @throws IOException the archive could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (queue == null) {
+            out.close();
+            LOGGER.trace("Archive written to: {}", file);
+            return;
+        }
+        enqueue(END);
+        try {
+            drainer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for archive " + file, ex);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Queues a chunk for the archive thread. Gives up with the thread's failure if the thread stops,
+     * rather than blocking on a queue that nothing is draining.
+     */
+    private void enqueue(byte[] chunk) throws IOException {
+        checkFailure();
+        try {
+            while (!queue.offer(chunk, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+                if (!drainer.isAlive()) {
+                    throw new IOException("Archive thread for " + file + " has stopped");
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing archive " + file, ex);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw new IOException("Unable to write archive " + file, cause);
+        }
+    }
+
+    /**
+     * Runs on the archive thread, writing queued chunks until close queues END.
+     * After a failure the queue is still drained so that the writer sees the failure rather than a full queue.
+     */
+    private void drain() {
+        try {
+            byte[] chunk;
+            while ((chunk = queue.take()) != END) {
+                if (failure == null) {
+                    try {
+                        out.write(chunk);
+                    } catch (IOException | RuntimeException ex) {
+                        failed(ex);
+                    }
+                }
+            }
+            if (failure == null) {
+                out.close();
+                LOGGER.trace("Archive written to: {}", file);
+            }
+        } catch (Throwable ex) {
+            failed(ex);
+        }
+    }
+
+    private void failed(Throwable ex) {
+        LOGGER.error("Unable to write archive {} : {}", file, ex.getMessage());
+        failure = ex;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Already failed
+        }
+    }
+}
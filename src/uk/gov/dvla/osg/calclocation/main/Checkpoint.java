@@ -0,0 +1,405 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+import uk.gov.dvla.osg.common.enums.Product;
+
+/**
+ * Binary copy of the customers taken after one of the expensive stages of a job, so that a job that fails in a later
+ * stage can be run again from the checkpoint rather than from parsing the input file.
+ * <p>
+ * A checkpoint records the length and CRC32 checksum of the properties file, the input file and the configuration
+ * files the job had loaded, and is only read back while all of them still match. A job checksums each of its files once,
+ * in Sources, however many checkpoints it writes or reads.
+ * <p>
+ * Layout: magic, version, a CRC32 of everything after it, stage, the source files (path, length, checksum),
+ * the number of customers, then the customers in list order. The checksum is filled in once the customers are written.
+ * Values of the low cardinality columns are written once and referred to by their position after that,
+ * so customers read back share one String instance per value as they do after a load.
+ * @author OSG
+ *
+ */
+class Checkpoint {
+
+    // "CLCP"
+    private static final int MAGIC = 0x434C4350;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Shared value written in place of null
+    private static final int NULL_VALUE = -1;
+    // Magic and version come before the checksum
+    private static final int CHECKSUM_POSITION = 2 * Integer.BYTES;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Writes the customers to a temporary file that replaces the checkpoint once complete,
+     * so a job that fails while writing never leaves a partial checkpoint behind.
+     * @param file the checkpoint file
+     * @param stage the stage the customers have completed
+     * @param customers customers in their current order
+     * @param sources the files the customers were produced from
+     * @throws IOException unable to read a source file or write the checkpoint
+     */
+    static void write(String file, CheckpointStage stage, List<Customer> customers, Sources sources) throws IOException {
+        File temp = new File(file + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream checkpoint = Files.newOutputStream(temp.toPath())) {
+            DataOutputStream header = new DataOutputStream(checkpoint);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(checkpoint, crc), BUFFER_SIZE));
+            out.writeUTF(stage.name());
+            out.writeInt(sources.paths.size());
+            for (String path : sources.paths) {
+                long[] checksum = sources.checksum(path);
+                out.writeUTF(path);
+                out.writeLong(checksum[0]);
+                out.writeLong(checksum[1]);
+            }
+            out.writeInt(customers.size());
+            Writer writer = new Writer(out);
+            for (Customer customer : customers) {
+                writer.write(customer);
+            }
+            out.flush();
+        }
+        try (RandomAccessFile checksum = new RandomAccessFile(temp, "rw")) {
+            checksum.seek(CHECKSUM_POSITION);
+            checksum.writeLong(crc.getValue());
+        }
+        Files.move(temp.toPath(), Paths.get(file), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the customers back from a checkpoint.
+     * @param file the checkpoint file
+     * @param stage the stage the checkpoint is expected to have been taken after
+     * @param sources files the job is being run with, which must be sources of the checkpoint.
+     *          The checksums of the checkpoint's source files are kept in it for the checkpoints the job writes after.
+     * @return the customers, in the order they were written
+     * @throws IOException unable to read the checkpoint, it was taken after another stage or from other files,
+     *          or one of its source files has changed since
+     */
+    static ArrayList<Customer> read(String file, CheckpointStage stage, Sources sources) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream checkpoint = Files.newInputStream(Paths.get(file))) {
+            DataInputStream header = new DataInputStream(checkpoint);
+            if (header.readInt() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            int version = header.readInt();
+            if (version != VERSION) {
+                throw new IOException("Checkpoint " + file + " is version " + version + ", expecting " + VERSION);
+            }
+            long checksum = header.readLong();
+            DataInputStream in = new DataInputStream(new BlockInputStream(new CheckedInputStream(checkpoint, crc)));
+            String written = in.readUTF();
+            if (!stage.name().equals(written)) {
+                throw new IOException("Checkpoint " + file + " was taken after " + written + ", expecting " + stage);
+            }
+            int sourceCount = in.readInt();
+            Map<String, long[]> taken = new HashMap<>();
+            for (int idx = 0; idx < sourceCount; idx++) {
+                taken.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+            }
+            for (String path : sources.paths) {
+                if (!taken.containsKey(path)) {
+                    throw new IOException("Checkpoint " + file + " was not taken from " + path);
+                }
+            }
+            for (Map.Entry<String, long[]> source : taken.entrySet()) {
+                String path = source.getKey();
+                if (!new File(path).isFile() || !Arrays.equals(sources.checksum(path), source.getValue())) {
+                    throw new IOException("Checkpoint " + file + " is stale, " + path + " has changed since it was taken");
+                }
+            }
+            int count = in.readInt();
+            ArrayList<Customer> customers = new ArrayList<>(count);
+            Reader reader = new Reader(in);
+            for (int idx = 0; idx < count; idx++) {
+                customers.add(reader.read());
+            }
+            // Reaching the end of the file brings every byte through the checksum
+            if (in.read() != -1 || crc.getValue() != checksum) {
+                throw new IOException("Checkpoint " + file + " is corrupt");
+            }
+            return customers;
+        }
+    }
+
+    /**
+     * The files a job's customers are produced from, with the length and checksum of each file worked out
+     * the first time a checkpoint needs it and kept for the rest of the job.
+     */
+    static class Sources {
+        // Absolute paths, in the order they were added
+        private final Set<String> paths = new LinkedHashSet<>();
+        // Length and checksum by absolute path
+        private final Map<String, long[]> checksums = new HashMap<>();
+
+        /**
+         * @param files the first source files, usually the properties file and the input file
+         */
+        Sources(String... files) {
+            addAll(Arrays.asList(files));
+        }
+
+        /**
+         * Adds source files, which the checkpoints written after this are taken from.
+         * @param files the files, already added files are ignored
+         */
+        void addAll(List<String> files) {
+            for (String file : files) {
+                paths.add(new File(file).getAbsolutePath());
+            }
+        }
+
+        /**
+         * @return the length and CRC32 checksum of the file
+         * @throws IOException unable to read the file
+         */
+        private long[] checksum(String path) throws IOException {
+            long[] checksum = checksums.get(path);
+            if (checksum == null) {
+                checksum = new long[] { new File(path).length(), ConfigBundle.checksum(path) };
+                checksums.put(path, checksum);
+            }
+            return checksum;
+        }
+    }
+
+    /**
+     * Buffers reads from the checkpoint file. DataInputStream reads numbers a byte at a time and BufferedInputStream
+     * takes a lock for every byte, which is most of the time taken to read a checkpoint. Only one thread reads, so this doesn't lock.
+     */
+    private static class BlockInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        BlockInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buffer, 0, buffer.length);
+            position = 0;
+            limit = Math.max(read, 0);
+            return read > 0;
+        }
+    }
+
+    /**
+     * Writes customers, numbering the distinct values of the low cardinality columns in the order they are first written.
+     */
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> shared = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(Customer customer) throws IOException {
+            out.writeInt(customer.getOriginalIdx());
+            writeShared(customer.getAppName());
+            writeShared(customer.getSelectorRef());
+            writeString(customer.getMailingId());
+            writeString(customer.getDocRef());
+            writeString(customer.getSortField());
+            writeShared(customer.getLang() != null ? customer.getLang().name() : null);
+            writeShared(customer.getStationery());
+            writeShared(customer.getBatchType() != null ? customer.getBatchType().name() : null);
+            writeShared(customer.getSubBatch());
+            writeString(customer.getFleetNo());
+            writeInteger(customer.getGroupId());
+            writeShared(customer.getPaperSize());
+            writeShared(customer.getMsc());
+            writeString(customer.getName1());
+            writeString(customer.getName2());
+            writeString(customer.getAdd1());
+            writeString(customer.getAdd2());
+            writeString(customer.getAdd3());
+            writeString(customer.getAdd4());
+            writeString(customer.getAdd5());
+            writeString(customer.getPostcode());
+            writeString(customer.getDps());
+            writeString(customer.getCustomerContent());
+            out.writeInt(customer.getNoOfPages());
+            writeShared(customer.getEog());
+            out.writeBoolean(customer.isEog());
+            out.writeDouble(customer.getWeight());
+            out.writeDouble(customer.getSize());
+            writeShared(customer.getEnvelope());
+            writeShared(customer.getProduct() != null ? customer.getProduct().name() : null);
+            writeInteger(customer.getPresentationPriority());
+            out.writeInt(customer.getTotalPagesInGroup());
+            writeShared(customer.getRunDate());
+            writeShared(customer.getSite() != null ? customer.getSite().name() : null);
+        }
+
+        private void writeString(String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private void writeShared(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL_VALUE);
+                return;
+            }
+            Integer position = shared.get(value);
+            if (position != null) {
+                out.writeInt(position);
+            } else {
+                // A new value is written after the position it takes
+                out.writeInt(shared.size());
+                out.writeUTF(value);
+                shared.put(value, shared.size());
+            }
+        }
+
+        private void writeInteger(Integer value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    /**
+     * Reads customers written by Writer, in the same field order.
+     */
+    private static class Reader {
+        private final DataInputStream in;
+        private final List<String> shared = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        Customer read() throws IOException {
+            Customer customer = new Customer(in.readInt());
+            customer.setAppName(readShared());
+            customer.setSelectorRef(readShared());
+            customer.setMailingId(readString());
+            customer.setDocRef(readString());
+            customer.setSortField(readString());
+            String lang = readShared();
+            if (lang != null) {
+                customer.setLang(lang);
+            }
+            customer.setStationery(readShared());
+            String batchType = readShared();
+            if (batchType != null) {
+                customer.setBatchType(BatchType.valueOf(batchType));
+            }
+            customer.setSubBatch(readShared());
+            customer.setFleetNo(readString());
+            customer.setGroupId(readInteger());
+            customer.setPaperSize(readShared());
+            customer.setMsc(readShared());
+            customer.setName1(readString());
+            customer.setName2(readString());
+            customer.setAdd1(readString());
+            customer.setAdd2(readString());
+            customer.setAdd3(readString());
+            customer.setAdd4(readString());
+            customer.setAdd5(readString());
+            customer.setPostcode(readString());
+            customer.setDps(readString());
+            customer.setCustomerContent(readString());
+            customer.setNoOfPages(in.readInt());
+            customer.setEog(readShared());
+            if (in.readBoolean()) {
+                customer.setEog();
+            }
+            customer.setWeight(in.readDouble());
+            customer.setSize(in.readDouble());
+            customer.setEnvelope(readShared());
+            String product = readShared();
+            if (product != null) {
+                customer.setProduct(Product.valueOf(product));
+            }
+            customer.setPresentationPriority(readInteger());
+            customer.setTotalPagesInGroup(in.readInt());
+            customer.setRunDate(readShared());
+            String site = readShared();
+            if (site != null) {
+                customer.setSite(site);
+            }
+            return customer;
+        }
+
+        private String readString() throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private String readShared() throws IOException {
+            int position = in.readInt();
+            if (position == NULL_VALUE) {
+                return null;
+            }
+            if (position == shared.size()) {
+                shared.add(in.readUTF());
+            } else if (position < 0 || position > shared.size()) {
+                throw new IOException("Checkpoint is corrupt, shared value " + position + " is out of range");
+            }
+            return shared.get(position);
+        }
+
+        private Integer readInteger() throws IOException {
+            return in.readBoolean() ? in.readInt() : null;
+        }
+    }
+}
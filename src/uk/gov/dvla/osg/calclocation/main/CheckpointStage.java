@@ -0,0 +1,22 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * Stages of a job after which the customers can be checkpointed, set by the checkpoints property in the AppConfig
+ * and named by the --resume-from argument.
+ */
+public enum CheckpointStage {
+    // Customers as read from the input file
+    LOAD,
+    // Sites calculated, customers in presentation order
+    LOCATION,
+    // EOG and TPIG calculated, customers in location order
+    GROUPS;
+
+    /**
+     * @return the stage, ignoring case
+     * @throws IllegalArgumentException if there is no stage of that name
+     */
+    static CheckpointStage of(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,228 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary index of the configuration files used by each selector, compiled from the text files by ConfigBundleCompiler.
+ * Looking a selector up in the bundle saves parsing the whole selector lookup file to find one selector.
+ * The configuration files themselves can only be loaded through the CommonClasses init methods, which take a file
+ * name, so the bundle holds their names rather than their parsed contents.
+ * <p>
+ * The text files remain the source of truth. The bundle records the length, modification time and CRC32 checksum of
+ * every file it was compiled from, and a selector is only used from the bundle while all of the files it uses still
+ * match. A file is only read to check its checksum when its modification time has changed.
+ * <p>
+ * Layout: magic, version, the source files (path, length, modification time, checksum), the selectors in name order
+ * (selector, production config, postage config, presentation config), then a CRC32 of everything before it.
+ * @author OSG
+ *
+ */
+class ConfigBundle {
+
+    // "CLCB"
+    private static final int MAGIC = 0x434C4342;
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Length, modification time and checksum of each source file, by absolute path
+    private final Map<String, long[]> sources;
+    private final Map<String, SelectorConfigs> selectors;
+
+    private ConfigBundle(Map<String, long[]> sources, Map<String, SelectorConfigs> selectors) {
+        this.sources = sources;
+        this.selectors = selectors;
+    }
+
+    /**
+     * @param file the bundle file
+     * @return the bundle
+     * @throws IOException unable to read the file, or it isn't a bundle of this version
+     */
+    static ConfigBundle read(String file) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(file));
+        if (bytes.length < Long.BYTES) {
+            throw new IOException("Config bundle " + file + " is truncated");
+        }
+        int payload = bytes.length - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, payload);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a config bundle");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Config bundle " + file + " is version " + version + ", expecting " + VERSION);
+            }
+            in.skipBytes(payload - 2 * Integer.BYTES);
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("Config bundle " + file + " is corrupt");
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 2 * Integer.BYTES, payload - 2 * Integer.BYTES))) {
+            int sourceCount = in.readInt();
+            Map<String, long[]> sources = new HashMap<>();
+            for (int idx = 0; idx < sourceCount; idx++) {
+                sources.put(in.readUTF(), new long[] { in.readLong(), in.readLong(), in.readLong() });
+            }
+            int selectorCount = in.readInt();
+            Map<String, SelectorConfigs> selectors = new HashMap<>();
+            for (int idx = 0; idx < selectorCount; idx++) {
+                selectors.put(in.readUTF(), new SelectorConfigs(in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            return new ConfigBundle(sources, selectors);
+        }
+    }
+
+    /**
+     * Writes a bundle of the selectors, recording the current length, modification time and checksum of every file they use.
+     * @param file the bundle file
+     * @param selectors config names by selector
+     * @param appConfig supplies the paths of the configuration and lookup files
+     * @throws IOException unable to read a source file or write the bundle
+     */
+    static void write(String file, Map<String, SelectorConfigs> selectors, AppConfig appConfig) throws IOException {
+        Map<String, long[]> sources = new LinkedHashMap<>();
+        for (SelectorConfigs configs : selectors.values()) {
+            for (String source : configs.getFiles(appConfig)) {
+                String path = new File(source).getAbsolutePath();
+                if (!sources.containsKey(path)) {
+                    File sourceFile = new File(path);
+                    sources.put(path, new long[] { sourceFile.length(), sourceFile.lastModified(), checksum(path) });
+                }
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sources.size());
+            for (Map.Entry<String, long[]> source : sources.entrySet()) {
+                out.writeUTF(source.getKey());
+                out.writeLong(source.getValue()[0]);
+                out.writeLong(source.getValue()[1]);
+                out.writeLong(source.getValue()[2]);
+            }
+            out.writeInt(selectors.size());
+            for (Map.Entry<String, SelectorConfigs> selector : new TreeMap<>(selectors).entrySet()) {
+                out.writeUTF(selector.getKey());
+                out.writeUTF(selector.getValue().getProductionConfig());
+                out.writeUTF(selector.getValue().getPostageConfig());
+                out.writeUTF(selector.getValue().getPresentationConfig());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        }
+        Files.write(Paths.get(file), bytes.toByteArray());
+    }
+
+    /**
+     * @return the config names of the selector, or null if the selector isn't in the bundle
+     */
+    SelectorConfigs getSelector(String selRef) {
+        return selectors.get(selRef);
+    }
+
+    /**
+     * Checks the files used by the selector against the lengths and checksums recorded when the bundle was compiled.
+     * A file with the recorded length and modification time is taken to match without reading it.
+     * @return the first file that has changed, is missing or wasn't compiled into the bundle, or null if all match
+     */
+    String findStale(SelectorConfigs configs, AppConfig appConfig) {
+        for (String file : configs.getFiles(appConfig)) {
+            File current = new File(file).getAbsoluteFile();
+            long[] source = sources.get(current.getPath());
+            if (source == null || !current.isFile() || current.length() != source[0]) {
+                return file;
+            }
+            if (current.lastModified() == source[1]) {
+                continue;
+            }
+            try {
+                if (checksum(current.getPath()) != source[2]) {
+                    return file;
+                }
+            } catch (IOException ex) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    static long checksum(String file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Names of the production, postage and presentation configuration files of a selector,
+     * as held by the Selector read from the selector lookup file.
+     */
+    static class SelectorConfigs {
+        private final String productionConfig;
+        private final String postageConfig;
+        private final String presentationConfig;
+
+        SelectorConfigs(String productionConfig, String postageConfig, String presentationConfig) {
+            this.productionConfig = productionConfig;
+            this.postageConfig = postageConfig;
+            this.presentationConfig = presentationConfig;
+        }
+
+        String getProductionConfig() {
+            return productionConfig;
+        }
+
+        String getPostageConfig() {
+            return postageConfig;
+        }
+
+        String getPresentationConfig() {
+            return presentationConfig;
+        }
+
+        String getProductionConfigFile(AppConfig appConfig) {
+            return appConfig.getProductionConfigPath() + productionConfig + appConfig.getProductionFileSuffix();
+        }
+
+        String getPostageConfigFile(AppConfig appConfig) {
+            return appConfig.getPostageConfigPath() + postageConfig + appConfig.getPostageFileSuffix();
+        }
+
+        String getPresentationConfigFile(AppConfig appConfig) {
+            return appConfig.getPresentationPriorityConfigPath() + presentationConfig + appConfig.getPresentationPriorityFileSuffix();
+        }
+
+        /**
+         * @return every file loaded for the selector, starting with the selector lookup file it was read from
+         */
+        List<String> getFiles(AppConfig appConfig) {
+            return Arrays.asList(appConfig.getLookupFile(), getProductionConfigFile(appConfig), getPostageConfigFile(appConfig),
+                    getPresentationConfigFile(appConfig), appConfig.getInsertLookup(), appConfig.getEnvelopeLookup(),
+                    appConfig.getPapersizeLookup());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.common.classes.Selector;
+import uk.gov.dvla.osg.common.config.SelectorLookup;
+
+/**
+ * Compiles the config bundle read by Main when the configBundle property is set in the AppConfig.
+ * Run it whenever the selector lookup or configuration files change. Until it is run again, jobs for selectors
+ * whose files have changed read the text files as normal.
+ * <p>
+ * Args are 1. Props file, 2. Bundle file, 3. onwards the selectors to include.
+ * @author OSG
+ *
+ */
+public class ConfigBundleCompiler {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MIN_NO_OF_ARGS = 3;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < MIN_NO_OF_ARGS) {
+            LOGGER.fatal("Args are 1. Props file, 2. Bundle file, 3. onwards the selectors to include.");
+            System.exit(1);
+        }
+        AppConfig.init(args[0]);
+        AppConfig appConfig = AppConfig.getInstance();
+        SelectorLookup.init(appConfig.getLookupFile());
+
+        Map<String, ConfigBundle.SelectorConfigs> selectors = new HashMap<>();
+        for (int idx = 2; idx < args.length; idx++) {
+            String selRef = args[idx];
+            if (!SelectorLookup.getInstance().isPresent(selRef)) {
+                LOGGER.fatal("Selector [{}] is not present in the lookupFile.", selRef);
+                System.exit(1);
+            }
+            Selector selector = SelectorLookup.getInstance().getSelector(selRef);
+            selectors.put(selRef, new ConfigBundle.SelectorConfigs(selector.getProductionConfig(),
+                    selector.getPostageConfig(), selector.getPresentationConfig()));
+        }
+        ConfigBundle.write(args[1], selectors, appConfig);
+        LOGGER.info("{} selectors written to config bundle {}", selectors.size(), args[1]);
+    }
+}
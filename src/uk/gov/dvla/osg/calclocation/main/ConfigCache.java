@@ -0,0 +1,87 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Remembers the file each configuration and lookup was last loaded from, along with its modification time and size,
+ * so that a daemon running many jobs only loads a file again when a job needs a different file or the file has changed.
+ * <p>
+ * Only the AppConfig can be loaded again, through AppConfig.reload. The CommonClasses configurations and lookups are
+ * singletons initialised once per JVM, in the same way as AppConfig.init, so they are loaded with loadOnce and a job
+ * that needs a different or changed file is refused with a ConfigReloadException rather than initialising them again.
+ * @author OSG
+ *
+ */
+class ConfigCache {
+
+    private final Map<String, Loaded> loaded = new HashMap<>();
+
+    /**
+     * Calls the loader unless the configuration was last loaded from the same, unchanged, file.
+     * @param name the configuration being loaded
+     * @param file the file to load it from
+     * @param loader loads the configuration from the file, replacing any configuration already loaded
+     * @return true if the loader was called
+     */
+    synchronized boolean load(String name, String file, Consumer<String> loader) {
+        Loaded current = new Loaded(file);
+        if (current.equals(loaded.get(name))) {
+            return false;
+        }
+        // Forget the previous file first so that a failed load is retried by the next job
+        loaded.remove(name);
+        loader.accept(file);
+        loaded.put(name, current);
+        return true;
+    }
+
+    /**
+     * Calls the initialiser the first time the configuration is loaded in this JVM.
+     * @param name the configuration being loaded
+     * @param file the file to load it from
+     * @param init initialises the configuration from the file, can only be called once
+     * @throws ConfigReloadException the configuration was loaded from a different file, the file has changed since
+     *         or the earlier initialisation failed
+     */
+    synchronized void loadOnce(String name, String file, Consumer<String> init) {
+        Loaded current = new Loaded(file);
+        if (!loaded.containsKey(name)) {
+            // Held as null until init returns, a singleton that failed part way through init can't be initialised again either
+            loaded.put(name, null);
+            init.accept(file);
+            loaded.put(name, current);
+        } else if (!current.equals(loaded.get(name))) {
+            throw new ConfigReloadException(String.format("%s [%s] can't be loaded again in this JVM, it has already been loaded from a different or changed file", name, file));
+        }
+    }
+
+    private static class Loaded {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+
+        Loaded(String file) {
+            File f = new File(file);
+            path = f.getAbsolutePath();
+            lastModified = f.lastModified();
+            length = f.length();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Loaded)) {
+                return false;
+            }
+            Loaded other = (Loaded) obj;
+            return path.equals(other.path) && lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * Thrown when a job needs a configuration or lookup loaded from a different file, or from a file that has changed,
+ * and the configuration can't be loaded again in this JVM. The daemon runs such a job in a new JVM.
+ * @author OSG
+ *
+ */
+class ConfigReloadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    ConfigReloadException(String message) {
+        super(message);
+    }
+}
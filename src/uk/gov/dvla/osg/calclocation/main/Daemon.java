@@ -0,0 +1,187 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the JVM running between jobs, taking job requests from a spool directory. Configuration and lookup files
+ * stay loaded between jobs and are only loaded again when a job needs a different file or the file has changed.
+ * The CommonClasses configurations can only be initialised once in a JVM, so a job that needs different or changed
+ * configuration files is run by Main in a new JVM, leaving the daemon's configuration loaded for the jobs that use it.
+ * <p>
+ * Started with: Main --daemon spoolDirectory
+ * <p>
+ * A job is requested by creating NAME.job in the spool directory holding the six arguments taken by Main,
+ * one per line. Write the file under another name and rename it, so that the daemon never reads a partly written request.
+ * Jobs are run one at a time in order of file name. While a job runs the request is renamed to NAME.running,
+ * and when it finishes the exit status is written to NAME.status and the request removed.
+ * Creating daemon.stop in the spool directory stops the daemon once the current job has finished, and is removed as it stops.
+ * @author OSG
+ *
+ */
+class Daemon {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String JOB_SUFFIX = ".job";
+    private static final String RUNNING_SUFFIX = ".running";
+    private static final String STATUS_SUFFIX = ".status";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String STOP_FILE = "daemon.stop";
+    private static final int FAILED = 1;
+    // Directory changes wake the daemon straight away, this only covers events the watch service drops
+    private static final long POLL_SECONDS = 5;
+
+    /**
+     * Runs a job and returns its exit status.
+     */
+    @FunctionalInterface
+    interface Job {
+        int run(String[] args) throws Exception;
+    }
+
+    private final Path spool;
+    // Runs a job in the daemon's JVM, throwing ConfigReloadException if it needs configuration that can't be loaded here
+    private final Job inProcess;
+    // Runs a job that the daemon's JVM can't run
+    private final Job newJvm;
+
+    Daemon(Path spool, Job inProcess, Job newJvm) {
+        this.spool = spool;
+        this.inProcess = inProcess;
+        this.newJvm = newJvm;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 || !Files.isDirectory(Paths.get(args[0]))) {
+            LOGGER.fatal("Daemon mode expects one arg, the spool directory to take job requests from");
+            System.exit(FAILED);
+        }
+        new Daemon(Paths.get(args[0]), Main::run, Daemon::runInNewJvm).run();
+    }
+
+    void run() throws IOException {
+        LOGGER.info("---- CalcLocation Daemon Started, spool directory {} ----", spool);
+        failInterruptedJobs();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            spool.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!Files.exists(spool.resolve(STOP_FILE))) {
+                List<Path> jobs = pendingJobs();
+                if (jobs.isEmpty()) {
+                    try {
+                        // Wait for a change to the directory, then look again
+                        WatchKey key = watcher.poll(POLL_SECONDS, TimeUnit.SECONDS);
+                        if (key != null) {
+                            key.pollEvents();
+                            key.reset();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                } else {
+                    runJob(jobs.get(0));
+                }
+            }
+        }
+        Files.deleteIfExists(spool.resolve(STOP_FILE));
+        LOGGER.info("---- CalcLocation Daemon Stopped ----");
+    }
+
+    private List<Path> pendingJobs() throws IOException {
+        List<Path> jobs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool, "*" + JOB_SUFFIX)) {
+            files.forEach(jobs::add);
+        }
+        Collections.sort(jobs);
+        return jobs;
+    }
+
+    /**
+     * Claims the request by renaming it, runs the job and writes its exit status.
+     */
+    private void runJob(Path request) throws IOException {
+        String name = StringUtils.removeEnd(request.getFileName().toString(), JOB_SUFFIX);
+        Path running = spool.resolve(name + RUNNING_SUFFIX);
+        Files.move(request, running, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Starting job {}", name);
+        int status;
+        try {
+            List<String> args = Files.readAllLines(running, StandardCharsets.UTF_8).stream()
+                    .filter(StringUtils::isNotBlank)
+                    .collect(Collectors.toList());
+            String[] jobArgs = args.toArray(new String[args.size()]);
+            try {
+                status = inProcess.run(jobArgs);
+            } catch (ConfigReloadException ex) {
+                LOGGER.info("Running job {} in a new JVM : {}", name, ex.getMessage());
+                status = newJvm.run(jobArgs);
+            }
+        } catch (Exception ex) {
+            LOGGER.fatal("Job {} failed: {}", name, ExceptionUtils.getStackTrace(ex));
+            status = FAILED;
+        }
+        writeStatus(name, status);
+        Files.delete(running);
+        LOGGER.info("Job {} finished with status {}", name, status);
+    }
+
+    /**
+     * Runs Main in a new JVM, started with the same java, class path and JVM options as the daemon.
+     * @return the exit status of the job
+     */
+    private static int runInNewJvm(String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // A debug agent would try to listen on the daemon's port
+            if (!option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp")) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    /**
+     * Jobs left running by a daemon that stopped part way through are reported as failed.
+     */
+    private void failInterruptedJobs() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool, "*" + RUNNING_SUFFIX)) {
+            for (Path running : files) {
+                String name = StringUtils.removeEnd(running.getFileName().toString(), RUNNING_SUFFIX);
+                LOGGER.error("Job {} was interrupted before it finished", name);
+                writeStatus(name, FAILED);
+                Files.delete(running);
+            }
+        }
+    }
+
+    private void writeStatus(String name, int status) throws IOException {
+        Path temp = spool.resolve(name + STATUS_SUFFIX + TEMP_SUFFIX);
+        Files.write(temp, String.valueOf(status).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, spool.resolve(name + STATUS_SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,129 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds one String instance for each distinct value of the low cardinality DPF columns, so that a value
+ * repeated on every row is stored once rather than once per customer. Equality checks and comparisons
+ * between customers sharing a value then succeed on the reference alone.
+ * Safe to share between the threads of a parallel load.
+ * @author OSG
+ *
+ */
+class DpfDictionary {
+
+    // Values beyond this are returned as they are, so a column configured by mistake can't fill the heap
+    private static final int MAX_SIZE = 1 << 16;
+
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+
+    /**
+     * @return the dictionary instance of the value, null for a field missing from a short row
+     */
+    String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String canonical = values.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (values.size() >= MAX_SIZE) {
+            return value;
+        }
+        canonical = values.putIfAbsent(value, value);
+        return canonical != null ? canonical : value;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Looks up dictionary values by their encoded bytes, so that a reader working on raw bytes only decodes
+     * a value the first time it sees it. Not thread safe, each reader has its own cache.
+     */
+    static class ByteCache {
+        private static final int INITIAL_CAPACITY = 1 << 10;
+
+        private byte[][] keys = new byte[INITIAL_CAPACITY][];
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private String[] values = new String[INITIAL_CAPACITY];
+        private int size;
+
+        static int hash(byte[] bytes, int from, int to) {
+            int hash = 0;
+            for (int idx = from; idx < to; idx++) {
+                hash = 31 * hash + bytes[idx];
+            }
+            return hash;
+        }
+
+        /**
+         * @return the value cached for the bytes, or null if they haven't been seen
+         */
+        String get(byte[] bytes, int from, int to, int hash) {
+            int mask = keys.length - 1;
+            for (int slot = mix(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && equals(keys[slot], bytes, from, to)) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        void put(byte[] bytes, int from, int to, int hash, String value) {
+            if (size >= MAX_SIZE) {
+                return;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            insert(Arrays.copyOfRange(bytes, from, to), hash, value);
+            size++;
+        }
+
+        private void insert(byte[] key, int hash, String value) {
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            values[slot] = value;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[oldKeys.length * 2];
+            values = new String[oldKeys.length * 2];
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != null) {
+                    insert(oldKeys[slot], oldHashes[slot], oldValues[slot]);
+                }
+            }
+        }
+
+        // Spreads the low bits, which is all the mask keeps
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(byte[] key, byte[] bytes, int from, int to) {
+            if (key.length != to - from) {
+                return false;
+            }
+            for (int idx = 0; idx < key.length; idx++) {
+                if (key[idx] != bytes[from + idx]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,30 +1,47 @@
 package uk.gov.dvla.osg.calclocation.main;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.univocity.parsers.common.processor.ConcurrentRowProcessor;
-import com.univocity.parsers.common.processor.RowListProcessor;
 import com.univocity.parsers.tsv.*;
 
 import uk.gov.dvla.osg.common.classes.Customer;
 import uk.gov.dvla.osg.common.classes.Utils;
 
-class DpfParser {
+public class DpfParser {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    // Byte ranges of the same size can hold very different numbers of rows, so parallel load uses more ranges than threads
+    // and a thread that finishes early takes the next one
+    private static final int CHUNKS_PER_THREAD = 4;
+    // Names the archive copy, given to Utils.archiveDpf in the COPY archive mode and used the same way by the TEE modes
+    private static final String ARCHIVE_SUFFIX = "CalcLocation.bak";
+    private static final String GZIP_SUFFIX = ".gz";
     // Input variables
     private String inputFile;
-    // Throughput variables
-    private String[] headers;
     private String outputFile;
     private AppConfig appConfig;
+    // Raw bytes of the rows kept from Load so that Save doesn't have to parse the input a second time
+    private RetainedRows rows;
+    // Column positions of the input file, bound by Load
+    private DpfSchema schema;
 
     /**
      * Extracts DocumentProperties from a dpf data file.
@@ -33,195 +50,417 @@ class DpfParser {
      * @param outputFile dpf output file
      * @param appConfig supplies column names for mapping
      */
-    DpfParser(String inputFile, String outputFile) {
+    public DpfParser(String inputFile, String outputFile) {
         this.inputFile = inputFile;
         this.outputFile = outputFile;
-        this.appConfig = appConfig.getInstance();
+        this.appConfig = AppConfig.getInstance();
+        // Rows are only kept by the univocity reader. The splice writer copies unchanged columns straight from the input file, so never needs them
+        this.rows = appConfig.isRetainInputRows() && appConfig.getDpfReader() == DpfReaderMode.UNIVOCITY
+                && appConfig.getDpfWriter() == DpfWriterMode.TSV_WRITER && RetainedRows.isSupported() ? new RetainedRows() : null;
     }
 
     /**
      * Reads the input file and maps each row to a customer object.
+     * When retainInputRows is set in the AppConfig, the raw bytes of each row are kept for Save.
+     * The mapped readers only decode the columns mapped to customer properties.
      * 
      * @return a list of customers
+     * @throws IOException unable to read the input file
      */
-    ArrayList<Customer> Load() {
+    public ArrayList<Customer> Load() throws IOException {
+        return Load(appConfig.getDpfReader());
+    }
+
+    /**
+     * Reads the input file with the given reader rather than the one set in the AppConfig, e.g. to compare the readers.
+     * Rows are only retained by the univocity reader.
+     * 
+     * @param reader the reader to load with
+     * @return a list of customers
+     * @throws IOException unable to read the input file
+     */
+    public ArrayList<Customer> Load(DpfReaderMode reader) throws IOException {
+        if (reader != DpfReaderMode.UNIVOCITY) {
+            rows = null;
+        }
+        ArrayList<Customer> customers;
+        switch (reader) {
+        case MAPPED:
+            customers = loadMapped();
+            break;
+        case PARALLEL:
+            customers = loadParallel();
+            break;
+        default:
+            customers = loadUnivocity();
+        }
+        if (schema != null) {
+            LOGGER.trace("{} distinct values shared by the low cardinality columns", schema.getDictionarySize());
+        }
+        return customers;
+    }
+
+    /**
+     * Binds the column positions from the header row of the input file without reading any customers,
+     * for a job resumed from a checkpoint. No rows are kept, so Save reads the input file again.
+     * @throws IOException unable to read the input file
+     */
+    void loadSchema() throws IOException {
+        rows = null;
+        if (appConfig.getDpfReader() == DpfReaderMode.UNIVOCITY) {
+            TsvParser parser = createParser();
+            parser.beginParsing(new File(inputFile));
+            schema = new DpfSchema(headers(parser), appConfig);
+            parser.stopParsing();
+        } else {
+            try (MappedDpfReader reader = new MappedDpfReader(new File(inputFile))) {
+                schema = new DpfSchema(reader.getHeaders(), appConfig);
+            }
+        }
+    }
+
+    /**
+     * Reads the selector of the first row, so that the lookups can be loaded before the rest of the file.
+     * 
+     * @return the selector, or null if the file has no rows or no selector column
+     */
+    public String readSelectorRef() {
+        TsvParser parser = createParser();
+        parser.beginParsing(new File(inputFile));
+        try {
+            int col = Arrays.asList(headers(parser)).indexOf(appConfig.getLookupReferenceFieldName());
+            String[] values = parser.parseNext();
+            return col >= 0 && values != null && col < values.length ? values[col] : null;
+        } finally {
+            parser.stopParsing();
+        }
+    }
+
+    /**
+     * Reads the input file with the univocity TsvParser.
+     */
+    ArrayList<Customer> loadUnivocity() {
         ArrayList<Customer> customers = new ArrayList<>();
 
-        // Keep track of customer number so we can output in same order
-        AtomicInteger counter = new AtomicInteger(0);
         TsvParser parser = createParser();
-        parser.parseAllRecords(new File(inputFile)).forEach(record -> {
-
-            Customer customer = new Customer(counter.getAndIncrement());
-            customer.setAppName(record.getString(appConfig.getAppNameField()));
-            customer.setSelectorRef(record.getString(appConfig.getLookupReferenceFieldName()));
-            customer.setMailingId(record.getString(appConfig.getMailingIdField()));
-            customer.setDocRef(record.getString(appConfig.getDocumentReference()));
-            customer.setSortField(record.getString(appConfig.getSortField()));
-            customer.setLang(record.getString(appConfig.getLanguageFieldName()));
-            customer.setStationery(record.getString(appConfig.getStationeryFieldName()));
-            customer.setBatchType(record.getString(appConfig.getBatchTypeFieldName()));
-            customer.setSubBatch(record.getString(appConfig.getSubBatchTypeFieldName()));
-            customer.setFleetNo(record.getString(appConfig.getFleetNoFieldName()));
-            Integer groupId = record.getString(appConfig.getGroupIdFieldName()).equals("") ? null
-                                                                                           : record.getInt(appConfig.getGroupIdFieldName());
-            customer.setGroupId(groupId);
-            customer.setPaperSize(record.getString(appConfig.getPaperSizeFieldName()));
-            customer.setMsc(record.getString(appConfig.getMscFieldName()));
-
-            customer.setName1(record.getString(appConfig.getName1Field()));
-            customer.setName2(record.getString(appConfig.getName2Field()));
-            customer.setAdd1(record.getString(appConfig.getAddress1Field()));
-            customer.setAdd2(record.getString(appConfig.getAddress2Field()));
-            customer.setAdd3(record.getString(appConfig.getAddress3Field()));
-            customer.setAdd4(record.getString(appConfig.getAddress4Field()));
-            customer.setAdd5(record.getString(appConfig.getAddress5Field()));
-            customer.setPostcode(record.getString(appConfig.getPostCodeField()));
-
-            customer.setDps(record.getString(appConfig.getDpsField()));
-            customer.setCustomerContent(record.getString(appConfig.getMailMarkBarcodeCustomerContent()));
-            customer.setNoOfPages(record.getInt(appConfig.getNoOfPagesField()));
-            // customer.setSot(record.getString(appConfig.getEotField()));
-            customer.setEog(record.getString(appConfig.getEogField()));
-            String[] str = StringUtils.split(record.getString(appConfig.getWeightAndSizeField()), "|");
-            customer.setWeight(Double.parseDouble(str[0]));
-            customer.setSize(Double.parseDouble(str[1]));
-            customer.setEnvelope(record.getString(appConfig.getOuterEnvelope()));
-            customer.setProduct(record.getString(appConfig.getMailingProduct()));
-            customer.setPresentationPriority(record.getInt(appConfig.getPresentationPriorityField()));
-            Integer tpig = record.getString(appConfig.getTotalNumberOfPagesInGroupField()).equals("") ? null
-                                                                                                      : record.getInt(appConfig.getTotalNumberOfPagesInGroupField());
-            if (tpig != null) customer.setTotalPagesInGroup(tpig);
-            customer.setRunDate(record.getString(appConfig.getRunDate()));
-            customers.add(customer);
-        });
-        headers = parser.getRecordMetadata().headers();
+        parser.beginParsing(new File(inputFile));
+        schema = new DpfSchema(headers(parser), appConfig);
+        DpfRow.Values row = new DpfRow.Values();
+        // Keep track of customer number so we can output in same order
+        int counter = 0;
+        String[] values;
+        while ((values = parser.parseNext()) != null) {
+            customers.add(schema.toCustomer(row.set(values), counter++));
+            if (rows != null) {
+                rows.add(parser.getContext().currentParsedContent());
+            }
+        }
+        return customers;
+    }
+
+    private static String[] headers(TsvParser parser) {
+        String[] headers = parser.getContext().headers();
+        return headers != null ? headers : new String[0];
+    }
+
+    /**
+     * Reads the input file with the MappedDpfReader. Column positions are resolved from the header row once,
+     * numbers are decoded straight from the file bytes and Strings are only created for text fields.
+     */
+    ArrayList<Customer> loadMapped() throws IOException {
+        ArrayList<Customer> customers = new ArrayList<>();
+
+        try (MappedDpfReader reader = new MappedDpfReader(new File(inputFile))) {
+            schema = new DpfSchema(reader.getHeaders(), appConfig);
+            // Keep track of customer number so we can output in same order
+            int counter = 0;
+            while (reader.next()) {
+                customers.add(schema.toCustomer(reader, counter++));
+            }
+        }
         return customers;
     }
 
+    /**
+     * Reads the input file in chunks on a pool of loadThreads threads. The file is split into ranges of whole lines,
+     * the ranges are mapped to customers in parallel, numbering each range's customers from 0, and joined in file order.
+     * The join shifts each range's customers by the rows in the ranges before it, so that every customer gets the same
+     * original index as a sequential load.
+     */
+    ArrayList<Customer> loadParallel() throws IOException {
+        File file = new File(inputFile);
+        long dataStart;
+        byte lineSeparator;
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            schema = new DpfSchema(reader.getHeaders(), appConfig);
+            dataStart = reader.getPosition();
+            lineSeparator = reader.getLineSeparator();
+        }
+        String[] headers = schema.getHeaders();
+        int threads = appConfig.getLoadThreads();
+        long[] boundaries = MappedDpfReader.splitLines(file, dataStart, threads * CHUNKS_PER_THREAD, lineSeparator);
+        int chunks = boundaries.length - 1;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Customer>>> parts = new ArrayList<>();
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                long from = boundaries[chunk];
+                long to = boundaries[chunk + 1];
+                parts.add(pool.submit(() -> {
+                    List<Customer> part = new ArrayList<>();
+                    try (MappedDpfReader reader = new MappedDpfReader(file, from, to, headers, lineSeparator)) {
+                        int idx = 0;
+                        while (reader.next()) {
+                            part.add(schema.toCustomer(reader, idx++));
+                        }
+                    }
+                    return part;
+                }));
+            }
+            List<List<Customer>> loaded = new ArrayList<>(chunks);
+            int total = 0;
+            for (Future<List<Customer>> part : parts) {
+                loaded.add(get(part));
+                total += loaded.get(loaded.size() - 1).size();
+            }
+            ArrayList<Customer> customers = new ArrayList<>(total);
+            for (List<Customer> part : loaded) {
+                // The first customer of each range follows on from the rows of the ranges before it
+                int firstIdx = customers.size();
+                if (firstIdx > 0) {
+                    for (Customer customer : part) {
+                        customer.setOriginalIdx(customer.getOriginalIdx() + firstIdx);
+                    }
+                }
+                customers.addAll(part);
+            }
+            return customers;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a load task, rethrowing anything it threw.
+     */
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading DPF", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     /**
      * Saves the dpf file with the amended document properties.
      * 
      * @param customers the amended customer data
      * @throws IOException unable to write output file to the supplied path
      */
-    void Save(ArrayList<Customer> customers) throws IOException {
-        try (FileWriter fw = new FileWriter(new File(outputFile))) {
+    public void Save(ArrayList<Customer> customers) throws IOException {
+        if (appConfig.getDpfWriter() == DpfWriterMode.SPLICE) {
+            saveSplice(customers);
+        } else if (rows != null) {
+            saveRetained(customers);
+        } else {
+            saveUnivocity(customers);
+        }
+        // PB 21/02/19 : Archive a copy of the output DPF when Log4J level set to TRACE
+        // The copy reads the output file, so it is made before Save returns and the next job can overwrite it
+        if (appConfig.getArchiveMode() == ArchiveMode.COPY) {
+            Utils.archiveDpf(outputFile, ARCHIVE_SUFFIX, LOGGER);
+        }
+    }
+
+    /**
+     * Opens the output file, which is synced to disk when it is closed. When Log4J is set to TRACE and a TEE
+     * archive mode is set in the AppConfig, the archive copy is written in the same pass, otherwise the output
+     * is written on its own.
+     */
+    private OutputStream openOutput() throws IOException {
+        OutputStream out = new SyncedFileOutputStream(outputFile);
+        ArchiveMode mode = appConfig.getArchiveMode();
+        if (mode == ArchiveMode.COPY || !LOGGER.isTraceEnabled()) {
+            return out;
+        }
+        boolean gzip = mode == ArchiveMode.TEE_GZIP;
+        String archiveFile = archiveFile() + (gzip ? GZIP_SUFFIX : "");
+        LOGGER.trace("Archiving output to: {}", archiveFile);
+        try {
+            return new TeeOutputStream(out, new ArchiveOutputStream(archiveFile, gzip, appConfig.isArchiveOverlapped()));
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the archive copy of the output file named as Utils.archiveDpf names it, in the output's directory with
+     *         the extension of the output file name replaced by the archive suffix
+     */
+    private String archiveFile() {
+        File output = new File(outputFile);
+        String name = output.getName();
+        int extension = name.lastIndexOf('.');
+        String baseName = extension > 0 ? name.substring(0, extension) : name;
+        return new File(output.getParentFile(), baseName + "." + ARCHIVE_SUFFIX).getPath();
+    }
+
+    /**
+     * Syncs the file to disk before closing it, so that the output is durable once Save returns.
+     */
+    private static class SyncedFileOutputStream extends FileOutputStream {
+
+        SyncedFileOutputStream(String file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (getFD().valid()) {
+                    getFD().sync();
+                }
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Writes each row of the input with the univocity TsvWriter, replacing the changed values.
+     */
+    private void saveUnivocity(ArrayList<Customer> customers) throws IOException {
+        try (Writer fw = new OutputStreamWriter(openOutput(), Charset.defaultCharset())) {
             // Create an instance of TsvWriter with the default settings
             TsvWriterSettings tsvwSettings = new TsvWriterSettings();
             tsvwSettings.setNullValue("");
             tsvwSettings.setIgnoreTrailingWhitespaces(false);
             TsvWriter writer = new TsvWriter(fw, tsvwSettings);
             // Writes the file headers
-            writer.writeHeaders(headers);
-            // Keep track of which customer we are writing
-            AtomicInteger counter = new AtomicInteger(0);
+            writer.writeHeaders(schema.getHeaders());
             // Build a parser that loops through the original dpf file
             TsvParser parser = createParser();
-            parser.parseAll(new File(inputFile)).forEach(record -> {
-                // Write out the original row of data
-                writer.addValues((Object[]) record);
-                // Replace changed values - map fields in dpf to properties in customer
-                Customer customer = customers.get(counter.getAndIncrement());
-                try {
-                    writer.addValue(appConfig.getEightDigitJobIdFieldName(), customer.getRpdJid());
-                } catch (Exception ex) {
-                    LOGGER.fatal("8 Digit JID {}", appConfig.getEightDigitJobIdFieldName());
-                }
-                try {
-                    writer.addValue(appConfig.getTenDigitJobIdFieldName(), customer.getTenDigitJid());
-                } catch (Exception ex) {
-                    LOGGER.fatal("10 Digit JID {}", appConfig.getTenDigitJobIdFieldName());
-                }
-                try {
-                    writer.addValue(appConfig.getSiteFieldName(), customer.getSite().name().toLowerCase());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Site {}", appConfig.getSiteFieldName());
-                }
-                try {
-                    writer.addValue(appConfig.getEogField(), customer.getEog());
-                } catch (Exception ex) {
-                    LOGGER.fatal("EOG Field {}", appConfig.getEogField());
-                }
-                try {
-                    writer.addValue(appConfig.getEotField(), customer.getSot());
-                } catch (Exception ex) {
-                    LOGGER.fatal("SOT Field {}", appConfig.getEotField());
-                }
-                try {
-                    writer.addValue(appConfig.getMailMarkBarcodeContent(), customer.getMmBarcodeContent());
-                } catch (Exception ex) {
-                    LOGGER.fatal("MailMarkBarcodeContent {}", appConfig.getMailMarkBarcodeContent());
-                }
-                try {
-                    writer.addValue(appConfig.getMailMarkBarcodeCustomerContent(), customer.getCustomerContent());
-                } catch (Exception ex) {
-                    LOGGER.fatal("MailMark Customer Content {}", appConfig.getMailMarkBarcodeCustomerContent());
-                }
-                try {
-                    writer.addValue(appConfig.getChildSequence(), customer.getSequenceInChild());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Sequence in Child {}", appConfig.getChildSequence());
-                }
-                try {
-                    writer.addValue(appConfig.getOuterEnvelope(), customer.getEnvelope());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Envelope {}", appConfig.getOuterEnvelope());
-                }
-                try {
-                    writer.addValue(appConfig.getMailingProduct(), customer.getProduct());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Error writing Mailing Product {} : BatchType {}", appConfig.getMailingProduct(), customer.getBatchName());
-                }
-                try {
-                    writer.addValue(appConfig.getBatchTypeFieldName(), customer.getBatchName());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Batch Type {}", appConfig.getBatchTypeFieldName());
-                }
-                try {
-                    writer.addValue(appConfig.getTotalNumberOfPagesInGroupField(), customer.getTotalPagesInGroup());
-                } catch (Exception ex) {
-                    LOGGER.fatal("Total Number Of Pages In Group Field {}", appConfig.getTotalNumberOfPagesInGroupField());
-                }
-                try {
-                    writer.addValue(appConfig.getMscFieldName(), customer.getMsc());
-                } catch (Exception ex) {
-                    LOGGER.fatal("MSC {}", appConfig.getMscFieldName());
-                }
-                try {
-                    writer.addValue(appConfig.getDpsField(), customer.getDps());
-                } catch (Exception ex) {
-                    LOGGER.fatal("DPS {}", appConfig.getDpsField());
-                }
-                // clear weight and size from dpf
-                try {
-                    writer.addValue(appConfig.getWeightAndSizeField(), "");
-                } catch (Exception ex) {
-                    LOGGER.fatal("Unable to clear WeightAndSize Field {}", appConfig.getWeightAndSizeField());
-                }
-                try {
-                    writer.addValue(appConfig.getPresentationPriorityField(), "");
-                } catch (Exception ex) {
-                    LOGGER.fatal("Unable to clear Presentation Priority Field {}", appConfig.getPresentationPriorityField());
-                }
-                writer.writeValuesToRow();
-            });
+            parser.beginParsing(new File(inputFile));
+            // Keep track of which customer we are writing
+            int counter = 0;
+            String[] record;
+            while ((record = parser.parseNext()) != null) {
+                writeRow(writer, record, customers.get(counter++));
+            }
             // Flushes and closes the writer
             writer.close();
         }
-        // PB 21/02/19 : Archive a copy of the output DPF when Log4J level set to TRACE
-        Utils.archiveDpf(outputFile, "CalcLocation.bak", LOGGER);
     }
 
     /**
-     * Create a new instance of a TsvParser
+     * Scans the input file again with the MappedDpfReader and splices the changed values into each line.
+     * The bytes between changed columns are copied from the input as they are, only the new values and any input
+     * field holding an escape are encoded.
+     * Each row is written in the same format as the univocity TsvWriter writes it.
+     * Works after any load mode, the rows are matched to customers by position.
+     */
+    private void saveSplice(ArrayList<Customer> customers) throws IOException {
+        try (MappedDpfReader reader = new MappedDpfReader(new File(inputFile));
+             OutputStream out = new BufferedOutputStream(openOutput(), OUTPUT_BUFFER_SIZE)) {
+            writeHeaders(out);
+            splice(out, reader, customers, 0);
+        }
+    }
+
+    /**
+     * Splices the changed values into the rows kept from Load, in the same way as the splice writer splices them
+     * into the lines of the input file. The output is the same as the TsvWriter writes.
+     */
+    private void saveRetained(ArrayList<Customer> customers) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(openOutput(), OUTPUT_BUFFER_SIZE)) {
+            writeHeaders(out);
+            int idx = 0;
+            for (ByteBuffer block : rows.getBlocks()) {
+                try (MappedDpfReader reader = new MappedDpfReader(block, schema.getHeaders())) {
+                    idx = splice(out, reader, customers, idx);
+                }
+            }
+        }
+        rows = null;
+    }
+
+    private void writeHeaders(OutputStream out) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        String[] names = schema.getHeaders();
+        for (int col = 0; col < names.length; col++) {
+            if (col > 0) {
+                out.write('\t');
+            }
+            out.write(MappedDpfReader.encode(names[col]).getBytes(charset));
+        }
+        out.write(System.lineSeparator().getBytes(charset));
+    }
+
+    /**
+     * Writes each row of the reader with the changed values of its customer spliced in.
+     * @param idx position of the customer for the reader's first row
+     * @return position of the customer for the row after the reader's last row
+     */
+    private int splice(OutputStream out, MappedDpfReader reader, ArrayList<Customer> customers, int idx) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+        int width = schema.getHeaders().length;
+        int[] columns = schema.getOutputColumns();
+        byte[][] values = new byte[columns.length][];
+        while (reader.next()) {
+            Customer customer = customers.get(idx++);
+            for (int field = 0; field < columns.length; field++) {
+                String value = schema.outputValue(columns[field], customer);
+                values[field] = value != null ? MappedDpfReader.encode(value).getBytes(charset) : null;
+            }
+            // Short rows are padded out to the header row
+            reader.writeRow(out, columns, values, width);
+            out.write(lineSeparator);
+        }
+        return idx;
+    }
+
+    /**
+     * Writes the original row of data, replacing the values that have been changed by CalcLocation.
+     * 
+     * @param writer the output writer
+     * @param record the original row of data
+     * @param customer the amended customer for the row
+     */
+    private void writeRow(TsvWriter writer, String[] record, Customer customer) {
+        // Short rows are padded out to the header row
+        Object[] row = Arrays.copyOf(record, Math.max(record.length, schema.getHeaders().length), Object[].class);
+        // Replace changed values - map fields in dpf to properties in customer
+        for (int col : schema.getOutputColumns()) {
+            String value = schema.outputValue(col, customer);
+            if (value != null) {
+                row[col] = value;
+            }
+        }
+        writer.writeRow(row);
+    }
+
+    /**
+     * Create a new instance of a TsvParser. Rows are read with parseNext, so no row processor is set,
+     * as one would keep a second copy of every row while parsing.
      * 
      * @return A TsvParser set to handle header rows
      */
     private TsvParser createParser() {
         TsvParserSettings parserSettings = new TsvParserSettings();
         parserSettings.setNullValue("");
-        parserSettings.setProcessor(new ConcurrentRowProcessor(new RowListProcessor()));
         parserSettings.setLineSeparatorDetectionEnabled(true);
         parserSettings.setHeaderExtractionEnabled(true);
         return new TsvParser(parserSettings);
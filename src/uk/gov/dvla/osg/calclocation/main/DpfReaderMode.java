@@ -0,0 +1,13 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * How the DPF file is read, set by the dpfReader property in the AppConfig.
+ */
+public enum DpfReaderMode {
+    // univocity TsvParser, fields looked up by header name
+    UNIVOCITY,
+    // Memory mapped byte scan, fields looked up by column index
+    MAPPED,
+    // Memory mapped byte scan of line aligned chunks on loadThreads threads
+    PARALLEL
+}
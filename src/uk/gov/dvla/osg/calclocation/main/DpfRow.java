@@ -0,0 +1,72 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Positional access to the fields of one row of a DPF file. Fields missing from the end of a row read as null
+ * and blank, as the TsvParser returns them.
+ * @author OSG
+ *
+ */
+interface DpfRow {
+
+    String getString(int col);
+
+    /**
+     * Reads a field of a low cardinality column, returning the dictionary instance of the value.
+     */
+    default String getString(int col, DpfDictionary dictionary) {
+        return dictionary.intern(getString(col));
+    }
+
+    boolean isBlank(int col);
+
+    /**
+     * @throws NumberFormatException the field is blank or not a whole number
+     */
+    int getInt(int col);
+
+    /**
+     * Reads one part of a field holding several decimals, e.g. the weight and size from 12.5|0.4
+     * @throws NumberFormatException the part is not a decimal
+     */
+    double getDouble(int col, char separator, int part);
+
+    /**
+     * A row held as the String values read by the univocity parser. Set the values for each row in turn.
+     */
+    class Values implements DpfRow {
+        private String[] values;
+
+        Values set(String[] values) {
+            this.values = values;
+            return this;
+        }
+
+        @Override
+        public String getString(int col) {
+            return col < values.length ? values[col] : null;
+        }
+
+        @Override
+        public String getString(int col, DpfDictionary dictionary) {
+            return dictionary.intern(getString(col));
+        }
+
+        @Override
+        public boolean isBlank(int col) {
+            String value = getString(col);
+            return value == null || value.isEmpty();
+        }
+
+        @Override
+        public int getInt(int col) {
+            return Integer.parseInt(getString(col));
+        }
+
+        @Override
+        public double getDouble(int col, char separator, int part) {
+            return Double.parseDouble(StringUtils.split(getString(col), separator)[part]);
+        }
+    }
+}
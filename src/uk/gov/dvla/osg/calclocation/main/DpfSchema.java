@@ -0,0 +1,248 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Binds the field names in the AppConfig to column positions in a DPF file, once per file.
+ * Rows are then mapped to customers, and customers written back to rows, by position.
+ * @author OSG
+ *
+ */
+class DpfSchema {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final String[] headers;
+    // Input columns mapped to customer properties
+    private final int appName, selectorRef, mailingId, docRef, sortField, lang, stationery, batchType, subBatch,
+            fleetNo, groupId, paperSize, msc, name1, name2, add1, add2, add3, add4, add5, postcode, dps,
+            customerContent, noOfPages, eog, weightAndSize, envelope, product, presentationPriority, tpig,
+            runDate;
+    // Columns that Save replaces, in the order they are set
+    private final List<OutputField> outputFields;
+    // Output field written to each column, -1 where the input value is kept
+    private final int[] fieldForColumn;
+    private final int[] outputColumns;
+    // Shared values of the low cardinality columns
+    private final DpfDictionary dictionary = new DpfDictionary();
+
+    /**
+     * Binds the AppConfig field names to the header row of a DPF file.
+     * Output columns that are missing are logged and left out of the output.
+     * 
+     * @param headers the header row
+     * @param appConfig supplies column names for mapping
+     * @throws IllegalArgumentException a column read by Load is missing from the header row
+     */
+    DpfSchema(String[] headers, AppConfig appConfig) {
+        this.headers = headers;
+        List<String> missing = new ArrayList<>();
+        appName = bind(appConfig.getAppNameField(), missing);
+        selectorRef = bind(appConfig.getLookupReferenceFieldName(), missing);
+        mailingId = bind(appConfig.getMailingIdField(), missing);
+        docRef = bind(appConfig.getDocumentReference(), missing);
+        sortField = bind(appConfig.getSortField(), missing);
+        lang = bind(appConfig.getLanguageFieldName(), missing);
+        stationery = bind(appConfig.getStationeryFieldName(), missing);
+        batchType = bind(appConfig.getBatchTypeFieldName(), missing);
+        subBatch = bind(appConfig.getSubBatchTypeFieldName(), missing);
+        fleetNo = bind(appConfig.getFleetNoFieldName(), missing);
+        groupId = bind(appConfig.getGroupIdFieldName(), missing);
+        paperSize = bind(appConfig.getPaperSizeFieldName(), missing);
+        msc = bind(appConfig.getMscFieldName(), missing);
+        name1 = bind(appConfig.getName1Field(), missing);
+        name2 = bind(appConfig.getName2Field(), missing);
+        add1 = bind(appConfig.getAddress1Field(), missing);
+        add2 = bind(appConfig.getAddress2Field(), missing);
+        add3 = bind(appConfig.getAddress3Field(), missing);
+        add4 = bind(appConfig.getAddress4Field(), missing);
+        add5 = bind(appConfig.getAddress5Field(), missing);
+        postcode = bind(appConfig.getPostCodeField(), missing);
+        dps = bind(appConfig.getDpsField(), missing);
+        customerContent = bind(appConfig.getMailMarkBarcodeCustomerContent(), missing);
+        noOfPages = bind(appConfig.getNoOfPagesField(), missing);
+        eog = bind(appConfig.getEogField(), missing);
+        weightAndSize = bind(appConfig.getWeightAndSizeField(), missing);
+        envelope = bind(appConfig.getOuterEnvelope(), missing);
+        product = bind(appConfig.getMailingProduct(), missing);
+        presentationPriority = bind(appConfig.getPresentationPriorityField(), missing);
+        tpig = bind(appConfig.getTotalNumberOfPagesInGroupField(), missing);
+        runDate = bind(appConfig.getRunDate(), missing);
+        if (!missing.isEmpty()) {
+            throw new IllegalArgumentException("Columns " + missing + " are not in the DPF file");
+        }
+
+        outputFields = Arrays.asList(
+                new OutputField(appConfig.getEightDigitJobIdFieldName(), "8 Digit JID", Customer::getRpdJid),
+                new OutputField(appConfig.getTenDigitJobIdFieldName(), "10 Digit JID", Customer::getTenDigitJid),
+                new OutputField(appConfig.getSiteFieldName(), "Site", customer -> customer.getSite() != null ? customer.getSite().name().toLowerCase() : null, true),
+                new OutputField(appConfig.getEogField(), "EOG Field", Customer::getEog),
+                new OutputField(appConfig.getEotField(), "SOT Field", Customer::getSot),
+                new OutputField(appConfig.getMailMarkBarcodeContent(), "MailMarkBarcodeContent", Customer::getMmBarcodeContent),
+                new OutputField(appConfig.getMailMarkBarcodeCustomerContent(), "MailMark Customer Content", Customer::getCustomerContent),
+                new OutputField(appConfig.getChildSequence(), "Sequence in Child", Customer::getSequenceInChild),
+                new OutputField(appConfig.getOuterEnvelope(), "Envelope", Customer::getEnvelope),
+                new OutputField(appConfig.getMailingProduct(), "Mailing Product", Customer::getProduct),
+                new OutputField(appConfig.getBatchTypeFieldName(), "Batch Type", Customer::getBatchName),
+                new OutputField(appConfig.getTotalNumberOfPagesInGroupField(), "Total Number Of Pages In Group Field", Customer::getTotalPagesInGroup),
+                new OutputField(appConfig.getMscFieldName(), "MSC", Customer::getMsc),
+                new OutputField(appConfig.getDpsField(), "DPS", Customer::getDps),
+                // clear weight and size from dpf
+                new OutputField(appConfig.getWeightAndSizeField(), "WeightAndSize Field", customer -> ""),
+                new OutputField(appConfig.getPresentationPriorityField(), "Presentation Priority Field", customer -> ""));
+
+        // A later field replaces an earlier one for the same column
+        fieldForColumn = new int[headers.length];
+        Arrays.fill(fieldForColumn, -1);
+        for (int field = 0; field < outputFields.size(); field++) {
+            OutputField outputField = outputFields.get(field);
+            int col = indexOf(outputField.name);
+            if (col < 0) {
+                LOGGER.fatal("{} {} is not in the DPF file", outputField.description, outputField.name);
+            } else {
+                fieldForColumn[col] = field;
+            }
+        }
+        outputColumns = new int[(int) Arrays.stream(fieldForColumn).filter(field -> field >= 0).count()];
+        for (int col = 0, idx = 0; col < fieldForColumn.length; col++) {
+            if (fieldForColumn[col] >= 0) {
+                outputColumns[idx++] = col;
+            }
+        }
+    }
+
+    private int bind(String name, List<String> missing) {
+        int col = indexOf(name);
+        if (col < 0) {
+            missing.add(name);
+        }
+        return col;
+    }
+
+    private int indexOf(String name) {
+        for (int col = 0; col < headers.length; col++) {
+            if (name != null && name.equals(headers[col])) {
+                return col;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of distinct values shared through the dictionary
+     */
+    int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    String[] getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return positions of the columns that Save replaces
+     */
+    int[] getOutputColumns() {
+        return outputColumns;
+    }
+
+    /**
+     * Maps a row of the DPF to a new customer.
+     * Columns that only hold a handful of distinct values are read through the dictionary.
+     * 
+     * @param row the row
+     * @param originalIdx position of the row in the file
+     * @return the customer
+     */
+    Customer toCustomer(DpfRow row, int originalIdx) {
+        Customer customer = new Customer(originalIdx);
+        customer.setAppName(row.getString(appName, dictionary));
+        customer.setSelectorRef(row.getString(selectorRef, dictionary));
+        customer.setMailingId(row.getString(mailingId));
+        customer.setDocRef(row.getString(docRef));
+        customer.setSortField(row.getString(sortField));
+        customer.setLang(row.getString(lang, dictionary));
+        customer.setStationery(row.getString(stationery, dictionary));
+        customer.setBatchType(row.getString(batchType, dictionary));
+        customer.setSubBatch(row.getString(subBatch, dictionary));
+        customer.setFleetNo(row.getString(fleetNo));
+        customer.setGroupId(row.isBlank(groupId) ? null : row.getInt(groupId));
+        customer.setPaperSize(row.getString(paperSize, dictionary));
+        customer.setMsc(row.getString(msc, dictionary));
+
+        customer.setName1(row.getString(name1));
+        customer.setName2(row.getString(name2));
+        customer.setAdd1(row.getString(add1));
+        customer.setAdd2(row.getString(add2));
+        customer.setAdd3(row.getString(add3));
+        customer.setAdd4(row.getString(add4));
+        customer.setAdd5(row.getString(add5));
+        customer.setPostcode(row.getString(postcode));
+
+        customer.setDps(row.getString(dps));
+        customer.setCustomerContent(row.getString(customerContent));
+        customer.setNoOfPages(row.getInt(noOfPages));
+        customer.setEog(row.getString(eog));
+        customer.setWeight(row.getDouble(weightAndSize, '|', 0));
+        customer.setSize(row.getDouble(weightAndSize, '|', 1));
+        customer.setEnvelope(row.getString(envelope, dictionary));
+        customer.setProduct(row.getString(product, dictionary));
+        customer.setPresentationPriority(row.getInt(presentationPriority));
+        if (!row.isBlank(tpig)) customer.setTotalPagesInGroup(row.getInt(tpig));
+        customer.setRunDate(row.getString(runDate, dictionary));
+        return customer;
+    }
+
+    /**
+     * @param col column position
+     * @param customer the amended customer for the row
+     * @return the value to write to the column, or null to keep the input value
+     */
+    String outputValue(int col, Customer customer) {
+        if (col >= fieldForColumn.length || fieldForColumn[col] < 0) {
+            return null;
+        }
+        return outputFields.get(fieldForColumn[col]).valueOf(customer);
+    }
+
+    /**
+     * A column replaced by Save and the customer property written to it.
+     */
+    private static class OutputField {
+        private final String name;
+        private final String description;
+        private final Function<Customer, Object> value;
+        // A null value is an error and the input value is kept, otherwise null is written as empty
+        private final boolean required;
+
+        OutputField(String name, String description, Function<Customer, Object> value) {
+            this(name, description, value, false);
+        }
+
+        OutputField(String name, String description, Function<Customer, Object> value, boolean required) {
+            this.name = name;
+            this.description = description;
+            this.value = value;
+            this.required = required;
+        }
+
+        String valueOf(Customer customer) {
+            Object result = value.apply(customer);
+            if (result != null) {
+                return result.toString();
+            }
+            if (required) {
+                LOGGER.fatal("{} {}", description, name);
+                return null;
+            }
+            return "";
+        }
+    }
+}
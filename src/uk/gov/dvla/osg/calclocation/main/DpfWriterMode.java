@@ -0,0 +1,12 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * How the output DPF is written, set by the dpfWriter property in the AppConfig.
+ * Defaults to TSV_WRITER when the DPF is loaded with the univocity reader and SPLICE otherwise.
+ */
+public enum DpfWriterMode {
+    // univocity TsvWriter, every field of every row written again
+    TSV_WRITER,
+    // Input lines copied from the memory mapped input with only the changed columns replaced
+    SPLICE
+}
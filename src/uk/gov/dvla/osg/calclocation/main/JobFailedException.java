@@ -0,0 +1,20 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+/**
+ * Thrown when a job can't continue, e.g. because of invalid arguments or a missing configuration file.
+ * The message is logged as the reason the job failed.
+ * @author OSG
+ *
+ */
+public class JobFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public JobFailedException(String message) {
+        super(message);
+    }
+
+    public JobFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,9 +1,15 @@
 package uk.gov.dvla.osg.calclocation.main;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -14,10 +20,14 @@ import org.apache.logging.log4j.Logger;
 import uk.gov.dvla.osg.calclocation.comparators.CustomerComparator;
 import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorOriginalOrder;
 import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.comparators.SortState;
 import uk.gov.dvla.osg.calclocation.engine.BatchEngine;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
 import uk.gov.dvla.osg.calclocation.location.LocationCalculator;
 import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
 import uk.gov.dvla.osg.calclocation.methods.TotalPagesInGroup;
+import uk.gov.dvla.osg.calclocation.pipeline.Pipeline;
+import uk.gov.dvla.osg.calclocation.pipeline.Stage;
 import uk.gov.dvla.osg.common.classes.Customer;
 import uk.gov.dvla.osg.common.classes.Selector;
 import uk.gov.dvla.osg.common.classes.Utils;
@@ -30,26 +40,75 @@ public class Main {
     private static final Logger LOGGER = LogManager.getLogger();
     //private static AppConfig appConfig;
     private static final int EXPECTED_NO_OF_ARGS = 6;
+    // Run metrics are written next to the output file
+    private static final String METRICS_SUFFIX = ".metrics.json";
+    // First argument that starts the daemon rather than running a single job
+    private static final String DAEMON_ARG = "--daemon";
+    // Option followed by the stage to resume the job from, may be given before or after the job args
+    private static final String RESUME_ARG = "--resume-from";
+    // Checkpoints are written next to the output file, as <output>.<stage>.ckpt
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    // Configuration and lookup files already loaded, only used again by the daemon
+    private static final ConfigCache CONFIG_CACHE = new ConfigCache();
     //Argument Strings
     private static String inputFile, outputFile, propsFile, runNo;
     private static int tenDigitJid;
     private static int eightDigitJid;
+    private static CheckpointStage resumeFrom;
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && DAEMON_ARG.equals(args[0])) {
+            Daemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        int status = run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a single job. Jobs are run one at a time, as the configuration and lookups are shared.
+     * @param args 1. Props file, 2. Input file, 3. Output file, 4. Run No, 5. 8 Digit Job Id, 6. 10 Digit Parent Jid,
+     *          optionally with --resume-from load|location|groups to start from the checkpoint taken after that stage
+     * @return the exit status of the job, 0 on success and 1 on failure
+     * @throws ConfigReloadException the job needs a configuration file other than the one already loaded in this JVM
+     */
+    static int run(String[] args) {
         LOGGER.info("---- CalcLocation Started ----");
 
+        Future<ConfigBundle.SelectorConfigs> lookups = null;
         try {
             // assign & validate command line args
             LOGGER.trace("Assigning Args...");
             assignArgs(args);
             // load the Application Configuration file
             LOGGER.trace("Loading AppConfig...");
-            AppConfig.init(propsFile);
+            CONFIG_CACHE.load("AppConfig", propsFile, AppConfig::reload);
+            RunMetrics metrics = new RunMetrics(AppConfig.getInstance().isRunMetrics());
+            RunMetrics.Stage run = metrics.start("total");
             // load customers from dpf file
             LOGGER.trace("Initialising DPF Parser...");
             DpfParser dpf = new DpfParser(inputFile, outputFile);
-            LOGGER.trace("Loading customers from {}...", inputFile);
-            ArrayList<Customer> customers = dpf.Load();
+            // Each source file is checksummed once, by the first checkpoint written or read
+            Checkpoint.Sources sources = new Checkpoint.Sources(propsFile, inputFile);
+            ArrayList<Customer> customers;
+            if (resumeFrom == null) {
+                lookups = startLookups(dpf);
+                LOGGER.trace("Loading customers from {}...", inputFile);
+                try (RunMetrics.Stage stage = metrics.start("load")) {
+                    customers = dpf.Load();
+                    stage.setRecords(customers.size());
+                }
+                checkpoint(CheckpointStage.LOAD, customers, sources, metrics);
+            } else {
+                LOGGER.trace("Resuming from the {} checkpoint...", resumeFrom);
+                try (RunMetrics.Stage stage = metrics.start("resume")) {
+                    customers = resume(dpf, sources);
+                    stage.setRecords(customers.size());
+                }
+            }
+            run.setRecords(customers.size());
             // Summary Print to check batch volumes before and after
             String summaryBefore = Utils.summaryPrint(customers);
             LOGGER.info(summaryBefore);
@@ -57,87 +116,162 @@ public class Main {
             // Load Selector Lookup & Production Config files
             String selRef = customers.get(0).getSelectorRef();
             LOGGER.trace("Loading Lookup Files For Selector {}...", selRef);
-            loadLookupFiles(selRef);
+            ConfigBundle.SelectorConfigs configs;
+            RunMetrics.Stage lookupsStage = metrics.start("lookups");
+            configs = awaitLookups(lookups, selRef);
+            lookupsStage.close();
+            // Sites, EOG & TPIG also depend on the selector's configuration files
+            sources.addAll(configs.getFiles(AppConfig.getInstance()));
             
-            // Sort Order: Language -> Presentation Priority
-            LOGGER.trace("Sorting input...");
-            sortCustomers(customers, new CustomerComparator());
-            
-            // Calculate sites for every customer
-            LOGGER.trace("Starting CalcLocation...");
-            LocationCalculator calculateLocation = new LocationCalculator();
-            LOGGER.trace("Running calculate...");
-            calculateLocation.calculate(customers);
+            SortState sortState = new SortState();
+            // One store serves the location and the groups, it is put into location order rather than built again
+            CustomerStore store = null;
+            if (!isResumedAfter(CheckpointStage.LOCATION)) {
+                // Sort Order: Language -> Presentation Priority
+                LOGGER.trace("Sorting input...");
+                try (RunMetrics.Stage stage = metrics.start("sort.presentation")) {
+                    sortCustomers(customers, new CustomerComparator(), sortState);
+                    stage.setRecords(customers.size());
+                }
+                try (RunMetrics.Stage stage = metrics.start("store")) {
+                    store = CustomerStore.of(customers);
+                    stage.setRecords(customers.size());
+                }
+                
+                // Calculate sites for every customer
+                LOGGER.trace("Starting CalcLocation...");
+                LocationCalculator calculateLocation = new LocationCalculator();
+                LOGGER.trace("Running calculate...");
+                try (RunMetrics.Stage stage = metrics.start("location")) {
+                    calculateLocation.calculate(store);
+                    // The location sort and the checkpoint read the sites from the customers
+                    store.materialise();
+                    stage.setRecords(customers.size());
+                }
+                checkpoint(CheckpointStage.LOCATION, customers, sources, metrics);
+            }
            
             /*
              * Sort order: LOCATION -> LANGUAGE -> STATIONERY -> PRESENTATION_ORDER -> SUB_BATCH -> SORT_FIELD -> FLEET_NO -> MSC -> GRP_ID
              */
-            LOGGER.trace("Sorting input...");
-            sortCustomers(customers, new CustomerComparatorWithLocation());
-            
-            // Calculate EOGs ready for the batch engine
-            LOGGER.trace("Calculating EOGs...");
-            CalculateEndOfGroups eogs = new CalculateEndOfGroups();
-            eogs.calculate(customers);
-            TotalPagesInGroup tpig = new TotalPagesInGroup();
-            tpig.calculate(customers);
+            // A job resumed after the groups has no sort state yet, so it is only sorted once, after the groups
+            if (!isResumedAfter(CheckpointStage.GROUPS)) {
+                LOGGER.trace("Sorting input...");
+                try (RunMetrics.Stage stage = metrics.start("sort.location")) {
+                    sortCustomers(customers, new CustomerComparatorWithLocation(), sortState);
+                    stage.setRecords(customers.size());
+                }
+            }
             
             /*
              * Sort order: LOCATION -> LANGUAGE -> STATIONERY -> PRESENTATION_ORDER -> SUB_BATCH -> SORT_FIELD -> FLEET_NO -> MSC -> GRP_ID
+             * EOG & TPIG don't change any sort fields, so the list is only re-sorted when the comparator has no single order for it.
+             * When it does have one the sort would change nothing, so the MSC is set on Unsorted in the same pass,
+             * unless the groups checkpoint is taken, which holds the customers before the MSC is set.
              */
-            LOGGER.trace("Sorting input...");
-            sortCustomers(customers, new CustomerComparatorWithLocation());
-            // Set MSC to 99999 on Unsorted to enable batching and tray sorting
-            LOGGER.trace("Adding temp MSC to UNSORTED...");
-            setMscOnUnsorted(customers);
+            boolean inLocationOrder = sortState.isInOrder(new CustomerComparatorWithLocation());
+            boolean mscInGroupsPass = inLocationOrder && !isResumedAfter(CheckpointStage.GROUPS)
+                    && !AppConfig.getInstance().isCheckpoint(CheckpointStage.GROUPS);
+            if (!isResumedAfter(CheckpointStage.GROUPS)) {
+                // Calculate EOGs & TPIG ready for the batch engine, in a single pass over the customers
+                LOGGER.trace("Calculating EOGs...");
+                try (RunMetrics.Stage stage = metrics.start("store")) {
+                    // A job resumed after the location has no store yet
+                    store = store != null ? store.reorder(customers) : CustomerStore.of(customers);
+                    stage.setRecords(customers.size());
+                }
+                Pipeline groups = new Pipeline(metrics, AppConfig.getInstance().isFuseStages())
+                        .add(new CalculateEndOfGroups().stage(store))
+                        .add(new TotalPagesInGroup().stage(store))
+                        .add(store.materialiseStage());
+                if (mscInGroupsPass) {
+                    groups.add(setMscStage(customers, BatchType.UNSORTED, "99999", sortState));
+                }
+                groups.run(customers.size());
+                checkpoint(CheckpointStage.GROUPS, customers, sources, metrics);
+            }
+            if (!inLocationOrder) {
+                LOGGER.trace("Sorting input...");
+                try (RunMetrics.Stage stage = metrics.start("sort.location")) {
+                    sortCustomers(customers, new CustomerComparatorWithLocation(), sortState);
+                    stage.setRecords(customers.size());
+                }
+            }
+            if (!mscInGroupsPass) {
+                // Set MSC to 99999 on Unsorted to enable batching and tray sorting
+                LOGGER.trace("Adding temp MSC to UNSORTED...");
+                setMscOnUnsorted(customers, sortState);
+            }
             // Putting into batches that are above the 25 tray minimum
             LOGGER.trace("Running Batch Engine...");
-            BatchEngine be = new BatchEngine(tenDigitJid, eightDigitJid);
-            be.batch(customers);
+            try (RunMetrics.Stage stage = metrics.start("batch")) {
+                BatchEngine be = new BatchEngine(tenDigitJid, eightDigitJid, metrics);
+                be.batch(customers, sortState);
+                stage.setRecords(customers.size());
+            }
             LOGGER.trace("Creating UkMail Resources...");
-            CreateUkMailResources ukm = new CreateUkMailResources(customers, runNo);
-            ukm.method();
-            // Remove the 99999 MSC that was set on Unsorted
-            removeMscOnUnsorted(customers);
-            // Return to original order to map records row by row
-            LOGGER.trace("Sorting back to original order...");
-            sortCustomers(customers, new CustomerComparatorOriginalOrder());
+            try (RunMetrics.Stage stage = metrics.start("ukMailResources")) {
+                CreateUkMailResources ukm = new CreateUkMailResources(customers, runNo);
+                ukm.method();
+                stage.setRecords(customers.size());
+            }
+            // Remove the 99999 MSC that was set on Unsorted and return to original order to map records row by row
+            LOGGER.trace("Restoring original order...");
+            OriginalOrder originalOrder = new OriginalOrder(customers);
+            new Pipeline(metrics, AppConfig.getInstance().isFuseStages())
+                    .add(setMscStage(customers, BatchType.UNSORTED, "", sortState))
+                    .add(originalOrder)
+                    .run(customers.size());
+            originalOrder.restore(sortState);
             // Dpf saves the changed details to the output file
             LOGGER.trace("Saving DPF file...");
-            dpf.Save(customers);
+            try (RunMetrics.Stage stage = metrics.start("save")) {
+                dpf.Save(customers);
+                stage.setRecords(customers.size());
+            }
             LOGGER.trace("Data saved to: {}", outputFile);
             // Summary Print to check batch volumes before and after
             String summaryAfter = Utils.summaryPrint(customers);
             LOGGER.info(summaryAfter);
+            run.close();
+            metrics.write(outputFile + METRICS_SUFFIX);
+        } catch (JobFailedException ex) {
+            LOGGER.fatal(ex.getMessage());
+            return 1;
+        } catch (ConfigReloadException ex) {
+            // Left to the daemon, which runs the job again in a new JVM
+            throw ex;
         } catch (Exception ex) {
             LOGGER.fatal(ExceptionUtils.getStackTrace(ex));
-            System.exit(1);
+            return 1;
+        } finally {
+            // A job that fails during load leaves the lookups to finish before the next job loads its own
+            waitQuietly(lookups);
         }
         LOGGER.info("---- CalcLocation Finished ----");
+        return 0;
     }
 
     private static void assignArgs(String[] args) {
+        args = assignResumeFrom(args);
         if (args.length != EXPECTED_NO_OF_ARGS) {
-            LOGGER.fatal("Incorrect number of args parsed '{}' expecting '{}'. " 
+            throw new JobFailedException(String.format("Incorrect number of args parsed '%d' expecting '%d'. " 
                     + "Args are " + "1. Props file, "
                     + "2. Input file, " + "3. Output file, " + "4. Run No, " 
                     + "5. 8 Digit Job Id, "
-                    + "6. 10 Digit Parent Jid.", args.length, EXPECTED_NO_OF_ARGS);
-            System.exit(1);
+                    + "6. 10 Digit Parent Jid.", args.length, EXPECTED_NO_OF_ARGS));
         }
 
         propsFile = args[0];
         boolean propsFileExists = new File(propsFile).exists();
         if (!propsFileExists) {
-            LOGGER.fatal("Properties File '{}' doesn't exist", propsFile);
-            System.exit(1);
+            throw new JobFailedException(String.format("Properties File '%s' doesn't exist", propsFile));
         }
 
         inputFile = args[1];
         boolean inputFileExists = new File(inputFile).exists();
         if (!inputFileExists) {
-            LOGGER.fatal("Input File '{}' doesn't exist on the filepath.", inputFile);
-            System.exit(1);
+            throw new JobFailedException(String.format("Input File '%s' doesn't exist on the filepath.", inputFile));
         }
 
         outputFile = args[2];
@@ -145,8 +279,7 @@ public class Main {
         runNo = args[3];
         boolean runNoIsNumeric = StringUtils.isNumeric(runNo);
         if (!runNoIsNumeric) {
-            LOGGER.fatal("Invalid character in Run No. [{}]", runNo);
-            System.exit(1);
+            throw new JobFailedException(String.format("Invalid character in Run No. [%s]", runNo));
         }
 
         String ipwJid = args[4];
@@ -154,8 +287,7 @@ public class Main {
         if (ipwJidIsNumeric) {
             eightDigitJid = Integer.parseInt(ipwJid);
         } else {
-            LOGGER.fatal("Invalid character in Eight Digit JID [{}]", ipwJid);
-            System.exit(1);
+            throw new JobFailedException(String.format("Invalid character in Eight Digit JID [%s]", ipwJid));
         }
 
         String rpdJid = args[5];
@@ -163,72 +295,305 @@ public class Main {
         if (rpdJidIsNumeric) {
             tenDigitJid = Integer.parseInt(rpdJid);
         } else {
-            LOGGER.fatal("Invalid character in Ten Digit JID [{}]", rpdJid);
-            System.exit(1);
+            throw new JobFailedException(String.format("Invalid character in Ten Digit JID [%s]", rpdJid));
+        }
+    }
+
+    /**
+     * Takes the --resume-from option out of the args, as it can be given in any position.
+     * @return the remaining args
+     */
+    private static String[] assignResumeFrom(String[] args) {
+        resumeFrom = null;
+        List<String> remaining = new ArrayList<>(Arrays.asList(args));
+        int idx = remaining.indexOf(RESUME_ARG);
+        if (idx < 0) {
+            return args;
+        }
+        if (idx + 1 >= remaining.size()) {
+            throw new JobFailedException(String.format("No stage given after %s, expecting one of %s", RESUME_ARG,
+                    Arrays.toString(CheckpointStage.values())));
+        }
+        String stage = remaining.get(idx + 1);
+        try {
+            resumeFrom = CheckpointStage.of(stage);
+        } catch (IllegalArgumentException ex) {
+            throw new JobFailedException(String.format("Invalid stage to resume from [%s], expecting one of %s", stage,
+                    Arrays.toString(CheckpointStage.values())));
+        }
+        remaining.subList(idx, idx + 2).clear();
+        return remaining.toArray(new String[remaining.size()]);
+    }
+
+    /**
+     * @return true if the job was resumed from the checkpoint taken after the stage or a later one, so the stage has already run
+     */
+    private static boolean isResumedAfter(CheckpointStage stage) {
+        return resumeFrom != null && resumeFrom.compareTo(stage) >= 0;
+    }
+
+    private static String checkpointFile(CheckpointStage stage) {
+        return outputFile + "." + stage.name().toLowerCase() + CHECKPOINT_SUFFIX;
+    }
+
+    /**
+     * Writes the checkpoint for the stage when it is set in the AppConfig. Checkpoints are optional,
+     * so the job carries on without one that can't be written.
+     */
+    private static void checkpoint(CheckpointStage stage, ArrayList<Customer> customers, Checkpoint.Sources sources, RunMetrics metrics) {
+        if (!AppConfig.getInstance().isCheckpoint(stage)) {
+            return;
+        }
+        String file = checkpointFile(stage);
+        LOGGER.trace("Writing {} checkpoint to {}...", stage, file);
+        try (RunMetrics.Stage metric = metrics.start("checkpoint." + stage.name().toLowerCase())) {
+            Checkpoint.write(file, stage, customers, sources);
+            metric.setRecords(customers.size());
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to write {} checkpoint [{}] : {}", stage, file, ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads the customers from the checkpoint of the stage being resumed from and binds the input file's columns for Save.
+     * The checkpoint must have been taken from the same properties and input files, and none of its files may have changed.
+     */
+    private static ArrayList<Customer> resume(DpfParser dpf, Checkpoint.Sources sources) {
+        String file = checkpointFile(resumeFrom);
+        ArrayList<Customer> customers;
+        try {
+            customers = Checkpoint.read(file, resumeFrom, sources);
+            dpf.loadSchema();
+        } catch (IOException ex) {
+            throw new JobFailedException(String.format("Unable to resume from %s checkpoint [%s] : %s", resumeFrom, file, ex.getMessage()), ex);
+        }
+        if (customers.isEmpty()) {
+            throw new JobFailedException(String.format("Checkpoint [%s] holds no customers", file));
         }
+        return customers;
     }
 
-    private static void loadLookupFiles(String selRef) {
+    /**
+     * Loads the lookup files for the selector as a job does, for tools that run the stages outside of a job such as the benchmarks.
+     * The AppConfig must already be initialised.
+     * @param selRef the selector
+     */
+    public static void loadLookups(String selRef) {
+        loadLookupFiles(selRef);
+    }
+
+    /**
+     * Loads the lookup files for the selector. Files that were loaded by an earlier job and haven't changed since are not loaded again.
+     * @throws ConfigReloadException a file differs from the one an earlier job in this JVM loaded
+     * The selector is looked up in the config bundle when one is set in the AppConfig and is up to date.
+     * @return the selector's config names
+     */
+    static ConfigBundle.SelectorConfigs loadLookupFiles(String selRef) {
 
         AppConfig appConfig = AppConfig.getInstance();
-        SelectorLookup.init(appConfig.getLookupFile());
-        Selector selector = null;
+        ConfigBundle.SelectorConfigs configs = bundledConfigs(appConfig, selRef);
+        if (configs == null) {
+            CONFIG_CACHE.loadOnce("SelectorLookup", appConfig.getLookupFile(), SelectorLookup::init);
+            Selector selector = null;
 
-        if (SelectorLookup.getInstance().isPresent(selRef)) {
-            selector = SelectorLookup.getInstance().getSelector(selRef);
-        } else {
-            LOGGER.fatal("Selector [{}] is not present in the lookupFile.", selRef);
-            System.exit(1);
+            if (SelectorLookup.getInstance().isPresent(selRef)) {
+                selector = SelectorLookup.getInstance().getSelector(selRef);
+            } else {
+                throw new JobFailedException(String.format("Selector [%s] is not present in the lookupFile.", selRef));
+            }
+            configs = new ConfigBundle.SelectorConfigs(selector.getProductionConfig(), selector.getPostageConfig(), selector.getPresentationConfig());
         }
 
-        String prodConfigFile = appConfig.getProductionConfigPath() + selector.getProductionConfig() + appConfig.getProductionFileSuffix();
+        String prodConfigFile = configs.getProductionConfigFile(appConfig);
         if (new File(prodConfigFile).isFile()) {
-            ProductionConfiguration.init(prodConfigFile);
+            CONFIG_CACHE.loadOnce("ProductionConfiguration", prodConfigFile, ProductionConfiguration::init);
         } else {
-            LOGGER.fatal("Production Configuration File [{}] doesn't exist on the filepath.", prodConfigFile);
-            System.exit(1);
+            throw new JobFailedException(String.format("Production Configuration File [%s] doesn't exist on the filepath.", prodConfigFile));
         }
 
-        String postConfigFile = appConfig.getPostageConfigPath() + selector.getPostageConfig() + appConfig.getPostageFileSuffix();
+        String postConfigFile = configs.getPostageConfigFile(appConfig);
         if (new File(postConfigFile).isFile()) {
-            PostageConfiguration.init(postConfigFile);
+            CONFIG_CACHE.loadOnce("PostageConfiguration", postConfigFile, PostageConfiguration::init);
         } else {
-            LOGGER.fatal("Postage Configuration File [{}] doesn't exist on the filepath.", postConfigFile);
-            System.exit(1);
+            throw new JobFailedException(String.format("Postage Configuration File [%s] doesn't exist on the filepath.", postConfigFile));
         }
 
        
-        String presConfigFile = appConfig.getPresentationPriorityConfigPath() + selector.getPresentationConfig() + appConfig.getPresentationPriorityFileSuffix();
+        String presConfigFile = configs.getPresentationConfigFile(appConfig);
         if (new File(presConfigFile).isFile()) {
-            PresentationConfiguration.init(presConfigFile);
+            CONFIG_CACHE.loadOnce("PresentationConfiguration", presConfigFile, PresentationConfiguration::init);
         } else {
-            LOGGER.fatal("Presentation Configuration File [{}] doesn't exist on the filepath.", presConfigFile);
-            System.exit(1);
+            throw new JobFailedException(String.format("Presentation Configuration File [%s] doesn't exist on the filepath.", presConfigFile));
         }
         
-        InsertLookup.init(appConfig.getInsertLookup());
-        EnvelopeLookup.init(appConfig.getEnvelopeLookup());
-        PapersizeLookup.init(appConfig.getPapersizeLookup());
+        CONFIG_CACHE.loadOnce("InsertLookup", appConfig.getInsertLookup(), InsertLookup::init);
+        CONFIG_CACHE.loadOnce("EnvelopeLookup", appConfig.getEnvelopeLookup(), EnvelopeLookup::init);
+        CONFIG_CACHE.loadOnce("PapersizeLookup", appConfig.getPapersizeLookup(), PapersizeLookup::init);
+        return configs;
     }
 
-    private static void sortCustomers(ArrayList<Customer> list, Comparator comparator) {
+    /**
+     * Starts loading the lookup files for the selector of the first row of the input on a background thread,
+     * so that they load while the main thread loads the customers. Loading the customers doesn't use the lookups.
+     * @return the lookups being loaded, or null if the selector couldn't be read and the lookups are to be loaded after the customers
+     */
+    private static Future<ConfigBundle.SelectorConfigs> startLookups(DpfParser dpf) {
+        String selRef;
         try {
-            Collections.sort(list, comparator);
+            selRef = dpf.readSelectorRef();
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Unable to read the selector before loading [{}] : {}", inputFile, ex.getMessage());
+            return null;
+        }
+        if (StringUtils.isBlank(selRef)) {
+            return null;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "lookups");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            return executor.submit(() -> loadLookupFiles(selRef));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the lookups started by startLookups, or loads them now if they weren't started.
+     * @return the selector's config names
+     */
+    private static ConfigBundle.SelectorConfigs awaitLookups(Future<ConfigBundle.SelectorConfigs> lookups, String selRef) throws InterruptedException {
+        if (lookups == null) {
+            return loadLookupFiles(selRef);
+        }
+        try {
+            return lookups.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new JobFailedException(String.format("Unable to load the lookup files for selector [%s] : %s", selRef, ex.getCause()), ex.getCause());
+        }
+    }
+
+    private static void waitQuietly(Future<?> task) {
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // Reported by awaitLookups if the job got that far
+        }
+    }
+
+    /**
+     * Looks the selector up in the config bundle set in the AppConfig.
+     * @return the selector's config names, or null if there is no bundle, the selector isn't in it or its files have changed
+     */
+    private static ConfigBundle.SelectorConfigs bundledConfigs(AppConfig appConfig, String selRef) {
+        String bundleFile = appConfig.getConfigBundle();
+        if (StringUtils.isBlank(bundleFile)) {
+            return null;
+        }
+        ConfigBundle bundle;
+        try {
+            bundle = ConfigBundle.read(bundleFile);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read config bundle [{}], reading the lookupFile : {}", bundleFile, ex.getMessage());
+            return null;
+        }
+        ConfigBundle.SelectorConfigs configs = bundle.getSelector(selRef);
+        if (configs == null) {
+            LOGGER.warn("Selector [{}] is not in config bundle [{}], reading the lookupFile", selRef, bundleFile);
+            return null;
+        }
+        String stale = bundle.findStale(configs, appConfig);
+        if (stale != null) {
+            LOGGER.warn("Config bundle [{}] is stale, [{}] has changed since it was compiled. Reading the lookupFile", bundleFile, stale);
+            return null;
+        }
+        return configs;
+    }
+
+    private static void sortCustomers(ArrayList<Customer> list, Comparator<Customer> comparator, SortState sortState) {
+        try {
+            sortState.sort(list, comparator);
         } catch (Exception e) {
-            LOGGER.fatal("Error when sorting: '{}'", e);
-            System.exit(1);
+            throw new JobFailedException(String.format("Error when sorting: '%s'", e), e);
         }
     }
 
-    private static void setMscOnUnsorted(ArrayList<Customer> customers) {
-        customers.stream().filter(customer -> BatchType.UNSORTED.equals(customer.getBatchType()))
-                .forEach(customer -> customer.setMsc("99999"));
+    /**
+     * Returns customers to the order they were read from the input file. The original index is a
+     * counter from 0 assigned on load, so as a stage each customer is placed straight into its position.
+     * Falls back to sorting on the original index if the indexes are not a complete sequence.
+     */
+    static class OriginalOrder implements Stage {
+        private final ArrayList<Customer> customers;
+        private final Customer[] original;
+        private boolean inSequence = true;
+
+        OriginalOrder(ArrayList<Customer> customers) {
+            this.customers = customers;
+            original = new Customer[customers.size()];
+        }
+
+        @Override
+        public String getName() {
+            return "restoreOrder";
+        }
+
+        @Override
+        public int accept(int position) {
+            int idx = customers.get(position).getOriginalIdx();
+            if (inSequence && (idx < 0 || idx >= original.length || original[idx] != null)) {
+                LOGGER.warn("Original index {} is out of sequence, sorting back to original order", idx);
+                inSequence = false;
+            }
+            if (inSequence) {
+                original[idx] = customers.get(position);
+            }
+            return position + 1;
+        }
+
+        /**
+         * Puts the customers into their original positions, once every customer has been accepted.
+         */
+        void restore(SortState sortState) {
+            if (!inSequence) {
+                sortCustomers(customers, new CustomerComparatorOriginalOrder(), sortState);
+                return;
+            }
+            for (int idx = 0; idx < original.length; idx++) {
+                customers.set(idx, original[idx]);
+            }
+            sortState.reset();
+        }
     }
 
-    private static void removeMscOnUnsorted(ArrayList<Customer> customers) {
-        customers.stream()
-                 .filter(customer -> BatchType.UNSORTED.equals(customer.getBatchType()))
-                 .forEach(customer -> customer.setMsc(""));
+    private static void setMscOnUnsorted(ArrayList<Customer> customers, SortState sortState) {
+        Stage stage = setMscStage(customers, BatchType.UNSORTED, "99999", sortState);
+        for (int idx = 0; idx < customers.size(); idx++) {
+            stage.accept(idx);
+        }
+    }
+
+    /**
+     * Sets the MSC for every customer of the batch type, marking the changed customers as out of sort order.
+     */
+    static Stage setMscStage(ArrayList<Customer> customers, BatchType batchType, String msc, SortState sortState) {
+        return Stage.perRecord("msc", idx -> {
+            Customer customer = customers.get(idx);
+            if (batchType.equals(customer.getBatchType()) && !msc.equals(customer.getMsc())) {
+                customer.setMsc(msc);
+                sortState.markDirty(idx);
+            }
+        });
     }
 
     /**
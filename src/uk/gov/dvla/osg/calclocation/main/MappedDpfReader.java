@@ -0,0 +1,678 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a tab separated DPF file by memory mapping it and scanning the bytes for tabs and line feeds.
+ * Fields are addressed by column index, so header names are resolved once per file rather than once per row,
+ * and ints and decimals are decoded straight from the bytes.
+ * <p>
+ * Values are read the way the univocity TsvParser reads them with the settings used by DpfParser:
+ * leading and trailing whitespace is trimmed, \t \n \r and \\ escapes are decoded and any whitespace they leave
+ * at the end of a value is trimmed, empty lines and lines starting with # are skipped, a UTF-8 byte order mark
+ * is skipped and fields missing from a short row read as null.
+ * Lines end with a line feed, optionally preceded by a carriage return, unless the first line ending in the file
+ * is a carriage return on its own, in which case every line ends with a carriage return. This is how the
+ * TsvParser detects the line separator.
+ * The file is decoded with the default charset, which must encode tab and line feed as single bytes.
+ * <p>
+ * A reader can also be opened over a range of whole lines, so that a large file can be read in parallel chunks,
+ * or over rows held in memory, so that rows kept from an earlier read can be spliced as the file's rows are.
+ * @author OSG
+ *
+ */
+class MappedDpfReader implements DpfRow, Closeable {
+
+    // Files above 1GB are mapped a segment at a time, each segment starting on a line boundary
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final byte TAB = '\t';
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private static final byte ESCAPE = '\\';
+    private static final byte COMMENT = '#';
+    private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+    // Decimals with more significant digits than this are passed to Double.parseDouble
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int idx = 1; idx < POWERS_OF_TEN.length; idx++) {
+            POWERS_OF_TEN[idx] = POWERS_OF_TEN[idx - 1] * 10;
+        }
+    }
+
+    // Null when reading rows held in memory
+    private final FileChannel channel;
+    // End of the range being read, the file size unless reading a chunk
+    private final long end;
+    private final long start;
+    private final Charset charset;
+    private final String[] headers;
+    // LF, or CR when lines end with a carriage return alone
+    private final byte lineSeparator;
+
+    private ByteBuffer segment;
+    private long segmentStart;
+    private int position;
+
+    // Current line and the trimmed span of each field in it
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int fieldCount;
+    // True when a field in the current line had whitespace trimmed from it
+    private boolean trimmed;
+    // True when a field in the current line holds an escape
+    private boolean escaped;
+    // Dictionary values already decoded by this reader, created on first use
+    private DpfDictionary.ByteCache dictionaryCache;
+
+    /**
+     * Opens the file and reads the header row.
+     * @param file the DPF file
+     * @throws IOException unable to read the file
+     */
+    MappedDpfReader(File file) throws IOException {
+        charset = defaultCharset();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        start = 0;
+        end = channel.size();
+        map(0);
+        if (startsWith(BOM)) {
+            position = BOM.length;
+        }
+        lineSeparator = detectLineSeparator();
+        headers = next() ? getValues() : new String[0];
+    }
+
+    /**
+     * Opens a reader over the rows in part of the file.
+     * @param file the DPF file
+     * @param start offset of the first line to read
+     * @param end offset after the last line to read
+     * @param headers the header row, read by a reader over the whole file
+     * @param lineSeparator the line separator found by a reader over the whole file
+     * @throws IOException unable to read the file
+     */
+    MappedDpfReader(File file, long start, long end, String[] headers, byte lineSeparator) throws IOException {
+        charset = defaultCharset();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.start = start;
+        this.end = end;
+        this.headers = headers;
+        this.lineSeparator = lineSeparator;
+        map(start);
+    }
+
+    /**
+     * Opens a reader over rows held in memory rather than in a file.
+     * @param rows the rows, each ending with a line feed
+     * @param headers the header row of the file the rows were read from
+     * @throws IOException the default charset is not supported
+     */
+    MappedDpfReader(ByteBuffer rows, String[] headers) throws IOException {
+        charset = defaultCharset();
+        channel = null;
+        start = 0;
+        end = rows.limit();
+        this.headers = headers;
+        lineSeparator = LF;
+        segment = rows;
+    }
+
+    /**
+     * Finds the first line ending in the file. A carriage return not followed by a line feed means that lines
+     * end with a carriage return, anything else that they end with a line feed.
+     */
+    private byte detectLineSeparator() {
+        int limit = segment.limit();
+        for (int idx = position; idx < limit; idx++) {
+            byte value = segment.get(idx);
+            if (value == LF) {
+                return LF;
+            }
+            if (value == CR) {
+                return idx + 1 < limit && segment.get(idx + 1) == LF ? LF : CR;
+            }
+        }
+        return LF;
+    }
+
+    private static Charset defaultCharset() throws IOException {
+        Charset charset = Charset.defaultCharset();
+        if (!isSupported(charset)) {
+            throw new IOException("Default charset " + charset + " is not supported by the mapped DPF reader");
+        }
+        return charset;
+    }
+
+    /**
+     * @return true if tab and line feed are single bytes in the charset
+     */
+    static boolean isSupported(Charset charset) {
+        return Arrays.equals("\t\n\r\\#".getBytes(charset), new byte[] { TAB, LF, CR, ESCAPE, COMMENT });
+    }
+
+    String[] getHeaders() {
+        return headers;
+    }
+
+    byte getLineSeparator() {
+        return lineSeparator;
+    }
+
+    /**
+     * @return offset in the file of the next line to be read
+     */
+    long getPosition() {
+        return segmentStart + position;
+    }
+
+    /**
+     * Splits the lines from an offset to the end of the file into ranges of roughly equal size.
+     * Every range starts at the beginning of a line.
+     * @param file the DPF file
+     * @param from offset of the first line, e.g. the position after the header row
+     * @param chunks number of ranges wanted
+     * @param lineSeparator the line separator of the file
+     * @return the range boundaries, range n runs from boundaries[n] to boundaries[n + 1]
+     * @throws IOException unable to read the file
+     */
+    static long[] splitLines(File file, long from, int chunks, byte lineSeparator) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] boundaries = new long[chunks + 1];
+            boundaries[0] = from;
+            boundaries[chunks] = size;
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (int chunk = 1; chunk < chunks; chunk++) {
+                long offset = Math.max(boundaries[chunk - 1], from + (size - from) * chunk / chunks);
+                boundaries[chunk] = offset > from ? lineStartFrom(channel, offset - 1, buffer, lineSeparator) : from;
+            }
+            return boundaries;
+        }
+    }
+
+    /**
+     * @return offset after the first line separator at or after the offset, or the file size if there is none
+     */
+    private static long lineStartFrom(FileChannel channel, long offset, ByteBuffer buffer, byte lineSeparator) throws IOException {
+        long size = channel.size();
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int idx = 0; idx < read; idx++) {
+                if (buffer.get(idx) == lineSeparator) {
+                    return offset + idx + 1;
+                }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    /**
+     * @param name column name from the AppConfig
+     * @return position of the column in each row
+     * @throws IllegalArgumentException the column is not in the header row
+     */
+    int columnIndex(String name) {
+        for (int idx = 0; idx < headers.length; idx++) {
+            if (name != null && name.equals(headers[idx])) {
+                return idx;
+            }
+        }
+        throw new IllegalArgumentException("Header name '" + name + "' not found in DPF file");
+    }
+
+    private void map(long from) throws IOException {
+        segmentStart = from;
+        // Rows held in memory are a single segment
+        if (channel != null) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, end - from));
+        }
+        position = 0;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (segment.limit() < prefix.length) {
+            return false;
+        }
+        for (int idx = 0; idx < prefix.length; idx++) {
+            if (segment.get(idx) != prefix[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next row of data.
+     * @return false at the end of the file
+     * @throws IOException unable to map the next segment of the file
+     */
+    boolean next() throws IOException {
+        while (readLine()) {
+            if (lineLength > 0 && line[0] != COMMENT) {
+                splitFields();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the next line, without its line separator, into the line buffer.
+     */
+    private boolean readLine() throws IOException {
+        if (segmentStart + position >= end) {
+            return false;
+        }
+        int lineEnd = position;
+        int limit = segment.limit();
+        while (true) {
+            while (lineEnd < limit && segment.get(lineEnd) != lineSeparator) {
+                lineEnd++;
+            }
+            if (lineEnd < limit || segmentStart + limit >= end) {
+                break;
+            }
+            // The line continues past the end of this segment, map again from the start of the line
+            if (position == 0) {
+                throw new IOException("DPF line at offset " + segmentStart + " is longer than " + SEGMENT_SIZE + " bytes");
+            }
+            map(segmentStart + position);
+            lineEnd = 0;
+            limit = segment.limit();
+        }
+        lineLength = lineEnd - position;
+        if (line.length < lineLength) {
+            line = new byte[Math.max(lineLength, line.length * 2)];
+        }
+        segment.position(position);
+        segment.get(line, 0, lineLength);
+        if (lineSeparator == LF && lineLength > 0 && line[lineLength - 1] == CR) {
+            lineLength--;
+        }
+        position = lineEnd + 1;
+        return true;
+    }
+
+    /**
+     * Records the start and end of each field in the line, with whitespace trimmed.
+     */
+    private void splitFields() {
+        fieldCount = 0;
+        trimmed = false;
+        escaped = false;
+        int start = 0;
+        for (int idx = 0; idx <= lineLength; idx++) {
+            if (idx < lineLength && line[idx] == ESCAPE) {
+                escaped = true;
+            } else if (idx == lineLength || line[idx] == TAB) {
+                if (fieldCount == starts.length) {
+                    starts = Arrays.copyOf(starts, fieldCount * 2);
+                    ends = Arrays.copyOf(ends, fieldCount * 2);
+                }
+                int from = start;
+                int to = idx;
+                while (from < to && isWhitespace(line[from])) {
+                    from++;
+                }
+                while (to > from && isWhitespace(line[to - 1])) {
+                    to--;
+                }
+                trimmed |= from != start || to != idx;
+                starts[fieldCount] = from;
+                ends[fieldCount] = to;
+                fieldCount++;
+                start = idx + 1;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return (value & 0xFF) <= ' ' && value != TAB;
+    }
+
+    /**
+     * @return every field of the current row
+     */
+    String[] getValues() {
+        String[] values = new String[fieldCount];
+        for (int col = 0; col < fieldCount; col++) {
+            values[col] = getString(col);
+        }
+        return values;
+    }
+
+    /**
+     * @return number of fields in the current row
+     */
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Writes the current row with the values of some columns replaced. The bytes between replaced columns are
+     * copied from the input in single ranges, so unchanged fields are never decoded or escaped again.
+     * Lines with whitespace around a field or an escape in a field are written field by field instead, so that
+     * each field is written as the univocity TsvWriter would write its value.
+     * @param out destination for the row, without a line separator
+     * @param columns positions of the columns to replace, in ascending order
+     * @param values encoded value for each replaced column, null keeps the input value
+     * @param width rows with fewer fields are padded out with empty fields
+     * @throws IOException unable to write
+     */
+    void writeRow(OutputStream out, int[] columns, byte[][] values, int width) throws IOException {
+        int next = 0;
+        if (trimmed || escaped) {
+            for (int col = 0; col < fieldCount; col++) {
+                if (col > 0) {
+                    out.write(TAB);
+                }
+                if (next < columns.length && columns[next] == col && values[next] != null) {
+                    out.write(values[next]);
+                } else {
+                    writeField(out, col);
+                }
+                if (next < columns.length && columns[next] == col) {
+                    next++;
+                }
+            }
+        } else {
+            int copied = 0;
+            for (; next < columns.length && columns[next] < fieldCount; next++) {
+                if (values[next] != null) {
+                    int col = columns[next];
+                    out.write(line, copied, starts[col] - copied);
+                    out.write(values[next]);
+                    copied = ends[col];
+                }
+            }
+            out.write(line, copied, lineLength - copied);
+        }
+        // Pad short rows, filling any replaced columns past the end of the input row
+        for (int col = fieldCount; col < width; col++) {
+            out.write(TAB);
+            if (next < columns.length && columns[next] == col) {
+                if (values[next] != null) {
+                    out.write(values[next]);
+                }
+                next++;
+            }
+        }
+    }
+
+    /**
+     * Writes a field of the current row. A field holding an escape is decoded and encoded again, as the escapes
+     * the TsvWriter writes can differ from those read, e.g. for \x or an escaped tab at the start of a value.
+     */
+    private void writeField(OutputStream out, int col) throws IOException {
+        int from = starts[col];
+        int to = ends[col];
+        if (escaped) {
+            for (int idx = from; idx < to; idx++) {
+                if (line[idx] == ESCAPE) {
+                    out.write(encode(getString(col)).getBytes(charset));
+                    return;
+                }
+            }
+        }
+        out.write(line, from, to - from);
+    }
+
+    /**
+     * @return true if the field is empty or missing from the current row
+     */
+    @Override
+    public boolean isBlank(int col) {
+        return col >= fieldCount || starts[col] == ends[col];
+    }
+
+    /**
+     * @return the field value, null if the field is missing from the current row
+     */
+    @Override
+    public String getString(int col) {
+        if (col >= fieldCount) {
+            return null;
+        }
+        if (isBlank(col)) {
+            return "";
+        }
+        int from = starts[col];
+        int to = ends[col];
+        for (int idx = from; idx < to; idx++) {
+            if (line[idx] == ESCAPE) {
+                return unescape(new String(line, from, to - from, charset));
+            }
+        }
+        return new String(line, from, to - from, charset);
+    }
+
+    /**
+     * Looks the field up by its bytes, so a value already in the dictionary is returned without decoding it.
+     * A reader should only be used with one dictionary.
+     */
+    @Override
+    public String getString(int col, DpfDictionary dictionary) {
+        if (isBlank(col)) {
+            return getString(col);
+        }
+        if (dictionaryCache == null) {
+            dictionaryCache = new DpfDictionary.ByteCache();
+        }
+        int from = starts[col];
+        int to = ends[col];
+        int hash = DpfDictionary.ByteCache.hash(line, from, to);
+        String value = dictionaryCache.get(line, from, to, hash);
+        if (value == null) {
+            value = dictionary.intern(getString(col));
+            dictionaryCache.put(line, from, to, hash, value);
+        }
+        return value;
+    }
+
+    /**
+     * Escapes a value the way the univocity TsvWriter does, with leading whitespace removed.
+     */
+    static String encode(String value) {
+        int start = 0;
+        while (start < value.length() && value.charAt(start) <= ' ') {
+            start++;
+        }
+        StringBuilder sb = null;
+        for (int idx = start; idx < value.length(); idx++) {
+            char ch = value.charAt(idx);
+            String escaped = ch == '\t' ? "\\t" : ch == '\n' ? "\\n" : ch == '\r' ? "\\r" : ch == '\\' ? "\\\\" : null;
+            if (escaped != null && sb == null) {
+                sb = new StringBuilder(value.length() + 8).append(value, start, idx);
+            }
+            if (sb != null) {
+                if (escaped != null) {
+                    sb.append(escaped);
+                } else {
+                    sb.append(ch);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value.substring(start);
+    }
+
+    /**
+     * Decodes the escapes in a value, then trims the whitespace at the end as the TsvParser does.
+     */
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int idx = 0; idx < value.length(); idx++) {
+            char ch = value.charAt(idx);
+            if (ch == '\\' && idx + 1 < value.length()) {
+                char escaped = value.charAt(++idx);
+                switch (escaped) {
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case '\\':
+                    sb.append('\\');
+                    break;
+                default:
+                    sb.append(ch).append(escaped);
+                }
+            } else {
+                sb.append(ch);
+            }
+        }
+        int length = sb.length();
+        while (length > 0 && sb.charAt(length - 1) <= ' ') {
+            length--;
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    /**
+     * @return the field as an int
+     * @throws NumberFormatException the field is blank or not a whole number
+     */
+    @Override
+    public int getInt(int col) {
+        if (isBlank(col)) {
+            throw new NumberFormatException("Column " + headerName(col) + " is blank");
+        }
+        int from = starts[col];
+        int to = ends[col];
+        boolean negative = line[from] == '-';
+        int idx = negative || line[from] == '+' ? from + 1 : from;
+        if (idx == to) {
+            throw numberFormat(col);
+        }
+        // Accumulate negatively so that Integer.MIN_VALUE can be read
+        int value = 0;
+        for (; idx < to; idx++) {
+            int digit = line[idx] - '0';
+            if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10) {
+                throw numberFormat(col);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) {
+                throw numberFormat(col);
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Reads one part of a field holding several decimals, e.g. the weight and size from 12.5|0.4
+     * Parts are split as StringUtils.split splits them, so adjacent separators don't make an empty part.
+     * @param col the column
+     * @param separator separates the decimals
+     * @param part the decimal to read, from 0
+     * @return the decimal
+     * @throws NumberFormatException the part is missing or not a decimal
+     */
+    @Override
+    public double getDouble(int col, char separator, int part) {
+        if (isBlank(col)) {
+            throw new NumberFormatException("Column " + headerName(col) + " is blank");
+        }
+        int from = starts[col];
+        int to = ends[col];
+        for (int count = 0; count <= part; count++) {
+            while (from < to && line[from] == separator) {
+                from++;
+            }
+            int end = from;
+            while (end < to && line[end] != separator) {
+                end++;
+            }
+            if (count == part && from < end) {
+                return parseDouble(from, end);
+            }
+            from = end;
+        }
+        throw numberFormat(col);
+    }
+
+    /**
+     * Decimals with up to 15 significant digits are exact as a long, and dividing by an exact power of ten
+     * rounds the same way as Double.parseDouble. Anything else goes to Double.parseDouble.
+     */
+    private double parseDouble(int from, int to) {
+        int idx = from;
+        while (idx < to && isWhitespace(line[idx])) {
+            idx++;
+        }
+        while (to > idx && isWhitespace(line[to - 1])) {
+            to--;
+        }
+        boolean negative = idx < to && line[idx] == '-';
+        if (negative || idx < to && line[idx] == '+') {
+            idx++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean anyDigits = false;
+        for (; idx < to; idx++) {
+            byte value = line[idx];
+            if (value == '.' && !point) {
+                point = true;
+            } else if (value >= '0' && value <= '9') {
+                mantissa = mantissa * 10 + (value - '0');
+                anyDigits = true;
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (point) {
+                    scale++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (idx < to || !anyDigits || digits > MAX_EXACT_DIGITS || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(new String(line, from, to - from, charset));
+        }
+        double result = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -result : result;
+    }
+
+    private NumberFormatException numberFormat(int col) {
+        return new NumberFormatException("For input string: \"" + getString(col) + "\" in column " + headerName(col));
+    }
+
+    private String headerName(int col) {
+        return headers != null && col < headers.length ? headers[col] : String.valueOf(col);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
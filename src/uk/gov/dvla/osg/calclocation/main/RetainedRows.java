@@ -0,0 +1,73 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The raw bytes of the input rows, kept from a univocity load so that Save can splice the changed values into them
+ * as the splice writer does with the lines of the input file, rather than parsing the input a second time.
+ * <p>
+ * Rows are held in the default charset without their line separators, each followed by a line feed, in blocks of
+ * whole rows. This takes about the size of the input file, where the parsed rows took several times that.
+ * @author OSG
+ *
+ */
+class RetainedRows {
+
+    // Blocks are filled to this size, a longer row gets a block of its own
+    private static final int BLOCK_SIZE = 1 << 26;
+    private static final byte LF = '\n';
+    private static final char CR = '\r';
+
+    private final Charset charset = Charset.defaultCharset();
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private byte[] block = new byte[0];
+    private int used;
+
+    /**
+     * @return true if rows can be kept in the default charset, which the splice reader must support
+     */
+    static boolean isSupported() {
+        return MappedDpfReader.isSupported(Charset.defaultCharset());
+    }
+
+    /**
+     * Adds a row as it was read from the input.
+     * @param content the text the row was parsed from, with or without its line separator
+     */
+    void add(String content) {
+        int length = content.length();
+        if (length > 0 && content.charAt(length - 1) == LF) {
+            length--;
+        }
+        if (length > 0 && content.charAt(length - 1) == CR) {
+            length--;
+        }
+        byte[] row = content.substring(0, length).getBytes(charset);
+        if (used + row.length + 1 > block.length) {
+            finishBlock();
+            block = new byte[Math.max(BLOCK_SIZE, row.length + 1)];
+        }
+        System.arraycopy(row, 0, block, used, row.length);
+        used += row.length;
+        block[used++] = LF;
+    }
+
+    /**
+     * @return the blocks of rows, in the order the rows were added
+     */
+    List<ByteBuffer> getBlocks() {
+        finishBlock();
+        return blocks;
+    }
+
+    private void finishBlock() {
+        if (used > 0) {
+            blocks.add(ByteBuffer.wrap(block, 0, used).slice());
+        }
+        block = new byte[0];
+        used = 0;
+    }
+}
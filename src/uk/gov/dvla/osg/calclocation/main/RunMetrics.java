@@ -0,0 +1,213 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records the wall time, CPU time, throughput, allocation and heap after GC of each pipeline stage
+ * and writes them out as a JSON report.
+ * CPU time and allocated bytes are summed over every live thread, so work done on the sort pool is included.
+ * Stages are timed with try-with-resources:
+ * <pre>
+ * try (RunMetrics.Stage stage = metrics.start("location")) {
+ *     ...
+ *     stage.setRecords(customers.size());
+ * }
+ * </pre>
+ * @author OSG
+ *
+ */
+public class RunMetrics {
+
+    private static final RunMetrics DISABLED = new RunMetrics(false);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean enabled;
+    private final long started = System.currentTimeMillis();
+    private final List<Stage> stages = new ArrayList<>();
+
+    public RunMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return an instance that records nothing
+     */
+    public static RunMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a stage, the stage is recorded when it is closed.
+     * @param name stage name, sub stages are prefixed with the name of their parent e.g. batch.adjustMultis
+     * @param records number of records the stage processes, can be set later with Stage.setRecords
+     * @return the running stage
+     */
+    public Stage start(String name, int records) {
+        return new Stage(name, records);
+    }
+
+    public Stage start(String name) {
+        return start(name, 0);
+    }
+
+    /**
+     * Writes the recorded stages as JSON. Nothing is written when metrics are disabled.
+     * @param file the report file
+     * @throws IOException unable to write the report
+     */
+    public void write(String file) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(toJson());
+        }
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"started\": ").append(started)
+            .append(",\n  \"processors\": ").append(Runtime.getRuntime().availableProcessors())
+            .append(",\n  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory())
+            .append(",\n  \"stages\": [");
+        for (int idx = 0; idx < stages.size(); idx++) {
+            Stage stage = stages.get(idx);
+            json.append(idx == 0 ? "\n" : ",\n")
+                .append("    {\"name\": \"").append(escape(stage.name))
+                .append("\", \"records\": ").append(stage.records)
+                .append(", \"wallMs\": ").append(String.format(Locale.ROOT, "%.3f", stage.wallNanos / 1e6))
+                .append(", \"cpuMs\": ").append(String.format(Locale.ROOT, "%.3f", stage.cpuNanos / 1e6))
+                .append(", \"recordsPerSec\": ").append(stage.recordsPerSec())
+                .append(", \"allocatedBytes\": ").append(stage.allocatedBytes)
+                .append(", \"heapAfterGcBytes\": ").append(stage.heapAfterGcBytes)
+                .append("}");
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * CPU time of every live thread, keyed on thread id.
+     */
+    private static Map<Long, Long> threadCpuTimes() {
+        Map<Long, Long> times = new HashMap<>();
+        if (THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled()) {
+            for (long id : THREADS.getAllThreadIds()) {
+                long time = THREADS.getThreadCpuTime(id);
+                if (time > 0) {
+                    times.put(id, time);
+                }
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Bytes allocated by every live thread, keyed on thread id. Empty when the JVM doesn't support allocation counts.
+     */
+    private static Map<Long, Long> threadAllocatedBytes() {
+        Map<Long, Long> bytes = new HashMap<>();
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                long[] ids = threads.getAllThreadIds();
+                long[] allocated = threads.getThreadAllocatedBytes(ids);
+                for (int idx = 0; idx < ids.length; idx++) {
+                    if (allocated[idx] > 0) {
+                        bytes.put(ids[idx], allocated[idx]);
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Sum over the threads alive now of the increase since the earlier snapshot.
+     * Threads started during the stage count from zero, threads that finished during the stage are lost.
+     */
+    private static long increase(Map<Long, Long> before, Map<Long, Long> after) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    /**
+     * Heap in use after the most recent collection of each heap pool.
+     */
+    private static long heapAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * A running stage, recorded when closed.
+     */
+    public class Stage implements AutoCloseable {
+        private final String name;
+        private int records;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+        private long heapAfterGcBytes;
+
+        private final long startNanos;
+        private final Map<Long, Long> startCpu;
+        private final Map<Long, Long> startAllocated;
+
+        private Stage(String name, int records) {
+            this.name = name;
+            this.records = records;
+            startCpu = enabled ? threadCpuTimes() : null;
+            startAllocated = enabled ? threadAllocatedBytes() : null;
+            startNanos = System.nanoTime();
+        }
+
+        public void setRecords(int records) {
+            this.records = records;
+        }
+
+        private long recordsPerSec() {
+            return wallNanos > 0 ? Math.round(records * 1e9 / wallNanos) : 0;
+        }
+
+        @Override
+        public void close() {
+            if (!enabled) {
+                return;
+            }
+            wallNanos = System.nanoTime() - startNanos;
+            cpuNanos = increase(startCpu, threadCpuTimes());
+            allocatedBytes = increase(startAllocated, threadAllocatedBytes());
+            heapAfterGcBytes = heapAfterGc();
+            stages.add(this);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes everything to two streams. Closing the tee closes the primary stream first.
+ * @author OSG
+ *
+ */
+class TeeOutputStream extends OutputStream {
+
+    private final OutputStream primary;
+    private final OutputStream branch;
+
+    TeeOutputStream(OutputStream primary, OutputStream branch) {
+        this.primary = primary;
+        this.branch = branch;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        primary.write(b);
+        branch.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        branch.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        primary.flush();
+        branch.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            primary.close();
+        } finally {
+            branch.close();
+        }
+    }
+}
@@ -1,54 +1,101 @@
 package uk.gov.dvla.osg.calclocation.methods;
 
-import java.util.List;
+import java.util.function.ToIntFunction;
 
-import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.engine.Envelopes;
+import uk.gov.dvla.osg.calclocation.pipeline.Stage;
 import uk.gov.dvla.osg.common.config.ProductionConfiguration;
+import uk.gov.dvla.osg.common.enums.FullBatchType;
 
 public class CalculateEndOfGroups {
 	
-	public void calculate(List<Customer> input) {
-		Customer currentCustomer;
-		Customer nextCustomer;
-		int pageCount = 0;
-		int maxPages = 0;
-		int nextCustIdx = 0;
-		ProductionConfiguration prodConfig = ProductionConfiguration.getInstance();
-		
-		for (int curCustIdx = 0; curCustIdx < input.size(); curCustIdx++) {
-		    
+	private final ToIntFunction<FullBatchType> groupMax;
+
+	/**
+	 * Takes the maximum pages in a group from the production configuration.
+	 */
+	public CalculateEndOfGroups() {
+		this(null);
+	}
+
+	/**
+	 * @param groupMax maximum pages in a group of each batch type
+	 */
+	public CalculateEndOfGroups(ToIntFunction<FullBatchType> groupMax) {
+		this.groupMax = groupMax;
+	}
+
+	/**
+	 * Sets the EOG markers and indexes the envelopes they close, so the stages that follow can work an envelope at a time.
+	 * @param input customers in list order
+	 * @return the envelopes
+	 */
+	public Envelopes calculate(CustomerStore input) {
+		Stage stage = stage(input);
+		for (int idx = 0; idx < input.size(); idx++) {
+			stage.accept(idx);
+		}
+		return Envelopes.of(input);
+	}
+
+	/**
+	 * The EOG calculation as a pipeline stage. The EOG of each customer is set as it is accepted, 
+	 * reading the group id and pages of the next customer.
+	 * @param input customers in list order
+	 * @return the stage
+	 */
+	public Stage stage(CustomerStore input) {
+		return new EndOfGroupsStage(input, groupMax != null ? groupMax : ProductionConfiguration.getInstance()::getGroupMax);
+	}
+
+	private static class EndOfGroupsStage implements Stage {
+		private final CustomerStore input;
+		private final ToIntFunction<FullBatchType> groupMax;
+		private int pageCount = 0;
+
+		EndOfGroupsStage(CustomerStore input, ToIntFunction<FullBatchType> groupMax) {
+			this.input = input;
+			this.groupMax = groupMax;
+		}
+
+		@Override
+		public String getName() {
+			return "eog";
+		}
+
+		@Override
+		public int accept(int curCustIdx) {
 			if (curCustIdx + 1 < input.size()) {
-				nextCustIdx = curCustIdx + 1;
-				currentCustomer = input.get(curCustIdx);
-				nextCustomer = input.get(nextCustIdx);
+				int nextCustIdx = curCustIdx + 1;
 				
-				maxPages = prodConfig.getGroupMax(currentCustomer.getFullBatchType());
+				int maxPages = groupMax.applyAsInt(input.getFullBatchType(curCustIdx));
 				
 				// Calculate EOG's on groups only, set EOG marker on all singles
-				if (currentCustomer.getGroupId() != null) {
+				if (input.hasGroupId(curCustIdx)) {
 				    // Check if customers belong to same group, if not set EOG on the current customer
-					if (currentCustomer.getGroupId().equals(nextCustomer.getGroupId())) {
-						pageCount = pageCount + currentCustomer.getNoOfPages();
+					if (input.getGroupId(curCustIdx) == input.getGroupId(nextCustIdx)) {
+						pageCount = pageCount + input.getNoOfPages(curCustIdx);
 						// Set the EOG marker when the maxPages limit is reached
-						if (pageCount + nextCustomer.getNoOfPages() > maxPages) {
-							currentCustomer.setEog();
+						if (pageCount + input.getNoOfPages(nextCustIdx) > maxPages) {
+							input.setEog(curCustIdx);
 							pageCount = 0;
 						}
 					} else {
 					    // Next customer is part of a new group so set EOG
-						currentCustomer.setEog();
+						input.setEog(curCustIdx);
 						pageCount = 0;
 					}
 				} else {
 				    // Single item, not group, so set EOG
-					currentCustomer.setEog();
+					input.setEog(curCustIdx);
 					pageCount = 0;
 				}
 			} else {
 				//Last customer
-				currentCustomer = input.get(curCustIdx);
-				currentCustomer.setEog();
+				input.setEog(curCustIdx);
 			}
+			return curCustIdx + 1;
 		}
 	}
 }
@@ -1,27 +1,64 @@
 package uk.gov.dvla.osg.calclocation.methods;
 
-import java.util.ArrayList;
-
-import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.engine.Envelopes;
+import uk.gov.dvla.osg.calclocation.pipeline.Stage;
 
 public class TotalPagesInGroup {
 	
-	private ArrayList<Customer> group = new ArrayList<Customer>();
-	private int pageInGroupCount;
-	
-	public void calculate(ArrayList<Customer> customers) {
-		for (Customer customer : customers) {
-			pageInGroupCount += customer.getNoOfPages();
-			group.add(customer);
-			calcTotalPagesInGroup(customer.isEog());
+	public void calculate(CustomerStore customers) {
+		calculate(customers, Envelopes.of(customers));
+	}
+
+	/**
+	 * Sets the total pages of each envelope on every customer in it.
+	 * @param customers customers in list order
+	 * @param envelopes the envelopes found when the EOGs were calculated
+	 */
+	public void calculate(CustomerStore customers, Envelopes envelopes) {
+		for (int envelope = 0; envelope < envelopes.size(); envelope++) {
+			int pageInGroupCount = envelopes.getNoOfPages(envelope);
+			for (int idx = envelopes.getStart(envelope); idx < envelopes.getStart(envelope + 1); idx++) {
+				customers.setTotalPagesInGroup(idx, pageInGroupCount);
+			}
 		}
 	}
 
-	private void calcTotalPagesInGroup(boolean isEog) {
-		if (isEog) {
-			group.forEach(customer -> customer.setTotalPagesInGroup(pageInGroupCount));
-			pageInGroupCount = 0;
-			group.clear();
+	/**
+	 * The total pages calculation as a pipeline stage, for running in the same pass as the EOG calculation.
+	 * Customers are held back until the EOG of their group is accepted.
+	 * @param customers customers in list order
+	 * @return the stage
+	 */
+	public Stage stage(CustomerStore customers) {
+		return new TotalPagesStage(customers);
+	}
+
+	private static class TotalPagesStage implements Stage {
+		private final CustomerStore customers;
+		private int groupStart = 0;
+		private int pageInGroupCount = 0;
+
+		TotalPagesStage(CustomerStore customers) {
+			this.customers = customers;
+		}
+
+		@Override
+		public String getName() {
+			return "tpig";
+		}
+
+		@Override
+		public int accept(int idx) {
+			pageInGroupCount += customers.getNoOfPages(idx);
+			if (customers.isEog(idx)) {
+				for (int groupIdx = groupStart; groupIdx <= idx; groupIdx++) {
+					customers.setTotalPagesInGroup(groupIdx, pageInGroupCount);
+				}
+				pageInGroupCount = 0;
+				groupStart = idx + 1;
+			}
+			return groupStart;
 		}
 	}
 }
@@ -0,0 +1,94 @@
+package uk.gov.dvla.osg.calclocation.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import uk.gov.dvla.osg.calclocation.main.RunMetrics;
+
+/**
+ * Runs stages over the records of a list. The stages are fused into a single pass: each record is handed to the
+ * next stage as soon as the stage before has finished with it, so the list is swept once rather than once per stage.
+ * The result is the same as running the stages one after another, as stages only read ahead of the current record
+ * for values that no earlier stage sets.
+ * <p>
+ * A fused pass is recorded in the run metrics as one stage, named after its stages e.g. eog+tpig.
+ * With fusion switched off each stage is run and timed as a pass of its own.
+ * @author OSG
+ *
+ */
+public class Pipeline {
+
+    private final RunMetrics metrics;
+    private final boolean fused;
+    private final List<Stage> stages = new ArrayList<>();
+    // Next record to hand to each stage, and the number of records each stage has finished with
+    private int[] next;
+    private int[] done;
+
+    /**
+     * @param metrics records the time taken by each pass
+     * @param fused true to run the stages in a single pass
+     */
+    public Pipeline(RunMetrics metrics, boolean fused) {
+        this.metrics = metrics;
+        this.fused = fused;
+    }
+
+    /**
+     * Adds a stage after the stages already added.
+     * @param stage the stage
+     * @return this pipeline
+     */
+    public Pipeline add(Stage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Runs the stages over every record.
+     * @param size number of records
+     */
+    public void run(int size) {
+        if (!fused || stages.size() == 1) {
+            for (Stage stage : stages) {
+                try (RunMetrics.Stage timer = metrics.start(stage.getName())) {
+                    for (int idx = 0; idx < size; idx++) {
+                        stage.accept(idx);
+                    }
+                    stage.finish();
+                    timer.setRecords(size);
+                }
+            }
+            return;
+        }
+        String name = stages.stream().map(Stage::getName).collect(Collectors.joining("+"));
+        try (RunMetrics.Stage timer = metrics.start(name)) {
+            next = new int[stages.size()];
+            done = new int[stages.size()];
+            for (int idx = 0; idx < size; idx++) {
+                feed(0, idx + 1);
+            }
+            // Each stage finishes once every record has reached it, releasing what it held back to the next
+            for (int idx = 0; idx < stages.size(); idx++) {
+                feed(idx, size);
+                stages.get(idx).finish();
+                done[idx] = size;
+            }
+            timer.setRecords(size);
+        }
+    }
+
+    /**
+     * Hands records to a stage up to the given position, then on down the stages as far as each has finished with them.
+     */
+    private void feed(int first, int upTo) {
+        for (int idx = first; idx < stages.size() && next[idx] < upTo; idx++) {
+            Stage stage = stages.get(idx);
+            while (next[idx] < upTo) {
+                done[idx] = stage.accept(next[idx]++);
+            }
+            upTo = done[idx];
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package uk.gov.dvla.osg.calclocation.pipeline;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A step of a Pipeline that works through the records of a list in list order.
+ * A stage is handed each record once the stage before it has finished with the record.
+ * It may finish with records straight away, or hold them back until it has seen the rest of a window,
+ * e.g. every customer of a group.
+ * @author OSG
+ *
+ */
+public interface Stage {
+
+    /**
+     * @return the stage name, used for the run metrics
+     */
+    String getName();
+
+    /**
+     * Processes the record at idx. Records after idx may be read, but only for values that no earlier stage sets.
+     * @param idx position of the record
+     * @return the number of records, counting from the first, that this stage has finished with
+     */
+    int accept(int idx);
+
+    /**
+     * Called once every record has been accepted, to finish with any records still held back.
+     */
+    default void finish() {
+    }
+
+    /**
+     * A stage that finishes with each record as soon as it is accepted.
+     * @param name stage name
+     * @param action processes the record at the position passed in
+     * @return the stage
+     */
+    static Stage perRecord(String name, IntConsumer action) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public int accept(int idx) {
+                action.accept(idx);
+                return idx + 1;
+            }
+        };
+    }
+}
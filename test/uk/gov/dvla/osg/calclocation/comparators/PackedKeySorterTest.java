@@ -0,0 +1,183 @@
+package uk.gov.dvla.osg.calclocation.comparators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Checks the packed key sort against Collections.sort with both comparators, on random lists with many ties.
+ */
+public class PackedKeySorterTest {
+
+    private static final int RUNS = 200;
+    // Values that share prefixes, are empty or hold characters outside ASCII
+    private static final String[] TEXT = { "", "A", "AB", "ABC", "AB ", "B", "a", "10", "9", "099", "é", "Aé",
+            "Z￿", "\u0000", "A\u0000" };
+    private static final Integer[] GROUP_IDS = { null, 0, 1, 2, -1, 1000, Integer.MIN_VALUE, Integer.MAX_VALUE };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void locationOrderMatchesTheComparator() {
+        Random random = new Random(3);
+        for (int run = 0; run < RUNS; run++) {
+            assertSameOrder(customers(random, false), new CustomerComparatorWithLocation());
+        }
+    }
+
+    @Test
+    public void presentationOrderMatchesTheComparator() {
+        Random random = new Random(5);
+        for (int run = 0; run < RUNS; run++) {
+            assertSameOrder(customers(random, false), new CustomerComparator());
+        }
+    }
+
+    @Test
+    public void longValuesSpanSeveralKeyWords() {
+        Random random = new Random(9);
+        List<Customer> customers = customers(random, false);
+        for (Customer customer : customers) {
+            customer.setSortField(customer.getSortField() + random.nextInt(1000) + "-" + random.nextLong());
+            customer.setFleetNo(random.nextInt(3) + customer.getFleetNo() + random.nextInt(10));
+        }
+        assertSameOrder(customers, new CustomerComparatorWithLocation());
+    }
+
+    @Test
+    public void listsWithoutATotalOrderAreLeftForTheComparator() throws IOException {
+        File props = folder.newFile();
+        Files.write(props.toPath(), "tenDigitJobIdIncrementValue=1\nsortMode=PACKED_KEY\n".getBytes(StandardCharsets.UTF_8));
+        AppConfig.reload(props.getPath());
+        Random random = new Random(7);
+        for (int run = 0; run < RUNS; run++) {
+            for (Comparator<Customer> comparator : comparators()) {
+                List<Customer> customers = customers(random, true);
+                if (comparator instanceof CustomerComparator) {
+                    // Sub batch isn't in the presentation order
+                    customers.forEach(customer -> customer.setPresentationPriority(null));
+                }
+                List<Customer> expected = new ArrayList<>(customers);
+                Collections.sort(expected, comparator);
+                List<Customer> packed = new ArrayList<>(customers);
+                assertFalse(PackedKeySorter.sort(packed, comparator));
+                assertEquals(indexes(customers), indexes(packed));
+                CustomerSorter.sort(packed, comparator);
+                assertEquals(indexes(expected), indexes(packed));
+            }
+        }
+    }
+
+    private static List<Comparator<Customer>> comparators() {
+        List<Comparator<Customer>> comparators = new ArrayList<>();
+        comparators.add(new CustomerComparator());
+        comparators.add(new CustomerComparatorWithLocation());
+        return comparators;
+    }
+
+    private static void assertSameOrder(List<Customer> customers, Comparator<Customer> comparator) {
+        List<Customer> expected = new ArrayList<>(customers);
+        Collections.sort(expected, comparator);
+        List<Customer> packed = new ArrayList<>(customers);
+        assertTrue(PackedKeySorter.sort(packed, comparator));
+        // Customer.equals only looks at a few fields, so the customers are told apart by index
+        assertEquals(indexes(expected), indexes(packed));
+    }
+
+    private static List<Integer> indexes(List<Customer> customers) {
+        List<Integer> indexes = new ArrayList<>();
+        for (Customer customer : customers) {
+            indexes.add(customer.getOriginalIdx());
+        }
+        return indexes;
+    }
+
+    /**
+     * @param withNulls give every customer a null presentation priority or sub batch
+     */
+    private static List<Customer> customers(Random random, boolean withNulls) {
+        int count = random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(400);
+        // Each list draws from a few of the values, so most customers tie on the leading fields
+        String[] text = few(random, TEXT);
+        String[] sortFields = strings(random);
+        String[] fleetNos = strings(random);
+        String[] mscs = strings(random);
+        Integer[] groupIds = few(random, GROUP_IDS);
+        int priorities = 1 + random.nextInt(3);
+        List<Customer> customers = new ArrayList<>();
+        while (customers.size() < count || withNulls && customers.size() < 2) {
+            // A list of one is already sorted, whatever it holds, so lists with nulls have two or more
+            Customer customer = new Customer(customers.size());
+            customer.setSite(random.nextBoolean() ? "F" : "M");
+            customer.setLang(random.nextBoolean() ? "E" : "W");
+            customer.setStationery(pick(random, text));
+            customer.setPresentationPriority(random.nextInt(priorities));
+            customer.setSubBatch(pick(random, text));
+            customer.setSortField(pick(random, sortFields));
+            customer.setFleetNo(pick(random, fleetNos));
+            customer.setMsc(pick(random, mscs));
+            customer.setGroupId(pick(random, groupIds));
+            customers.add(customer);
+        }
+        if (withNulls) {
+            // The comparators skip presentation priority and sub batch when either value is null, which is only
+            // a consistent order when the field is null for every customer
+            boolean priority = random.nextBoolean();
+            for (Customer customer : customers) {
+                if (priority) {
+                    customer.setPresentationPriority(null);
+                } else {
+                    customer.setSubBatch(null);
+                }
+            }
+        }
+        return customers;
+    }
+
+    /**
+     * @return a few of the listed values, or a few short words that are often prefixes of each other
+     */
+    private static String[] strings(Random random) {
+        if (random.nextBoolean()) {
+            return few(random, TEXT);
+        }
+        String[] words = new String[1 + random.nextInt(4)];
+        for (int idx = 0; idx < words.length; idx++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = random.nextInt(4); length > 0; length--) {
+                word.append(random.nextBoolean() ? 'A' : 'B');
+            }
+            words[idx] = word.toString();
+        }
+        return words;
+    }
+
+    private static <T> T[] few(Random random, T[] values) {
+        List<T> shuffled = new ArrayList<>(Arrays.asList(values));
+        Collections.shuffle(shuffled, random);
+        return shuffled.subList(0, 1 + random.nextInt(4)).toArray(Arrays.copyOf(values, 0));
+    }
+
+    private static <T> T pick(Random random, T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -0,0 +1,134 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Checks that balanced trays are within every limit and as few as an exhaustive search finds,
+ * and that the packer leaves an MSC to the greedy packing when no packing fits or its time budget runs out.
+ */
+public class BalancedTrayPackerTest {
+
+    private static final double MAX_SIZE = 25;
+    private static final double MAX_WEIGHT = 400;
+    private static final int MIN_VOLUME = 5;
+    private static final long BUDGET_MS = 60_000;
+
+    @Test
+    public void traysAreWithinTheLimitsAndFewest() {
+        Random random = new Random(17);
+        BalancedTrayPacker packer = new BalancedTrayPacker(MAX_SIZE, MAX_WEIGHT, MIN_VOLUME, BUDGET_MS);
+        int packed = 0;
+        for (int run = 0; run < 500; run++) {
+            Envelopes envelopes = envelopes(random, 1 + random.nextInt(120), true);
+            int[] starts = packer.pack(envelopes);
+            int fewest = fewestTrays(envelopes);
+            if (fewest < 0) {
+                assertNull(Arrays.toString(starts), starts);
+                continue;
+            }
+            assertNotNull(starts);
+            assertEquals(fewest, starts.length);
+            assertEquals(0, starts[0]);
+            for (int tray = 0; tray < starts.length; tray++) {
+                int end = tray + 1 < starts.length ? starts[tray + 1] : envelopes.size();
+                assertTrue(starts[tray] < end);
+                assertTrue(fits(envelopes, starts[tray], end));
+            }
+            packed++;
+        }
+        // Most MSCs can be packed, so the comparison isn't only of MSCs left to the greedy packing
+        assertTrue(String.valueOf(packed), packed > 250);
+    }
+
+    @Test
+    public void mscBelowTheMinimumVolumeIsLeftToGreedyPacking() {
+        BalancedTrayPacker packer = new BalancedTrayPacker(MAX_SIZE, MAX_WEIGHT, MIN_VOLUME, BUDGET_MS);
+        List<Customer> customers = new ArrayList<>();
+        for (int idx = 0; idx < MIN_VOLUME - 1; idx++) {
+            Customer customer = new Customer(idx);
+            customer.setNoOfPages(1);
+            customer.setSize(0.5);
+            customer.setWeight(10);
+            customer.setEog();
+            customers.add(customer);
+        }
+        assertNull(packer.pack(Envelopes.of(customers, 0, customers.size())));
+        assertNull(packer.pack(envelopes(new Random(3), 0, false)));
+    }
+
+    @Test
+    public void mscIsLeftToGreedyPackingWhenTheBudgetRunsOut() {
+        // The budget is checked every few thousand envelopes, so the MSC needs more than that
+        Envelopes envelopes = envelopes(new Random(5), 20_000, false);
+        assertNotNull(new BalancedTrayPacker(MAX_SIZE, MAX_WEIGHT, MIN_VOLUME, BUDGET_MS).pack(envelopes));
+        assertNull(new BalancedTrayPacker(MAX_SIZE, MAX_WEIGHT, MIN_VOLUME, 0).pack(envelopes));
+    }
+
+    /**
+     * Fewest trays found by trying every tray that ends at each envelope.
+     * @return the number of trays, or -1 when the envelopes can't be packed within every limit
+     */
+    private static int fewestTrays(Envelopes envelopes) {
+        int count = envelopes.size();
+        int[] trays = new int[count + 1];
+        Arrays.fill(trays, -1);
+        trays[0] = 0;
+        for (int end = 1; end <= count; end++) {
+            for (int start = 0; start < end; start++) {
+                if (trays[start] >= 0 && fits(envelopes, start, end)
+                        && (trays[end] < 0 || trays[start] + 1 < trays[end])) {
+                    trays[end] = trays[start] + 1;
+                }
+            }
+        }
+        return trays[count];
+    }
+
+    /**
+     * Adds up a tray the way the greedy packing does.
+     */
+    private static boolean fits(Envelopes envelopes, int start, int end) {
+        double size = 0;
+        double weight = 0;
+        for (int idx = start; idx < end; idx++) {
+            size += envelopes.getSize(idx);
+            weight += envelopes.getWeight(idx);
+        }
+        return size <= MAX_SIZE && weight <= MAX_WEIGHT && envelopes.getNoItems(start, end) >= MIN_VOLUME;
+    }
+
+    /**
+     * Envelopes of one to three customers. Sizes are in eighths so that trays add up exactly.
+     * @param heavy make some envelopes close to the tray limits on their own
+     */
+    private static Envelopes envelopes(Random random, int count, boolean heavy) {
+        List<Customer> customers = new ArrayList<>();
+        for (int envelope = 0; envelope < count; envelope++) {
+            int members = random.nextInt(4) == 0 ? 2 + random.nextInt(2) : 1;
+            boolean large = heavy && random.nextInt(20) == 0;
+            for (int member = 0; member < members; member++) {
+                Customer customer = new Customer(customers.size());
+                customer.setNoOfPages(1 + random.nextInt(4));
+                customer.setSize(large ? 6 + random.nextInt(4) : (1 + random.nextInt(8)) / 8.0);
+                customer.setWeight(large ? 90 + random.nextInt(20) : 5 + random.nextInt(20));
+                if (member == members - 1) {
+                    customer.setEog();
+                }
+                customers.add(customer);
+            }
+        }
+        return Envelopes.of(customers, 0, customers.size());
+    }
+}
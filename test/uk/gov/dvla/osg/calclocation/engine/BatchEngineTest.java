@@ -0,0 +1,147 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.main.AppConfig;
+import uk.gov.dvla.osg.calclocation.main.Main;
+import uk.gov.dvla.osg.calclocation.main.RunMetrics;
+import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.config.PostageConfiguration;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Checks that batching on several threads sets the same trays, JIDs and PIDs as batching on one.
+ * The engine needs the production, postage and presentation configuration, which is loaded as the benchmarks load it,
+ * from the AppConfig properties file and selector passed as -Dcalclocation.props and -Dcalclocation.selector.
+ * The test is skipped when they are not set.
+ */
+public class BatchEngineTest {
+
+    private static final String PROPS = "calclocation.props";
+    private static final String SELECTOR = "calclocation.selector";
+    // Enough UK Mail customers for the trays and the job ids to be set in parallel
+    private static final int CUSTOMERS = 150_000;
+    private static final int TEN_DIGIT_JID = 1_000_000_000;
+    private static final int EIGHT_DIGIT_JID = 12_345_678;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String props;
+    private String selector;
+
+    @Before
+    public void setUp() {
+        props = System.getProperty(PROPS);
+        selector = System.getProperty(SELECTOR);
+        assumeTrue("Set -D" + PROPS + " and -D" + SELECTOR + " to batch with a configuration",
+                StringUtils.isNoneBlank(props, selector));
+    }
+
+    @Test
+    public void threadsSetTheSameTraysAndJobIds() throws IOException {
+        for (long seed : new long[] { 1, 2 }) {
+            List<Customer> single = batch(seed, 1);
+            List<Customer> parallel = batch(seed, 4);
+            assertEquals(single.size(), parallel.size());
+            for (int idx = 0; idx < single.size(); idx++) {
+                Customer expected = single.get(idx);
+                Customer actual = parallel.get(idx);
+                String customer = "customer " + idx + " of seed " + seed;
+                assertEquals(customer, expected.getOriginalIdx(), actual.getOriginalIdx());
+                assertEquals(customer, expected.getSot(), actual.getSot());
+                assertEquals(customer, expected.isSob(), actual.isSob());
+                assertEquals(customer, expected.getTenDigitJid(), actual.getTenDigitJid());
+                assertEquals(customer, expected.getRpdJid(), actual.getRpdJid());
+                assertEquals(customer, expected.getSequenceInChild(), actual.getSequenceInChild());
+            }
+        }
+    }
+
+    /**
+     * Batches a generated list of customers with the given number of batch threads.
+     * @return the customers, in the order the engine left them
+     */
+    private List<Customer> batch(long seed, int threads) throws IOException {
+        File threadProps = folder.newFile();
+        String content = new String(Files.readAllBytes(Paths.get(props)), StandardCharsets.UTF_8);
+        Files.write(threadProps.toPath(), (content + System.lineSeparator() + "batchThreads=" + threads + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8));
+        AppConfig.reload(threadProps.getPath());
+        Main.loadLookups(selector);
+
+        ArrayList<Customer> customers = customers(new Random(seed));
+        Collections.sort(customers, new CustomerComparatorWithLocation());
+        CustomerStore store = CustomerStore.of(customers);
+        new CalculateEndOfGroups().calculate(store);
+        store.materialise();
+
+        BatchEngine engine = new BatchEngine(TEN_DIGIT_JID, EIGHT_DIGIT_JID, RunMetrics.disabled());
+        engine.batch(customers);
+        assertTrue(engine.getTrayCount() > 0);
+        return customers;
+    }
+
+    /**
+     * Customers of every batch type, most of them in the UK Mail batch types, spread over a few hundred MSCs
+     * with groups of several customers.
+     */
+    private ArrayList<Customer> customers(Random random) {
+        List<BatchType> ukMail = PostageConfiguration.getInstance().getUkmBatchTypes();
+        BatchType[] batchTypes = BatchType.values();
+        ArrayList<Customer> customers = new ArrayList<>(CUSTOMERS);
+        int groupId = 0;
+        while (customers.size() < CUSTOMERS) {
+            BatchType batchType = random.nextInt(4) > 0 ? ukMail.get(random.nextInt(ukMail.size()))
+                    : batchTypes[random.nextInt(batchTypes.length)];
+            boolean grouped = random.nextInt(4) == 0;
+            int members = grouped ? 2 + random.nextInt(4) : 1;
+            String lang = random.nextInt(7) == 0 ? "W" : "E";
+            String msc = String.valueOf(10000 + random.nextInt(300));
+            String site = random.nextInt(5) == 0 ? "M" : "F";
+            groupId++;
+            for (int member = 0; member < members && customers.size() < CUSTOMERS; member++) {
+                Customer customer = new Customer(customers.size());
+                int pages = 1 + random.nextInt(4);
+                customer.setSelectorRef(selector);
+                customer.setLang(lang);
+                customer.setBatchType(batchType.name());
+                customer.setPresentationPriority(batchType.ordinal() + 1);
+                customer.setStationery("A4");
+                customer.setSubBatch("");
+                customer.setSortField("");
+                customer.setFleetNo("");
+                customer.setMsc(msc);
+                customer.setGroupId(grouped ? groupId : null);
+                customer.setPaperSize("A4");
+                customer.setNoOfPages(pages);
+                customer.setWeight(5.0 + 4.5 * pages);
+                customer.setSize(0.3 + 0.1 * pages);
+                customer.setEnvelope("");
+                customer.setSite(site);
+                customers.add(customer);
+            }
+        }
+        return customers;
+    }
+}
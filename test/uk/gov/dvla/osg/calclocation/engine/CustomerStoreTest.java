@@ -0,0 +1,85 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Checks that a store put into a new order holds the same columns as one built from the customers in that order.
+ */
+public class CustomerStoreTest {
+
+    @Test
+    public void reorderedStoreMatchesStoreBuiltInTheNewOrder() {
+        List<Customer> customers = customers(200);
+        CustomerStore store = CustomerStore.of(customers);
+        Collections.shuffle(customers, new Random(7));
+        CustomerStore reordered = store.reorder(customers);
+        CustomerStore built = CustomerStore.of(customers);
+        for (int idx = 0; idx < customers.size(); idx++) {
+            assertSame(customers.get(idx), reordered.getCustomer(idx));
+            assertEquals(built.getNoOfPages(idx), reordered.getNoOfPages(idx));
+            assertEquals(built.getGroupId(idx), reordered.getGroupId(idx));
+            assertEquals(built.getWeight(idx), reordered.getWeight(idx), 0);
+            assertEquals(built.getFullBatchType(idx), reordered.getFullBatchType(idx));
+            assertEquals(built.getSite(idx), reordered.getSite(idx));
+            assertEquals(built.isEog(idx), reordered.isEog(idx));
+        }
+    }
+
+    @Test
+    public void changesFollowTheCustomersAcrossAReorder() {
+        List<Customer> customers = customers(50);
+        CustomerStore store = CustomerStore.of(customers);
+        for (int idx = 0; idx < customers.size(); idx++) {
+            store.setSite(idx, idx % 3 == 0 ? "m" : "F");
+        }
+        Collections.reverse(customers);
+        store.reorder(customers).materialise();
+        for (Customer customer : customers) {
+            assertEquals(customer.getOriginalIdx() % 3 == 0 ? "M" : "F", customer.getSite().name());
+        }
+    }
+
+    @Test
+    public void otherCustomersAreRejected() {
+        List<Customer> customers = customers(10);
+        CustomerStore store = CustomerStore.of(customers);
+        customers.set(4, customers(10).get(4));
+        try {
+            store.reorder(customers);
+            fail("Reordered a store with customers it doesn't hold");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("not in the store"));
+        }
+    }
+
+    private static List<Customer> customers(int count) {
+        List<Customer> customers = new ArrayList<>();
+        for (int idx = 0; idx < count; idx++) {
+            Customer customer = new Customer(idx);
+            customer.setLang(idx % 2 == 0 ? "E" : "W");
+            customer.setBatchType(BatchType.values()[idx % BatchType.values().length]);
+            customer.setGroupId(idx % 4 == 0 ? null : idx / 3);
+            customer.setNoOfPages(1 + idx % 5);
+            customer.setWeight(idx * 0.5);
+            customer.setSite(idx % 2 == 0 ? "F" : "M");
+            if (idx % 7 == 0) {
+                customer.setEog();
+            }
+            customers.add(customer);
+        }
+        return customers;
+    }
+}
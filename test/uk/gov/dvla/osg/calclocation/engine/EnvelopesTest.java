@@ -0,0 +1,155 @@
+package uk.gov.dvla.osg.calclocation.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Checks the envelope index against totals added up from the customers of each envelope,
+ * and that ranges of a shared index hold the same envelopes as an index of the range.
+ */
+public class EnvelopesTest {
+
+    @Test
+    public void rangeOfTheListIsIndexedByEnvelope() {
+        Random random = new Random(19);
+        for (int run = 0; run < 200; run++) {
+            List<Customer> customers = customers(random);
+            int start = random.nextInt(customers.size() + 1);
+            int end = start + random.nextInt(customers.size() - start + 1);
+            assertEnvelopes(customers, start, end, Envelopes.of(customers, start, end));
+        }
+    }
+
+    @Test
+    public void pagesOfRunsOfEnvelopesAreFoundFromRunningTotals() {
+        Random random = new Random(23);
+        for (int run = 0; run < 200; run++) {
+            List<Customer> customers = customers(random);
+            Envelopes envelopes = Envelopes.of(customers, 0, customers.size());
+            for (int from = 0; from <= envelopes.size(); from++) {
+                for (int to = from; to <= envelopes.size(); to++) {
+                    int pages = 0;
+                    for (int idx = envelopes.getStart(from); idx < envelopes.getStart(to); idx++) {
+                        pages += customers.get(idx).getNoOfPages();
+                    }
+                    assertEquals(pages, envelopes.getNoOfPages(from, to));
+                    assertEquals(envelopes.getStart(to) - envelopes.getStart(from), envelopes.getNoItems(from, to));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangeFromAnEnvelopeSharesTheIndex() {
+        Random random = new Random(29);
+        for (int run = 0; run < 200; run++) {
+            List<Customer> customers = customers(random);
+            Envelopes index = Envelopes.of(customers, 0, customers.size());
+            for (int envelope = 0; envelope <= index.size(); envelope++) {
+                int start = index.getStart(envelope);
+                for (int end = start; end <= customers.size(); end++) {
+                    Envelopes range = index.range(start, end);
+                    // The envelope that runs past the end of the range is left out
+                    assertEnvelopes(customers, start, end, range);
+                    // A range of a range, from its second envelope
+                    if (range.size() > 1) {
+                        int second = range.getStart(1);
+                        assertEnvelopes(customers, second, end, range.range(second, end));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangeNotStartingAtAnEnvelopeIsNull() {
+        Random random = new Random(31);
+        for (int run = 0; run < 200; run++) {
+            List<Customer> customers = customers(random);
+            Envelopes index = Envelopes.of(customers, 0, customers.size());
+            for (int envelope = 0; envelope < index.size(); envelope++) {
+                for (int start = index.getStart(envelope) + 1; start < index.getStart(envelope + 1); start++) {
+                    assertNull(index.range(start, customers.size()));
+                    assertNull(index.range(start, index.getStart(envelope + 1)));
+                }
+            }
+            // Customers after the last EOG are not the start of an envelope either
+            for (int start = index.getStart(index.size()) + 1; start < customers.size(); start++) {
+                assertNull(index.range(start, customers.size()));
+            }
+            // Nor are customers before the start of the index or of a range of it
+            if (index.size() > 1) {
+                int second = index.getStart(1);
+                assertNull(Envelopes.of(customers, second, customers.size()).range(0, customers.size()));
+                assertNull(index.range(second, customers.size()).range(0, customers.size()));
+            }
+        }
+    }
+
+    @Test
+    public void storeIsIndexedLikeTheList() {
+        Random random = new Random(37);
+        for (int run = 0; run < 200; run++) {
+            List<Customer> customers = customers(random);
+            assertEnvelopes(customers, 0, customers.size(), Envelopes.of(CustomerStore.of(customers)));
+        }
+    }
+
+    /**
+     * Checks that the envelopes are the runs of customers up to each EOG in the range, leaving out the customers
+     * after the last EOG.
+     */
+    static void assertEnvelopes(List<Customer> customers, int start, int end, Envelopes envelopes) {
+        int envelope = 0;
+        int first = start;
+        for (int idx = start; idx < end; idx++) {
+            if (!customers.get(idx).isEog()) {
+                continue;
+            }
+            List<Customer> members = customers.subList(first, idx + 1);
+            assertEquals(first, envelopes.getStart(envelope));
+            assertEquals(members.size(), envelopes.getNoItems(envelope));
+            assertEquals(members.stream().mapToInt(Customer::getNoOfPages).sum(), envelopes.getNoOfPages(envelope));
+            // Added up as a stream, as the envelope totals always have been
+            assertEquals(members.stream().mapToDouble(Customer::getSize).sum(), envelopes.getSize(envelope), 0);
+            assertEquals(members.stream().mapToDouble(Customer::getWeight).sum(), envelopes.getWeight(envelope), 0);
+            envelope++;
+            first = idx + 1;
+        }
+        assertEquals(envelope, envelopes.size());
+        assertEquals(first, envelopes.getStart(envelope));
+    }
+
+    /**
+     * Envelopes of one to four customers, the final customers often without an EOG.
+     */
+    static List<Customer> customers(Random random) {
+        int count = random.nextInt(60);
+        List<Customer> customers = new ArrayList<>();
+        while (customers.size() < count) {
+            int members = 1 + random.nextInt(4);
+            for (int member = 0; member < members && customers.size() < count; member++) {
+                Customer customer = new Customer(customers.size());
+                customer.setLang("E");
+                customer.setBatchType(BatchType.SORTED);
+                customer.setNoOfPages(1 + random.nextInt(4));
+                customer.setSize(0.1 + random.nextInt(10) / 10.0);
+                customer.setWeight(5 + random.nextInt(30) / 3.0);
+                if (member == members - 1) {
+                    customer.setEog();
+                }
+                customers.add(customer);
+            }
+        }
+        return customers;
+    }
+}
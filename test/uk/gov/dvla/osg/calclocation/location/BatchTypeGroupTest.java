@@ -0,0 +1,91 @@
+package uk.gov.dvla.osg.calclocation.location;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+
+/**
+ * Checks group site lookup against the original rule: sort every customer's group ID and send the groups
+ * among the first numberToFf IDs to FF.
+ */
+public class BatchTypeGroupTest {
+
+    @Test
+    public void allGroupsGoToFfAtOneHundredPercent() {
+        BatchTypeGroup group = groupOf("F", 5, 3, 9);
+        assertEquals("F", group.getSite(3));
+        assertEquals("F", group.getSite(5));
+        assertEquals("F", group.getSite(9));
+        assertEquals("M", group.getSite(4));
+    }
+
+    @Test
+    public void noGroupsGoToFfAtZeroPercent() {
+        BatchTypeGroup group = groupOf("M", 5, 3, 9);
+        assertEquals("M", group.getSite(3));
+        assertEquals("M", group.getSite(9));
+    }
+
+    @Test
+    public void groupCutAtTheLimitGoesToFf() {
+        // 50% of 4 customers is 2, the two customers of group 1 then fill the FF count
+        BatchTypeGroup group = groupOf("50", 2, 1, 1, 7);
+        assertEquals("F", group.getSite(1));
+        assertEquals("M", group.getSite(2));
+        assertEquals("M", group.getSite(7));
+    }
+
+    @Test
+    public void singlesAndNegativeIdsAreLookedUp() {
+        BatchTypeGroup group = groupOf("F", CustomerStore.NO_GROUP, -4, 0);
+        assertEquals("F", group.getSite(CustomerStore.NO_GROUP));
+        assertEquals("F", group.getSite(-4));
+        assertEquals("F", group.getSite(0));
+        assertEquals("M", group.getSite(1));
+    }
+
+    @Test
+    public void matchesSortedListRule() {
+        Random random = new Random(7);
+        for (String site : new String[] { "F", "M", "1", "33", "50", "99" }) {
+            for (int customers : new int[] { 0, 1, 10, 1000, 100_000 }) {
+                int groups = Math.max(1, customers / 3);
+                List<Integer> ids = new ArrayList<>();
+                BatchTypeGroup group = new BatchTypeGroup(site);
+                for (int idx = 0; idx < customers; idx++) {
+                    int id = random.nextInt(groups) * 7919;
+                    ids.add(id);
+                    group.addCustomer(id);
+                }
+                group.calculate();
+
+                List<Integer> expected = new ArrayList<>(ids);
+                Collections.sort(expected);
+                Set<Integer> toFf = new HashSet<>(expected.subList(0, group.getToFf()));
+                for (int id = -1; id <= groups; id++) {
+                    int groupId = id * 7919;
+                    assertEquals(site + " " + customers + " group " + groupId,
+                            toFf.contains(groupId) ? "F" : "M", group.getSite(groupId));
+                }
+            }
+        }
+    }
+
+    private static BatchTypeGroup groupOf(String site, int... groupIds) {
+        BatchTypeGroup group = new BatchTypeGroup(site);
+        for (int groupId : groupIds) {
+            group.addCustomer(groupId);
+        }
+        group.calculate();
+        return group;
+    }
+}
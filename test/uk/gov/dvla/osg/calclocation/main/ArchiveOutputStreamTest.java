@@ -0,0 +1,84 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveOutputStreamTest {
+
+    // Every write to it fails with no space left on the device
+    private static final File FULL_DEVICE = new File("/dev/full");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void archiveIsCompleteOnceClosed() throws IOException {
+        byte[] content = content();
+        for (boolean overlapped : new boolean[] { false, true }) {
+            File plain = folder.newFile();
+            write(new ArchiveOutputStream(plain.getPath(), false, overlapped), content);
+            assertArrayEquals(content, Files.readAllBytes(plain.toPath()));
+
+            File gzip = folder.newFile();
+            write(new ArchiveOutputStream(gzip.getPath(), true, overlapped), content);
+            try (InputStream in = new GZIPInputStream(new FileInputStream(gzip))) {
+                assertArrayEquals(content, readAll(in));
+            }
+        }
+    }
+
+    @Test
+    public void failureReachesTheWriter() throws IOException {
+        assumeTrue(FULL_DEVICE.exists());
+        for (boolean overlapped : new boolean[] { false, true }) {
+            try {
+                write(new ArchiveOutputStream(FULL_DEVICE.getPath(), false, overlapped), content());
+                fail("Expected the archive to fail, overlapped " + overlapped);
+            } catch (IOException ex) {
+                // Thrown from write or close rather than only being logged
+            }
+        }
+    }
+
+    private static void write(ArchiveOutputStream out, byte[] content) throws IOException {
+        try (ArchiveOutputStream archive = out) {
+            // The writer reuses its buffer, as the DPF writers do
+            byte[] buffer = new byte[8192];
+            for (int off = 0; off < content.length; off += buffer.length) {
+                int len = Math.min(buffer.length, content.length - off);
+                System.arraycopy(content, off, buffer, 0, len);
+                archive.write(buffer, 0, len);
+            }
+        }
+    }
+
+    private static byte[] content() {
+        byte[] content = new byte[1 << 21];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,148 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+import uk.gov.dvla.osg.common.enums.Product;
+
+/**
+ * Checks that a job resumed from a checkpoint saves the same DPF as one that ran straight through.
+ */
+public class CheckpointTest {
+
+    private static final int ROWS = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File propsFile;
+    private File input;
+
+    @Before
+    public void writeFiles() throws IOException {
+        StringBuilder props = new StringBuilder();
+        for (String column : DpfParserTest.COLUMNS) {
+            props.append(column).append('=').append(column).append('\n');
+        }
+        props.append("tenDigitJobIdIncrementValue=1\n");
+        propsFile = folder.newFile("app.props");
+        Files.write(propsFile.toPath(), props.toString().getBytes(Charset.defaultCharset()));
+        AppConfig.reload(propsFile.getPath());
+
+        StringBuilder content = new StringBuilder(String.join("\t", DpfParserTest.COLUMNS)).append('\n');
+        for (int row = 0; row < ROWS; row++) {
+            String[] values = new String[DpfParserTest.COLUMNS.length];
+            for (int col = 0; col < values.length; col++) {
+                values[col] = "r" + row + "c" + col;
+            }
+            set(values, "languageFieldName", "E");
+            set(values, "batchTypeFieldName", "SORTED");
+            set(values, "mailingProduct", "");
+            set(values, "groupIdFieldName", String.valueOf(row / 3));
+            set(values, "noOfPagesField", "2");
+            set(values, "weightAndSizeField", "18.5||0.6");
+            set(values, "presentationPriorityField", "1");
+            set(values, "totalNumberOfPagesInGroupField", "6");
+            content.append(String.join("\t", values)).append('\n');
+        }
+        input = folder.newFile("input.dpf");
+        Files.write(input.toPath(), content.toString().getBytes(Charset.defaultCharset()));
+    }
+
+    @Test
+    public void resumedJobSavesTheSameDpf() throws IOException {
+        File expected = folder.newFile("expected.dpf");
+        DpfParser parser = new DpfParser(input.getPath(), expected.getPath());
+        ArrayList<Customer> customers = parser.Load();
+        calculate(customers);
+        Checkpoint.write(checkpoint(), CheckpointStage.LOCATION, customers, sources());
+        parser.Save(customers);
+
+        File actual = folder.newFile("actual.dpf");
+        DpfParser resumed = new DpfParser(input.getPath(), actual.getPath());
+        ArrayList<Customer> read = Checkpoint.read(checkpoint(), CheckpointStage.LOCATION, sources());
+        resumed.loadSchema();
+        assertEquals(customers.size(), read.size());
+        for (int idx = 0; idx < customers.size(); idx++) {
+            assertEquals(customers.get(idx).getBatchType(), read.get(idx).getBatchType());
+            assertEquals(customers.get(idx).getProduct(), read.get(idx).getProduct());
+            assertEquals(customers.get(idx).getSite(), read.get(idx).getSite());
+        }
+        resumed.Save(read);
+        assertEquals(new String(Files.readAllBytes(expected.toPath()), Charset.defaultCharset()),
+                new String(Files.readAllBytes(actual.toPath()), Charset.defaultCharset()));
+    }
+
+    @Test
+    public void changedInputIsStale() throws IOException {
+        ArrayList<Customer> customers = new DpfParser(input.getPath(), folder.newFile().getPath()).Load();
+        Checkpoint.write(checkpoint(), CheckpointStage.LOAD, customers, sources());
+        byte[] contents = Files.readAllBytes(input.toPath());
+        contents[contents.length - 2] ^= 1;
+        Files.write(input.toPath(), contents);
+        try {
+            Checkpoint.read(checkpoint(), CheckpointStage.LOAD, sources());
+            fail("Read a checkpoint taken from another input");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("is stale"));
+        }
+    }
+
+    @Test
+    public void otherStageIsRejected() throws IOException {
+        ArrayList<Customer> customers = new DpfParser(input.getPath(), folder.newFile().getPath()).Load();
+        Checkpoint.write(checkpoint(), CheckpointStage.LOAD, customers, sources());
+        try {
+            Checkpoint.read(checkpoint(), CheckpointStage.GROUPS, sources());
+            fail("Read a checkpoint taken after another stage");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("was taken after LOAD"));
+        }
+    }
+
+    /**
+     * Sets the fields that the location stage and the lookups set, with every batch type and product and both sites.
+     */
+    private static void calculate(ArrayList<Customer> customers) {
+        for (int idx = 0; idx < customers.size(); idx++) {
+            Customer customer = customers.get(idx);
+            customer.setBatchType(BatchType.values()[idx % BatchType.values().length]);
+            if (idx % (Product.values().length + 1) > 0) {
+                customer.setProduct(Product.values()[idx % (Product.values().length + 1) - 1]);
+            }
+            customer.setSite(idx % 2 == 0 ? "F" : "m");
+            customer.setMsc(idx % 4 == 0 ? null : "MSC" + idx % 4);
+            customer.setPresentationPriority(idx % 3);
+            if (idx % 3 == 2) {
+                customer.setEog();
+            }
+        }
+    }
+
+    private String checkpoint() {
+        return new File(folder.getRoot(), "job.ckpt").getPath();
+    }
+
+    private Checkpoint.Sources sources() {
+        return new Checkpoint.Sources(propsFile.getPath(), input.getPath());
+    }
+
+    private static void set(String[] values, String column, String value) {
+        values[Arrays.asList(DpfParserTest.COLUMNS).indexOf(column)] = value;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigBundleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AppConfig appConfig;
+    private ConfigBundle.SelectorConfigs configs;
+    private File production;
+    private File bundle;
+
+    @Before
+    public void writeBundle() throws IOException {
+        String dir = folder.getRoot().getPath() + File.separator;
+        StringBuilder props = new StringBuilder()
+                .append("tenDigitJobIdIncrementValue=1\n")
+                .append("lookupFile=").append(dir).append("lookup\n")
+                .append("productionConfigPath=").append(dir).append("prod-\n")
+                .append("productionFileSuffix=.cfg\n")
+                .append("postageConfigPath=").append(dir).append("post-\n")
+                .append("postageFileSuffix=.cfg\n")
+                .append("presentationPriorityConfigPath=").append(dir).append("pres-\n")
+                .append("presentationPriorityFileSuffix=.cfg\n")
+                .append("insertLookup=").append(dir).append("insert\n")
+                .append("envelopeLookup=").append(dir).append("envelope\n")
+                .append("papersizeLookup=").append(dir).append("papersize\n");
+        File propsFile = folder.newFile("app.props");
+        Files.write(propsFile.toPath(), props.toString().replace("\\", "\\\\").getBytes(StandardCharsets.UTF_8));
+        AppConfig.reload(propsFile.getPath());
+        appConfig = AppConfig.getInstance();
+
+        configs = new ConfigBundle.SelectorConfigs("A", "B", "C");
+        for (String file : configs.getFiles(appConfig)) {
+            Files.write(new File(file).toPath(), ("contents of " + file).getBytes(StandardCharsets.UTF_8));
+        }
+        production = new File(configs.getProductionConfigFile(appConfig));
+        bundle = folder.newFile("bundle.bin");
+        ConfigBundle.write(bundle.getPath(), Collections.singletonMap("SEL1", configs), appConfig);
+    }
+
+    @Test
+    public void unchangedFilesMatch() throws IOException {
+        ConfigBundle read = ConfigBundle.read(bundle.getPath());
+        assertEquals("B", read.getSelector("SEL1").getPostageConfig());
+        assertNull(read.getSelector("SEL2"));
+        assertNull(read.findStale(configs, appConfig));
+    }
+
+    @Test
+    public void touchedFileWithSameContentsMatches() throws IOException {
+        production.setLastModified(production.lastModified() - 60000);
+        assertNull(ConfigBundle.read(bundle.getPath()).findStale(configs, appConfig));
+    }
+
+    @Test
+    public void changedFileIsStale() throws IOException {
+        byte[] contents = Files.readAllBytes(production.toPath());
+        contents[0] ^= 1;
+        Files.write(production.toPath(), contents);
+        production.setLastModified(production.lastModified() - 60000);
+        assertEquals(production.getPath(), ConfigBundle.read(bundle.getPath()).findStale(configs, appConfig));
+    }
+
+    @Test
+    public void fileWithNewLengthIsStale() throws IOException {
+        Files.write(production.toPath(), "longer contents than before".getBytes(StandardCharsets.UTF_8));
+        assertEquals(production.getPath(), ConfigBundle.read(bundle.getPath()).findStale(configs, appConfig));
+    }
+
+    @Test
+    public void missingFileIsStale() throws IOException {
+        Files.delete(production.toPath());
+        assertEquals(production.getPath(), ConfigBundle.read(bundle.getPath()).findStale(configs, appConfig));
+    }
+}
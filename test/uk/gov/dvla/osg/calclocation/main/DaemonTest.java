@@ -0,0 +1,133 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs jobs through the daemon with a configuration that, like the CommonClasses configurations, can only be
+ * initialised once in a JVM.
+ */
+public class DaemonTest {
+
+    private static final long TIMEOUT_MS = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Files the singleton configuration was initialised from in the daemon's JVM
+    private final List<String> initialised = new ArrayList<>();
+    // Args of the jobs run in a new JVM
+    private final List<String[]> newJvmJobs = new ArrayList<>();
+
+    @Test
+    public void jobWithDifferentConfigRunsInNewJvm() throws Exception {
+        File config1 = writeConfig("config1", "first");
+        File config2 = writeConfig("config2", "second");
+        Path spool = folder.newFolder("spool").toPath();
+        ConfigCache cache = new ConfigCache();
+        Daemon daemon = new Daemon(spool, args -> {
+            cache.loadOnce("Config", args[0], this::initOnce);
+            return 0;
+        }, args -> {
+            newJvmJobs.add(args);
+            return 0;
+        });
+        Thread thread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        thread.start();
+
+        submit(spool, "job1", config1.getPath(), "input1");
+        assertEquals("0", awaitStatus(spool, "job1"));
+        submit(spool, "job2", config2.getPath(), "input2");
+        assertEquals("0", awaitStatus(spool, "job2"));
+        submit(spool, "job3", config1.getPath(), "input3");
+        assertEquals("0", awaitStatus(spool, "job3"));
+        // A changed file can't be loaded again either
+        Files.write(config1.toPath(), "changed file".getBytes(StandardCharsets.UTF_8));
+        submit(spool, "job4", config1.getPath(), "input4");
+        assertEquals("0", awaitStatus(spool, "job4"));
+
+        Files.createFile(spool.resolve("daemon.stop"));
+        thread.join(TIMEOUT_MS);
+        assertFalse(thread.isAlive());
+
+        assertEquals(Arrays.asList(config1.getPath()), initialised);
+        assertEquals(2, newJvmJobs.size());
+        assertArrayEquals(new String[] { config2.getPath(), "input2" }, newJvmJobs.get(0));
+        assertArrayEquals(new String[] { config1.getPath(), "input4" }, newJvmJobs.get(1));
+    }
+
+    @Test
+    public void failedInitIsNotRepeated() {
+        ConfigCache cache = new ConfigCache();
+        try {
+            cache.loadOnce("Config", "missing", file -> {
+                throw new RuntimeException("Unable to read " + file);
+            });
+            fail("Expected the init to fail");
+        } catch (RuntimeException ex) {
+            assertFalse(ex instanceof ConfigReloadException);
+        }
+        try {
+            cache.loadOnce("Config", "missing", this::initOnce);
+            fail("Expected the job to be refused");
+        } catch (ConfigReloadException ex) {
+            assertTrue(initialised.isEmpty());
+        }
+    }
+
+    /**
+     * Initialises the configuration, failing if it is already initialised as AppConfig.init does.
+     */
+    private void initOnce(String file) {
+        if (!initialised.isEmpty()) {
+            throw new RuntimeException("Configuration has already been initialised");
+        }
+        initialised.add(file);
+    }
+
+    private File writeConfig(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void submit(Path spool, String name, String... args) throws IOException {
+        Path temp = spool.resolve(name + ".tmp");
+        Files.write(temp, Arrays.asList(args), StandardCharsets.UTF_8);
+        Files.move(temp, spool.resolve(name + ".job"));
+    }
+
+    private static String awaitStatus(Path spool, String name) throws Exception {
+        Path status = spool.resolve(name + ".status");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!Files.exists(status)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("No status written for " + name);
+            }
+            Thread.sleep(20);
+        }
+        return new String(Files.readAllBytes(status), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.common.classes.Customer;
+
+/**
+ * Checks that every reader and writer combination saves the same DPF as the univocity reader and writer.
+ */
+public class DpfParserTest {
+
+    // Each property names a column of the same name, also used by CheckpointTest
+    static final String[] COLUMNS = { "appNameField", "lookupReferenceFieldName", "mailingIdField",
+            "documentReference", "sortField", "languageFieldName", "stationeryFieldName", "batchTypeFieldName",
+            "subBatchTypeFieldName", "fleetNoFieldName", "groupIdFieldName", "paperSizeFieldName", "mscFieldName",
+            "name1Field", "name2Field", "address1Field", "address2Field", "address3Field", "address4Field",
+            "address5Field", "postCodeField", "dpsField", "mailMarkBarcodeCustomerContent", "noOfPagesField",
+            "eogField", "eotField", "weightAndSizeField", "outerEnvelope", "mailingProduct",
+            "presentationPriorityField", "totalNumberOfPagesInGroupField", "runDate", "siteFieldName",
+            "jobIdFieldName", "tenDigitJobId", "mailMarkBarcodeContent", "childSequence", "insertField" };
+
+    // Values that the TsvWriter writes differently from the way they were read, or not at all
+    private static final String[] AWKWARD = { "a\\xb", "\\tlead", "x\\\\y", "mid\\tesc", "trail\\", " padded ",
+            "tab\\t", "" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void everyReaderAndWriterSavesTheSameDpf() throws IOException {
+        File input = writeInput();
+        String expected = save(input, DpfReaderMode.UNIVOCITY, DpfWriterMode.TSV_WRITER, false);
+        for (DpfReaderMode reader : DpfReaderMode.values()) {
+            for (DpfWriterMode writer : DpfWriterMode.values()) {
+                assertEquals(reader + " " + writer, expected, save(input, reader, writer, false));
+            }
+        }
+    }
+
+    @Test
+    public void retainedRowsSaveTheSameDpf() throws IOException {
+        File input = writeInput();
+        assertEquals(save(input, DpfReaderMode.UNIVOCITY, DpfWriterMode.TSV_WRITER, false),
+                save(input, DpfReaderMode.UNIVOCITY, DpfWriterMode.TSV_WRITER, true));
+    }
+
+    /**
+     * Loads the input, sets the site and MSC of each customer and saves it.
+     * @return the saved DPF
+     */
+    private String save(File input, DpfReaderMode reader, DpfWriterMode writer, boolean retainInputRows) throws IOException {
+        StringBuilder props = new StringBuilder();
+        for (String column : COLUMNS) {
+            props.append(column).append('=').append(column).append('\n');
+        }
+        props.append("tenDigitJobIdIncrementValue=1\n")
+                .append("dpfReader=").append(reader).append('\n')
+                .append("dpfWriter=").append(writer).append('\n')
+                .append("retainInputRows=").append(retainInputRows).append('\n');
+        File propsFile = folder.newFile();
+        Files.write(propsFile.toPath(), props.toString().getBytes(Charset.defaultCharset()));
+        AppConfig.reload(propsFile.getPath());
+
+        File output = folder.newFile();
+        DpfParser parser = new DpfParser(input.getPath(), output.getPath());
+        ArrayList<Customer> customers = parser.Load();
+        for (int idx = 0; idx < customers.size(); idx++) {
+            customers.get(idx).setSite("F");
+            customers.get(idx).setMsc(AWKWARD[idx % AWKWARD.length].replace("\\t", "\t").replace("\\\\", "\\"));
+        }
+        parser.Save(customers);
+        return new String(Files.readAllBytes(output.toPath()), Charset.defaultCharset());
+    }
+
+    /**
+     * Writes an input DPF with CRLF line endings, awkward values in most columns and a short row.
+     */
+    private File writeInput() throws IOException {
+        String[] header = Arrays.copyOf(COLUMNS, COLUMNS.length + 1);
+        header[COLUMNS.length] = "unmapped";
+        StringBuilder content = new StringBuilder(String.join("\t", header)).append("\r\n");
+        for (int row = 0; row < AWKWARD.length * 2; row++) {
+            String[] values = new String[header.length];
+            for (int col = 0; col < header.length; col++) {
+                values[col] = AWKWARD[(row + col) % AWKWARD.length];
+            }
+            set(values, "languageFieldName", "E");
+            set(values, "batchTypeFieldName", "SORTED");
+            set(values, "mailingProduct", "");
+            set(values, "groupIdFieldName", String.valueOf(row / 2));
+            set(values, "noOfPagesField", "2");
+            set(values, "weightAndSizeField", "18.5||0.6");
+            set(values, "presentationPriorityField", "1");
+            set(values, "totalNumberOfPagesInGroupField", "4");
+            // The last row stops before the columns that Save replaces
+            int width = row + 1 < AWKWARD.length * 2 ? values.length : Arrays.asList(COLUMNS).indexOf("runDate");
+            content.append(String.join("\t", Arrays.copyOf(values, width))).append("\r\n");
+        }
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.toString().getBytes(Charset.defaultCharset()));
+        return file;
+    }
+
+    private static void set(String[] values, String column, String value) {
+        values[Arrays.asList(COLUMNS).indexOf(column)] = value;
+    }
+}
@@ -0,0 +1,249 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorOriginalOrder;
+import uk.gov.dvla.osg.calclocation.comparators.CustomerComparatorWithLocation;
+import uk.gov.dvla.osg.calclocation.comparators.SortState;
+import uk.gov.dvla.osg.calclocation.engine.BatchEngine;
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
+import uk.gov.dvla.osg.calclocation.pipeline.Pipeline;
+import uk.gov.dvla.osg.calclocation.pipeline.Stage;
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.config.PresentationConfiguration;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Checks that the re-sorts which only place the changed customers give the same list as sorting it in full,
+ * and that placing each customer at its original index gives the same list as sorting on the index.
+ * Batching needs the production, postage and presentation configuration, loaded from the AppConfig properties
+ * file and selector passed as -Dcalclocation.props and -Dcalclocation.selector, and is skipped when they are not set.
+ */
+public class MainOrderTest {
+
+    private static final String PROPS = "calclocation.props";
+    private static final String SELECTOR = "calclocation.selector";
+    // Below the UK Mail minimum tray volume of any configuration, so these MSCs are always changed by the batch engine
+    private static final int SMALL_MSC = 3;
+    private static final int LARGE_MSC = 400;
+    // Unsorted customers given an MSC are moved among the unsorted customers that already have it, from either side
+    private static final String[] UNSORTED_MSCS = { "", "99999", "1", "A" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changedCustomersAreMergedIntoTheFullSortOrder() throws IOException {
+        String props = System.getProperty(PROPS);
+        String selector = System.getProperty(SELECTOR);
+        assumeTrue("Set -D" + PROPS + " and -D" + SELECTOR + " to batch with a configuration",
+                StringUtils.isNoneBlank(props, selector));
+        // Full sorts are then Collections.sort
+        File sortProps = folder.newFile();
+        String content = new String(Files.readAllBytes(Paths.get(props)), StandardCharsets.UTF_8);
+        Files.write(sortProps.toPath(), (content + System.lineSeparator() + "sortMode=COMPARATOR" + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8));
+        AppConfig.reload(sortProps.getPath());
+        Main.loadLookups(selector);
+
+        for (long seed : new long[] { 1, 2, 3 }) {
+            SortState sortState = new SortState();
+            ArrayList<Customer> merged = inLocationOrder(new Random(seed), sortState);
+            ArrayList<Customer> sorted = inLocationOrder(new Random(seed), new SortState());
+
+            // Unsorted customers are given their MSC after the groups pass, as Main does
+            Stage msc = Main.setMscStage(merged, BatchType.UNSORTED, "99999", sortState);
+            for (int idx = 0; idx < merged.size(); idx++) {
+                msc.accept(idx);
+            }
+            sortState.sort(merged, new CustomerComparatorWithLocation());
+            for (Customer customer : sorted) {
+                if (BatchType.UNSORTED.equals(customer.getBatchType())) {
+                    customer.setMsc("99999");
+                }
+            }
+            Collections.sort(sorted, new CustomerComparatorWithLocation());
+            assertEquals(indexes(sorted), indexes(merged));
+
+            // Multis in small MSCs are sent as singles and small MSCs as unsorted, then each list is sorted again,
+            // merging the changed customers when the order is known and in full when it isn't
+            int multis = count(merged, BatchType.MULTI);
+            new BatchEngine(1_000_000_000, 12_345_678, RunMetrics.disabled()).batch(merged, sortState);
+            new BatchEngine(1_000_000_000, 12_345_678, RunMetrics.disabled()).batch(sorted, new SortState());
+            assertTrue(count(merged, BatchType.MULTI) < multis);
+            assertEquals(indexes(sorted), indexes(merged));
+            for (int idx = 0; idx < merged.size(); idx++) {
+                Customer expected = sorted.get(idx);
+                Customer actual = merged.get(idx);
+                assertEquals(expected.getBatchType(), actual.getBatchType());
+                assertEquals(expected.getMsc(), actual.getMsc());
+                assertEquals(expected.getSite(), actual.getSite());
+                assertEquals(expected.isSob(), actual.isSob());
+                assertEquals(expected.getSot(), actual.getSot());
+                assertEquals(expected.getTenDigitJid(), actual.getTenDigitJid());
+                assertEquals(expected.getSequenceInChild(), actual.getSequenceInChild());
+            }
+        }
+    }
+
+    @Test
+    public void originalOrderIsRestoredByPosition() throws IOException {
+        minimalConfig();
+        Random random = new Random(41);
+        for (boolean fused : new boolean[] { true, false }) {
+            for (int count : new int[] { 0, 1, 2, 1000 }) {
+                List<Integer> originalIdxs = new ArrayList<>();
+                for (int idx = 0; idx < count; idx++) {
+                    originalIdxs.add(idx);
+                }
+                assertRestored(originalIdxs, random, fused);
+            }
+        }
+    }
+
+    @Test
+    public void originalOrderIsSortedWhenIndexesAreOutOfSequence() throws IOException {
+        minimalConfig();
+        Random random = new Random(43);
+        // Repeated, negative and past the end of the list
+        List<List<Integer>> cases = new ArrayList<>();
+        cases.add(Arrays.asList(0, 1, 1, 3));
+        cases.add(Arrays.asList(-1, 0, 1, 2));
+        cases.add(Arrays.asList(0, 1, 2, 4));
+        cases.add(Arrays.asList(3, 5, 7, 9, 11));
+        for (List<Integer> originalIdxs : cases) {
+            assertRestored(originalIdxs, random, true);
+        }
+    }
+
+    /**
+     * Restores the original order of shuffled customers as Main does, clearing the MSC of unsorted customers in the
+     * same pipeline, and checks the list against a stable sort on the original index.
+     */
+    private static void assertRestored(List<Integer> originalIdxs, Random random, boolean fused) {
+        ArrayList<Customer> customers = new ArrayList<>();
+        for (int originalIdx : originalIdxs) {
+            Customer customer = new Customer(originalIdx);
+            BatchType batchType = random.nextBoolean() ? BatchType.UNSORTED : BatchType.SORTED;
+            customer.setBatchType(batchType);
+            customer.setSite(random.nextBoolean() ? "F" : "M");
+            customer.setLang("E");
+            customer.setStationery("A4");
+            customer.setPresentationPriority(batchType.ordinal());
+            customer.setSubBatch("");
+            customer.setSortField(String.valueOf(random.nextInt(10)));
+            customer.setFleetNo("");
+            customer.setMsc("99999");
+            customers.add(customer);
+        }
+        // Into location order, as the customers are when Main restores their original order
+        Collections.shuffle(customers, random);
+        SortState sortState = new SortState();
+        sortState.sort(customers, new CustomerComparatorWithLocation());
+        ArrayList<Customer> expected = new ArrayList<>(customers);
+        for (Customer customer : expected) {
+            if (BatchType.UNSORTED.equals(customer.getBatchType())) {
+                customer.setMsc("");
+            }
+        }
+        Collections.sort(expected, new CustomerComparatorOriginalOrder());
+
+        Main.OriginalOrder originalOrder = new Main.OriginalOrder(customers);
+        new Pipeline(RunMetrics.disabled(), fused)
+                .add(Main.setMscStage(customers, BatchType.UNSORTED, "", sortState))
+                .add(originalOrder)
+                .run(customers.size());
+        originalOrder.restore(sortState);
+
+        assertEquals(expected.size(), customers.size());
+        for (int idx = 0; idx < customers.size(); idx++) {
+            // Customer.equals only looks at a few fields
+            assertSame(originalIdxs.toString(), expected.get(idx), customers.get(idx));
+        }
+        assertFalse(customers.size() > 1 && sortState.isInOrder(new CustomerComparatorWithLocation()));
+    }
+
+    private void minimalConfig() throws IOException {
+        File props = folder.newFile();
+        Files.write(props.toPath(), "tenDigitJobIdIncrementValue=1\n".getBytes(StandardCharsets.UTF_8));
+        AppConfig.reload(props.getPath());
+    }
+
+    /**
+     * Customers in large and small MSCs of sorted and multi customers, and unsorted customers, at both sites
+     * and sorted into location order with their EOGs set.
+     */
+    private static ArrayList<Customer> inLocationOrder(Random random, SortState sortState) {
+        ArrayList<Customer> customers = new ArrayList<>();
+        int groupId = 0;
+        for (int msc = 0; msc < 40; msc++) {
+            BatchType batchType = msc % 4 == 3 ? BatchType.UNSORTED : msc % 2 == 0 ? BatchType.SORTED : BatchType.MULTI;
+            int envelopes = msc % 5 == 0 ? SMALL_MSC : LARGE_MSC;
+            for (int envelope = 0; envelope < envelopes; envelope++) {
+                int members = BatchType.MULTI.equals(batchType) ? 2 + random.nextInt(2) : 1;
+                groupId++;
+                String lang = random.nextInt(5) == 0 ? "W" : "E";
+                for (int member = 0; member < members; member++) {
+                    Customer customer = new Customer(customers.size());
+                    customer.setLang(lang);
+                    customer.setBatchType(batchType.name());
+                    customer.setPresentationPriority(PresentationConfiguration.getInstance().lookupRunOrder(customer.getBatchName()));
+                    customer.setSite(random.nextBoolean() ? "F" : "M");
+                    customer.setStationery("A4");
+                    customer.setSubBatch("");
+                    // Few sort field values, so changed customers tie with unchanged ones
+                    customer.setSortField(String.valueOf(random.nextInt(3)));
+                    customer.setFleetNo("");
+                    customer.setMsc(BatchType.UNSORTED.equals(batchType) ? UNSORTED_MSCS[random.nextInt(UNSORTED_MSCS.length)]
+                            : String.valueOf(10000 + msc));
+                    customer.setGroupId(members > 1 ? groupId : null);
+                    customer.setPaperSize("A4");
+                    customer.setNoOfPages(1 + random.nextInt(3));
+                    customer.setWeight(20);
+                    customer.setSize(0.5);
+                    customer.setEnvelope("");
+                    customers.add(customer);
+                }
+            }
+        }
+        Collections.shuffle(customers, random);
+        sortState.sort(customers, new CustomerComparatorWithLocation());
+        CustomerStore store = CustomerStore.of(customers);
+        new CalculateEndOfGroups().calculate(store);
+        store.materialise();
+        return customers;
+    }
+
+    private static int count(List<Customer> customers, BatchType batchType) {
+        return (int) customers.stream().filter(customer -> batchType.equals(customer.getBatchType())).count();
+    }
+
+    private static List<Integer> indexes(List<Customer> customers) {
+        List<Integer> indexes = new ArrayList<>();
+        for (Customer customer : customers) {
+            indexes.add(customer.getOriginalIdx());
+        }
+        return indexes;
+    }
+}
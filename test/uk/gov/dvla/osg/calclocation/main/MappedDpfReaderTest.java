@@ -0,0 +1,202 @@
+package uk.gov.dvla.osg.calclocation.main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.univocity.parsers.tsv.TsvParser;
+import com.univocity.parsers.tsv.TsvParserSettings;
+import com.univocity.parsers.tsv.TsvWriter;
+import com.univocity.parsers.tsv.TsvWriterSettings;
+
+/**
+ * Checks the mapped reader against the TsvParser, set up as DpfParser sets it up.
+ */
+public class MappedDpfReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsLineFeedRows() throws IOException {
+        assertSameRows("h1\th2\th3\nx\t\ty\nz\n");
+    }
+
+    @Test
+    public void readsCarriageReturnLineFeedRows() throws IOException {
+        assertSameRows("h1\th2\th3\r\nx\t\ty\r\nz\r\n");
+    }
+
+    @Test
+    public void readsEscapes() throws IOException {
+        assertSameRows("h1\th2\th3\na\\xb\t\\tlead\ttab\\t\n\\n\\r\tx\\\\y\t \\t \ntrail\\\tmid\\tesc\t\\ta\\t\n");
+    }
+
+    @Test
+    public void readsCarriageReturnRows() throws IOException {
+        File file = write("h1\th2\th3\rx\t\ty\rz\r");
+        assertSameRows(file);
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            assertEquals('\r', reader.getLineSeparator());
+        }
+    }
+
+    @Test
+    public void splitsCarriageReturnRowsOnLineStarts() throws IOException {
+        StringBuilder content = new StringBuilder("h1\th2\r");
+        for (int row = 0; row < 1000; row++) {
+            content.append("row").append(row).append('\t').append(row).append('\r');
+        }
+        File file = write(content.toString());
+        List<String[]> expected = univocityRows(file);
+        expected.remove(0);
+        List<String[]> actual = new ArrayList<>();
+        try (MappedDpfReader whole = new MappedDpfReader(file)) {
+            long[] boundaries = MappedDpfReader.splitLines(file, whole.getPosition(), 7, whole.getLineSeparator());
+            for (int chunk = 0; chunk + 1 < boundaries.length; chunk++) {
+                try (MappedDpfReader reader = new MappedDpfReader(file, boundaries[chunk], boundaries[chunk + 1],
+                        whole.getHeaders(), whole.getLineSeparator())) {
+                    while (reader.next()) {
+                        actual.add(reader.getValues());
+                    }
+                }
+            }
+        }
+        assertRowsEqual(expected, actual);
+    }
+
+    @Test
+    public void missingFieldIsNullAndEmptyFieldIsEmpty() throws IOException {
+        File file = write("h1\th2\th3\nx\t\ny\n");
+        DpfDictionary dictionary = new DpfDictionary();
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            assertTrue(reader.next());
+            assertEquals("", reader.getString(1));
+            assertEquals("", reader.getString(1, dictionary));
+            assertNull(reader.getString(2));
+            assertNull(reader.getString(2, dictionary));
+            assertTrue(reader.isBlank(2));
+        }
+        List<String[]> rows = univocityRows(file);
+        DpfRow.Values values = new DpfRow.Values().set(rows.get(1));
+        assertEquals("", values.getString(1));
+        assertNull(values.getString(2));
+        assertNull(values.getString(2, dictionary));
+        assertTrue(values.isBlank(2));
+    }
+
+    @Test
+    public void doublePartsSkipEmptyTokens() throws IOException {
+        File file = write("ws\n1.5||0.25\n|2.5|\n");
+        List<String[]> rows = univocityRows(file);
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            for (String[] row : rows.subList(1, rows.size())) {
+                assertTrue(reader.next());
+                DpfRow.Values values = new DpfRow.Values().set(row);
+                assertEquals(values.getDouble(0, '|', 0), reader.getDouble(0, '|', 0), 0);
+            }
+        }
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            assertTrue(reader.next());
+            assertEquals(1.5, reader.getDouble(0, '|', 0), 0);
+            assertEquals(0.25, reader.getDouble(0, '|', 1), 0);
+            assertTrue(reader.next());
+            assertEquals(2.5, reader.getDouble(0, '|', 0), 0);
+            try {
+                reader.getDouble(0, '|', 1);
+                fail("Expected a missing part to fail");
+            } catch (NumberFormatException ex) {
+                // The baseline split gives a single part
+            }
+        }
+    }
+
+    @Test
+    public void writeRowMatchesTsvWriter() throws IOException {
+        File file = write("h1\th2\th3\r\n"
+                + "a\\xb\tplain\told\r\n"
+                + "\\tlead\tx\\\\y\told\r\n"
+                + "mid\\tesc\ttrail\\\told\r\n"
+                + " padded \t\\n\told\r\n"
+                + "short\r\n");
+        List<String[]> rows = univocityRows(file);
+        TsvWriterSettings settings = new TsvWriterSettings();
+        settings.setNullValue("");
+        settings.setIgnoreTrailingWhitespaces(false);
+        settings.getFormat().setLineSeparator("\n");
+        StringWriter expected = new StringWriter();
+        TsvWriter writer = new TsvWriter(expected, settings);
+        for (String[] row : rows.subList(1, rows.size())) {
+            Object[] values = Arrays.copyOf(row, 3, Object[].class);
+            values[2] = "new\\value";
+            writer.writeRow(values);
+        }
+        writer.close();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] value = MappedDpfReader.encode("new\\value").getBytes(Charset.defaultCharset());
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            while (reader.next()) {
+                reader.writeRow(actual, new int[] { 2 }, new byte[][] { value }, 3);
+                actual.write('\n');
+            }
+        }
+        assertEquals(expected.toString(), new String(actual.toByteArray(), Charset.defaultCharset()));
+    }
+
+    private void assertSameRows(String content) throws IOException {
+        assertSameRows(write(content));
+    }
+
+    private void assertSameRows(File file) throws IOException {
+        List<String[]> expected = univocityRows(file);
+        List<String[]> actual = new ArrayList<>();
+        try (MappedDpfReader reader = new MappedDpfReader(file)) {
+            actual.add(reader.getHeaders());
+            while (reader.next()) {
+                actual.add(reader.getValues());
+            }
+        }
+        assertRowsEqual(expected, actual);
+    }
+
+    private static void assertRowsEqual(List<String[]> expected, List<String[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertArrayEquals("Row " + row, expected.get(row), actual.get(row));
+        }
+    }
+
+    /**
+     * @return every row of the file including the header, as DpfParser's TsvParser reads it
+     */
+    private static List<String[]> univocityRows(File file) {
+        TsvParserSettings settings = new TsvParserSettings();
+        settings.setNullValue("");
+        settings.setLineSeparatorDetectionEnabled(true);
+        TsvParser parser = new TsvParser(settings);
+        return parser.parseAll(file, Charset.defaultCharset().name());
+    }
+
+    private File write(String content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(Charset.defaultCharset()));
+        return file;
+    }
+}
@@ -0,0 +1,152 @@
+package uk.gov.dvla.osg.calclocation.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.calclocation.engine.CustomerStore;
+import uk.gov.dvla.osg.calclocation.main.RunMetrics;
+import uk.gov.dvla.osg.calclocation.methods.CalculateEndOfGroups;
+import uk.gov.dvla.osg.calclocation.methods.TotalPagesInGroup;
+import uk.gov.dvla.osg.common.classes.Customer;
+import uk.gov.dvla.osg.common.enums.BatchType;
+
+/**
+ * Checks that the groups pass sets the same EOG, total pages in group and MSC whether its stages are fused or not.
+ */
+public class PipelineTest {
+
+    private static final int RUNS = 100;
+    private static final int GROUP_MAX = 10;
+
+    @Test
+    public void fusedGroupsPassMatchesSeparatePasses() {
+        Random random = new Random(11);
+        for (int run = 0; run < RUNS; run++) {
+            long seed = random.nextLong();
+            List<Customer> fused = customers(new Random(seed), false);
+            List<Customer> separate = customers(new Random(seed), false);
+            groupsPass(fused, true, true);
+            groupsPass(separate, false, true);
+            assertSameResult(fused, separate);
+            if (!fused.isEmpty()) {
+                assertTrue(fused.get(fused.size() - 1).isEog());
+            }
+        }
+    }
+
+    @Test
+    public void groupsAtBothEndsOfTheList() {
+        // Groups run from the first customer and up to the last, with enough pages to be split at the group max
+        List<Customer> fused = new ArrayList<>();
+        List<Customer> separate = new ArrayList<>();
+        int[] groupIds = { 1, 1, 1, 1, 1, -1, 2, 2, 2, 2, 2, 2 };
+        for (List<Customer> customers : Arrays.asList(fused, separate)) {
+            for (int idx = 0; idx < groupIds.length; idx++) {
+                customers.add(customer(idx, groupIds[idx] < 0 ? null : groupIds[idx], 3, BatchType.UNSORTED, "1"));
+            }
+        }
+        groupsPass(fused, true, true);
+        groupsPass(separate, false, true);
+        assertSameResult(fused, separate);
+        int[] tpig = { 9, 9, 9, 6, 6, 3, 9, 9, 9, 9, 9, 9 };
+        for (int idx = 0; idx < tpig.length; idx++) {
+            assertEquals("customer " + idx, tpig[idx], fused.get(idx).getTotalPagesInGroup());
+            assertEquals("99999", fused.get(idx).getMsc());
+        }
+    }
+
+    @Test
+    public void customersAfterTheLastEogAreLeftAlike() {
+        // With the EOGs already set, the final customers are not in an envelope and are held back to the end
+        Random random = new Random(13);
+        for (int run = 0; run < RUNS; run++) {
+            long seed = random.nextLong();
+            List<Customer> fused = customers(new Random(seed), true);
+            List<Customer> separate = customers(new Random(seed), true);
+            groupsPass(fused, true, false);
+            groupsPass(separate, false, false);
+            assertSameResult(fused, separate);
+            int last = fused.size() - 1;
+            assertFalse(fused.get(last).isEog());
+            assertEquals(0, fused.get(last).getTotalPagesInGroup());
+            assertEquals(BatchType.UNSORTED.equals(fused.get(last).getBatchType()) ? "99999" : "1",
+                    fused.get(last).getMsc());
+        }
+    }
+
+    /**
+     * The groups pass of Main: EOG, total pages in group, copying back to the customers and the MSC of unsorted customers.
+     * @param eog true to calculate the EOGs, false to keep the EOGs the customers already have
+     */
+    private static void groupsPass(List<Customer> customers, boolean fused, boolean eog) {
+        CustomerStore store = CustomerStore.of(customers);
+        Pipeline pipeline = new Pipeline(RunMetrics.disabled(), fused);
+        if (eog) {
+            pipeline.add(new CalculateEndOfGroups(batchType -> GROUP_MAX).stage(store));
+        }
+        pipeline.add(new TotalPagesInGroup().stage(store))
+                .add(store.materialiseStage())
+                .add(Stage.perRecord("msc", idx -> {
+                    Customer customer = customers.get(idx);
+                    if (BatchType.UNSORTED.equals(customer.getBatchType())) {
+                        customer.setMsc("99999");
+                    }
+                }))
+                .run(customers.size());
+    }
+
+    private static void assertSameResult(List<Customer> fused, List<Customer> separate) {
+        assertEquals(separate.size(), fused.size());
+        for (int idx = 0; idx < fused.size(); idx++) {
+            assertEquals("EOG of " + idx, separate.get(idx).isEog(), fused.get(idx).isEog());
+            assertEquals("TPIG of " + idx, separate.get(idx).getTotalPagesInGroup(), fused.get(idx).getTotalPagesInGroup());
+            assertEquals("MSC of " + idx, separate.get(idx).getMsc(), fused.get(idx).getMsc());
+        }
+    }
+
+    /**
+     * Runs of singles and of groups, with groups often at the start and end of the list.
+     * @param eogs set EOGs at random, leaving the final customers without one
+     */
+    private static List<Customer> customers(Random random, boolean eogs) {
+        int count = eogs ? 2 + random.nextInt(200) : random.nextInt(200);
+        List<Customer> customers = new ArrayList<>();
+        int groupId = random.nextInt(5) - 2;
+        while (customers.size() < count) {
+            // A run of singles, or the customers of one group
+            boolean group = random.nextInt(3) > 0;
+            groupId += 1 + random.nextInt(3);
+            for (int size = 1 + random.nextInt(8); size > 0 && customers.size() < count; size--) {
+                BatchType batchType = random.nextBoolean() ? BatchType.UNSORTED : BatchType.SORTED;
+                customers.add(customer(customers.size(), group ? groupId : null, 1 + random.nextInt(4), batchType, "1"));
+            }
+        }
+        if (eogs) {
+            int lastEog = random.nextInt(count - 1);
+            for (int idx = 0; idx <= lastEog; idx++) {
+                if (idx == lastEog || random.nextInt(3) == 0) {
+                    customers.get(idx).setEog();
+                }
+            }
+        }
+        return customers;
+    }
+
+    private static Customer customer(int idx, Integer groupId, int pages, BatchType batchType, String msc) {
+        Customer customer = new Customer(idx);
+        customer.setLang(idx % 3 == 0 ? "W" : "E");
+        customer.setBatchType(batchType);
+        customer.setGroupId(groupId);
+        customer.setNoOfPages(pages);
+        customer.setMsc(msc);
+        return customer;
+    }
+}